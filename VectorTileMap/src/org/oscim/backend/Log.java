@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.backend;
+
+/**
+ * Logging for code that also runs outside of Android, see Platform. Writes
+ * to android.util.Log on Android and to System.err otherwise, unless a
+ * Logger is set.
+ */
+public final class Log {
+
+	public interface Logger {
+		void d(String tag, String msg);
+
+		void w(String tag, String msg);
+
+		void e(String tag, String msg);
+	}
+
+	private static Logger logger;
+
+	/**
+	 * @param l
+	 *            Logger to use, null for the default of the platform.
+	 */
+	public static void setLogger(Logger l) {
+		logger = l;
+	}
+
+	private static Logger get() {
+		Logger l = logger;
+		if (l == null)
+			logger = l = (Platform.isAndroid() ? new AndroidLogger() : new StdErrLogger());
+		return l;
+	}
+
+	public static void d(String tag, String msg) {
+		get().d(tag, msg);
+	}
+
+	public static void w(String tag, String msg) {
+		get().w(tag, msg);
+	}
+
+	public static void e(String tag, String msg) {
+		get().e(tag, msg);
+	}
+
+	// only loaded on Android
+	static final class AndroidLogger implements Logger {
+		@Override
+		public void d(String tag, String msg) {
+			android.util.Log.d(tag, msg);
+		}
+
+		@Override
+		public void w(String tag, String msg) {
+			android.util.Log.w(tag, msg);
+		}
+
+		@Override
+		public void e(String tag, String msg) {
+			android.util.Log.e(tag, msg);
+		}
+	}
+
+	static final class StdErrLogger implements Logger {
+		@Override
+		public void d(String tag, String msg) {
+			System.err.println("D/" + tag + ": " + msg);
+		}
+
+		@Override
+		public void w(String tag, String msg) {
+			System.err.println("W/" + tag + ": " + msg);
+		}
+
+		@Override
+		public void e(String tag, String msg) {
+			System.err.println("E/" + tag + ": " + msg);
+		}
+	}
+
+	private Log() {
+	}
+}
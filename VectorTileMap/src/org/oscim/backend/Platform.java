@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.backend;
+
+import android.graphics.Color;
+
+/**
+ * Platform dependent parts of building tiles: the decoding, theme
+ * matching and geometry code only calls android.graphics through these
+ * checks. On a plain JVM the android classes are only needed for their
+ * types (e.g. android.jar on the class path): no Paint, Typeface or Bitmap
+ * is created, text width and height are estimated from the font size and
+ * symbols are skipped. See HeadlessTileBuilder.
+ */
+public final class Platform {
+
+	private static final boolean ANDROID =
+			System.getProperty("java.vm.name", "").startsWith("Dalvik");
+
+	/**
+	 * @return true when android.graphics can be used
+	 */
+	public static boolean isAndroid() {
+		return ANDROID;
+	}
+
+	/**
+	 * Parse a color as android.graphics.Color.parseColor() does. Only
+	 * '#RRGGBB' and '#AARRGGBB' are supported outside of Android.
+	 * @param color
+	 *            the color string
+	 * @return the ARGB color
+	 * @throws IllegalArgumentException
+	 *             for unknown colors
+	 */
+	public static int parseColor(String color) {
+		if (ANDROID)
+			return Color.parseColor(color);
+
+		int length = color.length();
+		if (color.charAt(0) != '#' || (length != 7 && length != 9))
+			throw new IllegalArgumentException("Unknown color: " + color);
+
+		long c = Long.parseLong(color.substring(1), 16);
+		if (length == 7)
+			c |= 0xff000000L;
+
+		return (int) c;
+	}
+
+	private Platform() {
+	}
+}
@@ -14,6 +14,926 @@
  */
 package org.oscim.cache;
 
-public class CacheManager {
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
+import org.oscim.backend.Log;
+import org.oscim.core.Tile;
+
+/**
+ * Persistent tile cache for one tile source. Tiles are appended to a pack
+ * file, an index of the pack is written next to it from time to time.
+ * <p>
+ * - Each record in the pack carries its key, length and a CRC32 of its data,
+ * after a crash records not covered by the index are recovered by scanning
+ * the pack, a partially written tail is truncated.<br/>
+ * - When the cached bytes exceed the budget least recently used tiles are
+ * evicted. The pack is compacted when more than half of it is unused.<br/>
+ * - Tiles are read from a read-only mapping of the pack, so that decoders can
+ * work on the data without copying it. Records appended after the pack was
+ * mapped are read with positional reads until the pack is mapped again. Any
+ * number of threads can read concurrently, records are appended one at a
+ * time and only compaction blocks readers.
+ */
+public final class CacheManager {
+	private final static String TAG = CacheManager.class.getSimpleName();
+
+	private static final int PACK_MAGIC = 0x4f504b31; // OPK1
+	private static final int RECORD_MAGIC = 0x54494c45; // TILE
+	private static final int INDEX_MAGIC = 0x4f494431; // OID1
+
+	// magic, generation
+	private static final int PACK_HEADER_SIZE = 12;
+	// magic, key, length, crc
+	private static final int RECORD_HEADER_SIZE = 20;
+	// key, offset, length
+	private static final int INDEX_ENTRY_SIZE = 20;
+	// magic, generation, pack size, entries
+	private static final int INDEX_HEADER_SIZE = 24;
+
+	// write index after this number of new tiles
+	private static final int INDEX_WRITE_INTERVAL = 64;
+
+	// do not compact packs smaller than this
+	private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+
+	// sanity check for record length
+	private static final int MAX_TILE_SIZE = 16 * 1024 * 1024;
+
+	// map pack again when this many bytes were appended since last mapping
+	private static final long REMAP_SIZE = 1024 * 1024;
+
+	private static final String PACK_FILE = "%s.pack";
+	private static final String INDEX_FILE = "%s.idx";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final HashMap<String, CacheManager> caches =
+			new HashMap<String, CacheManager>();
+
+	/**
+	 * Open the shared cache for a tile source. Each call must be balanced by
+	 * a call to release().
+	 * @param dir
+	 *            directory containing the cache files
+	 * @param source
+	 *            name of the tile source, used as file name
+	 * @param maxBytes
+	 *            budget for cached tile data
+	 * @return the cache
+	 * @throws IOException
+	 *             when the cache files cannot be opened
+	 */
+	public static CacheManager open(File dir, String source, long maxBytes)
+			throws IOException {
+
+		String name = source.replaceAll("[^a-zA-Z0-9_.-]", "_");
+		File packFile = new File(dir, String.format(PACK_FILE, name));
+
+		synchronized (caches) {
+			String path = packFile.getAbsolutePath();
+			CacheManager cache = caches.get(path);
+			if (cache == null) {
+				cache = new CacheManager(packFile,
+						new File(dir, String.format(INDEX_FILE, name)),
+						maxBytes);
+				caches.put(path, cache);
+			}
+			cache.mRefs++;
+			return cache;
+		}
+	}
+
+	/**
+	 * @return key for tile with zoom-level, x and y packed into a long.
+	 */
+	public static long key(int zoomLevel, int tileX, int tileY) {
+		return ((long) zoomLevel << 58) | ((long) tileX << 29) | tileY;
+	}
+
+	static final class Entry {
+		long offset;
+		int length;
+
+		Entry(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File mPackFile;
+	private final File mIndexFile;
+	private final long mMaxBytes;
+
+	// guards mChannel, write lock is only taken to replace the pack
+	private final ReentrantReadWriteLock mFileLock = new ReentrantReadWriteLock();
+	private RandomAccessFile mPack;
+	private FileChannel mChannel;
+	// read-only mapping of the pack, guarded by 'this' and mFileLock
+	private MappedByteBuffer mMapped;
+
+	// serializes appending records, so that a failed record is at the end
+	// of the pack and can be truncated
+	private final Object mAppendLock = new Object();
+
+	// serializes writing the index file
+	private final Object mIndexLock = new Object();
+
+	// fields below are guarded by 'this'
+	private final LinkedHashMap<Long, Entry> mEntries =
+			new LinkedHashMap<Long, Entry>(1024, 0.75f, true);
+
+	private long mGeneration;
+	// end of pack, position of next record
+	private long mPackSize;
+	// end of the part of the pack covered by the last written index
+	private long mIndexedSize;
+	// a record after mIndexedSize was removed, it must not be recovered
+	private boolean mIndexDirty;
+	// bytes of records in index
+	private long mLiveBytes;
+	// bytes of unused records
+	private long mDeadBytes;
+
+	private int mPutsSinceIndex;
+	private int mRefs;
+
+	private int mHits;
+	private int mMisses;
+	private int mEvictions;
+
+	private CacheManager(File packFile, File indexFile, long maxBytes)
+			throws IOException {
+		mPackFile = packFile;
+		mIndexFile = indexFile;
+		mMaxBytes = maxBytes;
+
+		openPack();
+	}
+
+	/**
+	 * Decrement reference count, the cache is closed when it reaches zero.
+	 */
+	public void release() {
+		synchronized (caches) {
+			if (--mRefs > 0)
+				return;
+
+			caches.remove(mPackFile.getAbsolutePath());
+		}
+
+		writeIndex();
+
+		mFileLock.writeLock().lock();
+		try {
+			closePack();
+		} finally {
+			mFileLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param tile
+	 *            the tile
+	 * @return cached data of tile, from position to limit, or null when not
+	 *         in cache. The buffer may be a slice of the mapped pack, it stays
+	 *         valid when the pack is compacted or closed.
+	 */
+	public ByteBuffer get(Tile tile) {
+		long key = key(tile.zoomLevel, tile.tileX, tile.tileY);
+		ByteBuffer data = null;
+		long offset = 0;
+		int length;
+
+		mFileLock.readLock().lock();
+		try {
+			synchronized (this) {
+				Entry e = mEntries.get(Long.valueOf(key));
+				if (e == null || mChannel == null) {
+					mMisses++;
+					return null;
+				}
+				offset = e.offset;
+				length = e.length;
+			}
+
+			MappedByteBuffer map = mapped(offset + RECORD_HEADER_SIZE + length);
+			if (map != null)
+				data = readRecord(map, offset, key, length);
+			else
+				data = readRecord(mChannel, offset, key, length);
+
+		} catch (IOException e) {
+			Log.d(TAG, "read failed " + tile + ": " + e.getMessage());
+		} finally {
+			mFileLock.readLock().unlock();
+		}
+
+		synchronized (this) {
+			if (data == null) {
+				Log.d(TAG, "invalid record " + tile);
+				Entry e = mEntries.get(Long.valueOf(key));
+				// unless it was replaced meanwhile
+				if (e != null && e.offset == offset) {
+					mEntries.remove(Long.valueOf(key));
+					removed(e);
+				}
+				mMisses++;
+				return null;
+			}
+			mHits++;
+		}
+
+		return data;
+	}
+
+	/**
+	 * @param tile
+	 *            the tile
+	 * @param data
+	 *            tile data
+	 * @param length
+	 *            number of bytes in data
+	 */
+	public void put(Tile tile, byte[] data, int length) {
+		if (length <= 0 || length > MAX_TILE_SIZE)
+			return;
+
+		long key = key(tile.zoomLevel, tile.tileX, tile.tileY);
+		int recordSize = RECORD_HEADER_SIZE + length;
+
+		ByteBuffer record = ByteBuffer.allocate(recordSize);
+		record.putInt(RECORD_MAGIC);
+		record.putLong(key);
+		record.putInt(length);
+		record.putInt(crc(data, 0, length));
+		record.put(data, 0, length);
+		record.flip();
+
+		boolean writeIndex = false;
+
+		mFileLock.readLock().lock();
+		try {
+			if (mChannel == null)
+				return;
+
+			long offset;
+			boolean written = false;
+			synchronized (mAppendLock) {
+				synchronized (this) {
+					offset = mPackSize;
+					mPackSize += recordSize;
+				}
+
+				try {
+					while (record.hasRemaining())
+						mChannel.write(record, offset + record.position());
+					written = true;
+				} catch (IOException e) {
+					Log.d(TAG, "write failed " + tile + ": " + e.getMessage());
+					// when the partial record remains in the pack, write the
+					// index past it so that recover() does not start before it
+					writeIndex = !rollback(offset);
+				}
+			}
+
+			synchronized (this) {
+				if (!written) {
+					if (writeIndex) {
+						mDeadBytes += recordSize;
+						mPutsSinceIndex = 0;
+					}
+				} else {
+					// add to index only after the record is complete
+					Entry e = mEntries.put(Long.valueOf(key), new Entry(offset, length));
+					if (e != null)
+						removed(e);
+
+					mLiveBytes += recordSize;
+
+					evict();
+
+					if (++mPutsSinceIndex >= INDEX_WRITE_INTERVAL || mIndexDirty) {
+						mPutsSinceIndex = 0;
+						writeIndex = true;
+					}
+				}
+			}
+		} finally {
+			mFileLock.readLock().unlock();
+		}
+
+		if (needsCompaction())
+			compact();
+		else if (writeIndex)
+			writeIndex();
+	}
+
+	/**
+	 * Drop a partially written record at the end of the pack. Otherwise
+	 * recover() would stop at it and truncate the records appended after
+	 * it. Must hold mAppendLock and read lock of mFileLock.
+	 * @return false when the pack could not be truncated
+	 */
+	private boolean rollback(long offset) {
+		try {
+			if (mChannel.size() > offset)
+				mChannel.truncate(offset);
+		} catch (IOException e) {
+			Log.d(TAG, "cannot truncate pack: " + e.getMessage());
+			return false;
+		}
+
+		synchronized (this) {
+			mPackSize = offset;
+			// the mapping may include the dropped part
+			if (mMapped != null && mMapped.capacity() > offset)
+				mMapped = null;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true when tile is in cache. Does not count as use of the tile.
+	 */
+	public synchronized boolean contains(Tile tile) {
+		long key = key(tile.zoomLevel, tile.tileX, tile.tileY);
+		return mEntries.containsKey(Long.valueOf(key));
+	}
+
+	/**
+	 * Remove tile from cache, e.g. when its data could not be decoded. The
+	 * index is written at once, so that the tile is not read again from a
+	 * previous index after a crash.
+	 */
+	public void remove(Tile tile) {
+		long key = key(tile.zoomLevel, tile.tileX, tile.tileY);
+
+		synchronized (this) {
+			Entry e = mEntries.remove(Long.valueOf(key));
+			if (e == null)
+				return;
+
+			removed(e);
+		}
+		writeIndex();
+	}
+
+	/**
+	 * @return a TileWriter to pass the data of a tile while it is loaded.
+	 */
+	public TileWriter writer() {
+		return new TileWriter(this);
+	}
+
+	/**
+	 * Collects the data of one tile at a time and puts it into the cache
+	 * when complete. Not thread-safe, use one per thread.
+	 */
+	public static final class TileWriter extends OutputStream {
+		private final CacheManager mCache;
+		private byte[] mBuffer = new byte[65536];
+		private int mLength;
+		private Tile mTile;
+
+		TileWriter(CacheManager cache) {
+			mCache = cache;
+		}
+
+		public void begin(Tile tile) {
+			mTile = tile;
+			mLength = 0;
+		}
+
+		@Override
+		public void write(int b) {
+			if (mTile == null)
+				return;
+			ensureCapacity(mLength + 1);
+			mBuffer[mLength++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (mTile == null)
+				return;
+			ensureCapacity(mLength + len);
+			System.arraycopy(b, off, mBuffer, mLength, len);
+			mLength += len;
+		}
+
+		/**
+		 * @param success
+		 *            whether tile was loaded completely and should be stored
+		 */
+		public void finish(boolean success) {
+			if (mTile != null && success)
+				mCache.put(mTile, mBuffer, mLength);
+
+			mTile = null;
+			mLength = 0;
+		}
+
+		private void ensureCapacity(int size) {
+			if (size <= mBuffer.length)
+				return;
+
+			int capacity = mBuffer.length;
+			while (capacity < size)
+				capacity <<= 1;
+
+			byte[] tmp = new byte[capacity];
+			System.arraycopy(mBuffer, 0, tmp, 0, mLength);
+			mBuffer = tmp;
+		}
+	}
+
+	public synchronized int getHits() {
+		return mHits;
+	}
+
+	public synchronized int getMisses() {
+		return mMisses;
+	}
+
+	public synchronized int getEvictions() {
+		return mEvictions;
+	}
+
+	/**
+	 * @return bytes currently used by cached tiles
+	 */
+	public synchronized long getSize() {
+		return mLiveBytes;
+	}
+
+	// must hold lock on 'this'
+	private void removed(Entry e) {
+		int size = RECORD_HEADER_SIZE + e.length;
+		mLiveBytes -= size;
+		mDeadBytes += size;
+
+		// recover() would add the record again after a crash
+		if (e.offset >= mIndexedSize)
+			mIndexDirty = true;
+	}
+
+	// must hold lock on 'this'
+	private void evict() {
+		Iterator<Entry> it = mEntries.values().iterator();
+		while (mLiveBytes > mMaxBytes && it.hasNext()) {
+			Entry e = it.next();
+			it.remove();
+			removed(e);
+			mEvictions++;
+		}
+	}
+
+	private synchronized boolean needsCompaction() {
+		return mDeadBytes > mLiveBytes && mPackSize > MIN_COMPACT_SIZE;
+	}
+
+	/**
+	 * Copy live records into a new pack file, ordered from least to most
+	 * recently used.
+	 */
+	private void compact() {
+		mFileLock.writeLock().lock();
+		try {
+			if (mChannel == null || !needsCompaction())
+				return;
+
+			long start = System.currentTimeMillis();
+
+			File tmpFile = new File(mPackFile.getPath() + TMP_SUFFIX);
+			RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+			FileChannel out = tmp.getChannel();
+			long generation = mGeneration + 1;
+			int cnt = 0;
+
+			synchronized (this) {
+				try {
+					tmp.setLength(0);
+					writePackHeader(out, generation);
+
+					long pos = PACK_HEADER_SIZE;
+					for (Entry e : mEntries.values()) {
+						long size = RECORD_HEADER_SIZE + e.length;
+						long done = 0;
+						while (done < size)
+							done += mChannel.transferTo(e.offset + done, size - done, out);
+
+						e.offset = pos;
+						pos += size;
+						cnt++;
+					}
+					out.force(false);
+					tmp.close();
+
+					closePack();
+
+					if (!tmpFile.renameTo(mPackFile))
+						throw new IOException("cannot rename " + tmpFile);
+
+					mPack = new RandomAccessFile(mPackFile, "rw");
+					mChannel = mPack.getChannel();
+					mGeneration = generation;
+					mPackSize = pos;
+					// the old index does not match the new generation
+					mIndexedSize = PACK_HEADER_SIZE;
+					mLiveBytes = pos - PACK_HEADER_SIZE;
+					mDeadBytes = 0;
+
+				} catch (IOException e) {
+					Log.d(TAG, "compaction failed: " + e.getMessage());
+					try {
+						tmp.close();
+					} catch (IOException ex) {
+						ex.printStackTrace();
+					}
+					tmpFile.delete();
+
+					// start over with an empty cache
+					closePack();
+					mPackFile.delete();
+					mIndexFile.delete();
+					mEntries.clear();
+					openPack();
+				}
+			}
+
+			Log.d(TAG, "compacted " + cnt + " tiles in "
+					+ (System.currentTimeMillis() - start) + "ms");
+
+		} catch (IOException e) {
+			Log.d(TAG, "cannot reopen pack: " + e.getMessage());
+			closePack();
+		} finally {
+			mFileLock.writeLock().unlock();
+		}
+
+		writeIndex();
+	}
+
+	// must hold write lock of mFileLock or be called from constructor
+	private void openPack() throws IOException {
+		boolean created = !mPackFile.exists() || mPackFile.length() < PACK_HEADER_SIZE;
+
+		mPack = new RandomAccessFile(mPackFile, "rw");
+		mChannel = mPack.getChannel();
+
+		synchronized (this) {
+			if (created) {
+				mPack.setLength(0);
+				mGeneration = System.currentTimeMillis();
+				writePackHeader(mChannel, mGeneration);
+				mEntries.clear();
+				mPackSize = PACK_HEADER_SIZE;
+				mIndexedSize = PACK_HEADER_SIZE;
+			} else {
+				ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_SIZE);
+				readFully(mChannel, header, 0);
+				if (header.getInt(0) != PACK_MAGIC) {
+					Log.d(TAG, "invalid pack file " + mPackFile);
+					closePack();
+					mPackFile.delete();
+					openPack();
+					return;
+				}
+				mGeneration = header.getLong(4);
+
+				long scanFrom = PACK_HEADER_SIZE;
+				long indexed = readIndex();
+				if (indexed > 0)
+					scanFrom = indexed;
+				else
+					mEntries.clear();
+
+				mPackSize = recover(scanFrom);
+				mIndexedSize = scanFrom;
+			}
+
+			mLiveBytes = 0;
+			for (Entry e : mEntries.values())
+				mLiveBytes += RECORD_HEADER_SIZE + e.length;
+
+			mDeadBytes = mPackSize - PACK_HEADER_SIZE - mLiveBytes;
+
+			evict();
+		}
+
+		Log.d(TAG, "opened " + mPackFile + ": " + mEntries.size() + " tiles, "
+				+ mLiveBytes / 1024 + "kb");
+	}
+
+	/**
+	 * @return mapping of the pack which contains bytes up to 'end' or null
+	 *         when these are read from the channel. Must hold read lock of
+	 *         mFileLock.
+	 */
+	private synchronized MappedByteBuffer mapped(long end) throws IOException {
+		if (mMapped != null && end <= mMapped.capacity())
+			return mMapped;
+
+		// not mPackSize, which includes records being written
+		long size = mChannel.size();
+
+		// do not map again for each record appended since last mapping
+		if (mMapped != null && size - mMapped.capacity() < REMAP_SIZE)
+			return null;
+
+		if (size > Integer.MAX_VALUE)
+			return null;
+
+		mMapped = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+		return end <= size ? mMapped : null;
+	}
+
+	private void closePack() {
+		// buffers mapped before stay valid, a mapping does not depend on
+		// its channel
+		mMapped = null;
+
+		if (mPack != null) {
+			try {
+				mPack.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		mPack = null;
+		mChannel = null;
+	}
+
+	/**
+	 * Add records following the indexed part of the pack to the index, i.e.
+	 * those written after the index was last saved. Truncate the pack after
+	 * the last complete record.
+	 * @return the new size of the pack
+	 */
+	private long recover(long pos) throws IOException {
+		long size = mChannel.size();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		int cnt = 0;
+
+		while (pos + RECORD_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(mChannel, header, pos);
+
+			long key = header.getLong(4);
+			int length = header.getInt(12);
+
+			if (header.getInt(0) != RECORD_MAGIC || length <= 0
+					|| length > MAX_TILE_SIZE
+					|| pos + RECORD_HEADER_SIZE + length > size)
+				break;
+
+			if (readRecord(mChannel, pos, key, length) == null)
+				break;
+
+			mEntries.put(Long.valueOf(key), new Entry(pos, length));
+			pos += RECORD_HEADER_SIZE + length;
+			cnt++;
+		}
+
+		if (pos != size) {
+			Log.d(TAG, "truncate pack " + size + " -> " + pos);
+			mChannel.truncate(pos);
+		}
+		if (cnt > 0)
+			Log.d(TAG, "recovered " + cnt + " tiles");
+
+		return pos;
+	}
+
+	/**
+	 * @return the size of the pack covered by the index, or 0 when the index
+	 *         is missing or does not belong to the current pack.
+	 */
+	private long readIndex() {
+		if (!mIndexFile.exists())
+			return 0;
+
+		mEntries.clear();
+
+		RandomAccessFile f = null;
+		try {
+			f = new RandomAccessFile(mIndexFile, "r");
+			long length = f.length();
+			if (length < INDEX_HEADER_SIZE + 4 || length > Integer.MAX_VALUE)
+				return 0;
+
+			byte[] data = new byte[(int) length];
+			f.readFully(data);
+
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			int cnt = buf.getInt(20);
+			if (buf.getInt(0) != INDEX_MAGIC
+					|| buf.getLong(4) != mGeneration
+					|| length != INDEX_HEADER_SIZE + cnt * INDEX_ENTRY_SIZE + 4
+					|| buf.getInt((int) length - 4) != crc(data, 0, (int) length - 4))
+				return 0;
+
+			long packSize = buf.getLong(12);
+			if (packSize > mChannel.size())
+				return 0;
+
+			buf.position(INDEX_HEADER_SIZE);
+			for (int i = 0; i < cnt; i++) {
+				long key = buf.getLong();
+				long offset = buf.getLong();
+				int len = buf.getInt();
+				if (offset < PACK_HEADER_SIZE || offset + len > packSize) {
+					mEntries.clear();
+					return 0;
+				}
+				mEntries.put(Long.valueOf(key), new Entry(offset, len));
+			}
+			return packSize;
+
+		} catch (IOException e) {
+			Log.d(TAG, "cannot read index: " + e.getMessage());
+			mEntries.clear();
+			return 0;
+		} finally {
+			if (f != null) {
+				try {
+					f.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write index to a temporary file which then replaces the previous
+	 * index, so that there is always a valid index. The index covers the
+	 * pack up to the current write position: records before it which are
+	 * not in the index were evicted or removed, only those after it are
+	 * recovered when the pack is opened again.
+	 */
+	private void writeIndex() {
+		synchronized (mIndexLock) {
+			byte[] data;
+			long packSize;
+			long generation;
+
+			synchronized (this) {
+				if (mChannel == null)
+					return;
+
+				int cnt = mEntries.size();
+				data = new byte[INDEX_HEADER_SIZE + cnt * INDEX_ENTRY_SIZE + 4];
+				ByteBuffer buf = ByteBuffer.wrap(data);
+				buf.putInt(INDEX_MAGIC);
+				buf.putLong(mGeneration);
+
+				// records being written are not in mEntries yet, they are
+				// dropped after a restart
+				packSize = mPackSize;
+				generation = mGeneration;
+				mIndexDirty = false;
+				buf.putLong(packSize);
+				buf.putInt(cnt);
+
+				// least recently used first
+				for (Map.Entry<Long, Entry> e : mEntries.entrySet()) {
+					buf.putLong(e.getKey().longValue());
+					buf.putLong(e.getValue().offset);
+					buf.putInt(e.getValue().length);
+				}
+				buf.putInt(crc(data, 0, data.length - 4));
+			}
+
+			File tmpFile = new File(mIndexFile.getPath() + TMP_SUFFIX);
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(tmpFile);
+				out.write(data);
+				out.getFD().sync();
+				out.close();
+				out = null;
+
+				if (!tmpFile.renameTo(mIndexFile))
+					throw new IOException("cannot rename " + tmpFile);
+
+				synchronized (this) {
+					// unless the pack was compacted meanwhile
+					if (generation == mGeneration)
+						mIndexedSize = packSize;
+				}
+
+			} catch (IOException e) {
+				Log.d(TAG, "cannot write index: " + e.getMessage());
+				synchronized (this) {
+					mIndexDirty = true;
+				}
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	private static void writePackHeader(FileChannel channel, long generation)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_SIZE);
+		header.putInt(PACK_MAGIC);
+		header.putLong(generation);
+		header.flip();
+
+		// leaves channel positioned after the header
+		channel.position(0);
+		while (header.hasRemaining())
+			channel.write(header);
+	}
+
+	/**
+	 * @return data of the record at offset or null if the record does not
+	 *         match key, length or checksum.
+	 */
+	private static ByteBuffer readRecord(FileChannel channel, long offset, long key,
+			int length) throws IOException {
+
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		readFully(channel, buf, offset);
+
+		return checkRecord(buf, 0, key, length);
+	}
+
+	/**
+	 * @return slice of the record data in the mapped pack or null if the
+	 *         record does not match key, length or checksum.
+	 */
+	private static ByteBuffer readRecord(MappedByteBuffer map, long offset, long key,
+			int length) {
+		return checkRecord(map.duplicate(), (int) offset, key, length);
+	}
+
+	private static ByteBuffer checkRecord(ByteBuffer buf, int pos, long key, int length) {
+		if (buf.getInt(pos) != RECORD_MAGIC || buf.getLong(pos + 4) != key
+				|| buf.getInt(pos + 12) != length)
+			return null;
+
+		int crc = buf.getInt(pos + 16);
+
+		buf.limit(pos + RECORD_HEADER_SIZE + length);
+		buf.position(pos + RECORD_HEADER_SIZE);
+		ByteBuffer data = buf.slice();
+
+		if (crc != crc(data))
+			return null;
+
+		return data;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long offset)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, offset + buf.position()) < 0)
+				throw new IOException("unexpected end of file");
+		}
+		buf.flip();
+	}
+
+	private static int crc(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+
+	// crc of the bytes from position to limit, position is not changed
+	private static int crc(ByteBuffer data) {
+		if (data.hasArray())
+			return crc(data.array(), data.arrayOffset() + data.position(),
+					data.remaining());
+
+		CRC32 crc = new CRC32();
+		byte[] tmp = new byte[Math.min(data.remaining(), 4096)];
+		ByteBuffer buf = data.duplicate();
+		while (buf.hasRemaining()) {
+			int len = Math.min(buf.remaining(), tmp.length);
+			buf.get(tmp, 0, len);
+			crc.update(tmp, 0, len);
+		}
+		return (int) crc.getValue();
+	}
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+
+/**
+ * Pool of keep-alive connections to one tile server, shared by the
+ * IMapDatabase instances of all MapWorkers. A connection is borrowed while
+ * responses are pending on it and released when it is idle, so the number
+ * of sockets does not depend on the number of workers.
+ */
+public final class ConnectionPool {
+	// one for each network MapWorker, see TileExecutor
+	private static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+	// close connections idle for longer than this
+	private static final long IDLE_TIMEOUT = 10000;
+
+	// give up waiting for a connection after this
+	private static final long BORROW_TIMEOUT = 10000;
+
+	private static final int CONNECT_TIMEOUT = 30000;
+
+	private static final HashMap<String, ConnectionPool> pools =
+			new HashMap<String, ConnectionPool>();
+
+	/**
+	 * @return the shared pool for connections to host:port
+	 */
+	public static ConnectionPool get(String host, int port) {
+		String key = host + ":" + port;
+
+		synchronized (pools) {
+			ConnectionPool pool = pools.get(key);
+			if (pool == null) {
+				pool = new ConnectionPool(host, port);
+				pools.put(key, pool);
+			}
+			return pool;
+		}
+	}
+
+	public static final class Connection {
+		public final Socket socket;
+		public final InputStream in;
+		public final OutputStream out;
+
+		/**
+		 * number of requests the server is expected to accept on this
+		 * connection, to be updated by the borrower.
+		 */
+		public int requestsLeft;
+
+		long lastUse;
+
+		Connection(Socket socket, int requests) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			this.requestsLeft = requests;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private final String mHost;
+	private final int mPort;
+	private InetSocketAddress mSockAddr;
+
+	private final ArrayList<Connection> mIdle = new ArrayList<Connection>();
+
+	private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+	// connections borrowed, idle or being connected
+	private int mOpen;
+
+	private int mConnects;
+	private int mBorrows;
+	private int mReuses;
+	private int mEvictions;
+
+	private ConnectionPool(String host, int port) {
+		mHost = host;
+		mPort = port;
+	}
+
+	/**
+	 * @param max
+	 *            maximum number of connections open at the same time.
+	 */
+	public synchronized void setMaxConnections(int max) {
+		mMaxConnections = Math.max(1, max);
+		notifyAll();
+	}
+
+	/**
+	 * Get an idle connection or open a new one, waits when the maximum
+	 * number of connections is open.
+	 * @param reuse
+	 *            false to skip idle connections, e.g. when a request
+	 *            failed on a reused one.
+	 * @param requests
+	 *            requests expected to be accepted on a new connection
+	 * @return the connection
+	 * @throws IOException
+	 *             when no connection could be established
+	 */
+	public Connection borrow(boolean reuse, int requests) throws IOException {
+		long deadline = SystemClock.elapsedRealtime() + BORROW_TIMEOUT;
+
+		synchronized (this) {
+			mBorrows++;
+
+			while (true) {
+				evictIdle();
+
+				if (reuse) {
+					Connection c = takeIdle();
+					if (c != null) {
+						mReuses++;
+						return c;
+					}
+				} else if (mOpen >= mMaxConnections && !mIdle.isEmpty()) {
+					// make room for a new connection
+					mIdle.remove(0).close();
+					mOpen--;
+				}
+
+				if (mOpen < mMaxConnections)
+					break;
+
+				long wait = deadline - SystemClock.elapsedRealtime();
+				if (wait <= 0)
+					throw new IOException("no connection available");
+
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted");
+				}
+			}
+
+			// reserve slot, connect without holding the lock
+			mOpen++;
+			mConnects++;
+
+			if (mSockAddr == null)
+				mSockAddr = new InetSocketAddress(mHost, mPort);
+		}
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(mSockAddr, CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+
+			return new Connection(socket, requests);
+
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+				// ignore
+			}
+
+			synchronized (this) {
+				mOpen--;
+				notifyAll();
+				// address may have changed, e.g. on network change
+				mSockAddr = null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Return a connection without pending responses to the pool.
+	 */
+	public synchronized void release(Connection c) {
+		if (c.requestsLeft <= 0 || c.socket.isClosed()) {
+			c.close();
+			mOpen--;
+		} else {
+			c.lastUse = SystemClock.elapsedRealtime();
+			mIdle.add(c);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Close a borrowed connection, e.g. after a failure.
+	 */
+	public synchronized void discard(Connection c) {
+		c.close();
+		mOpen--;
+		notifyAll();
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	public synchronized void clear() {
+		for (int i = 0, n = mIdle.size(); i < n; i++)
+			mIdle.get(i).close();
+
+		mOpen -= mIdle.size();
+		mIdle.clear();
+		notifyAll();
+	}
+
+	// most recently used idle connection which passes the health check
+	private Connection takeIdle() {
+		while (!mIdle.isEmpty()) {
+			Connection c = mIdle.remove(mIdle.size() - 1);
+
+			if (isHealthy(c))
+				return c;
+
+			c.close();
+			mOpen--;
+			mEvictions++;
+		}
+		return null;
+	}
+
+	private static boolean isHealthy(Connection c) {
+		Socket s = c.socket;
+		if (s.isClosed() || !s.isConnected() || s.isInputShutdown()
+				|| s.isOutputShutdown())
+			return false;
+
+		try {
+			// an idle connection should not have anything to read,
+			// otherwise the server probably closed it.
+			return c.in.available() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void evictIdle() {
+		long now = SystemClock.elapsedRealtime();
+
+		// idle connections are ordered by last use
+		while (!mIdle.isEmpty() && now - mIdle.get(0).lastUse > IDLE_TIMEOUT) {
+			mIdle.remove(0).close();
+			mOpen--;
+			mEvictions++;
+		}
+	}
+
+	/**
+	 * @return number of connections opened.
+	 */
+	public synchronized int getConnectCount() {
+		return mConnects;
+	}
+
+	/**
+	 * @return number of connections borrowed.
+	 */
+	public synchronized int getBorrowCount() {
+		return mBorrows;
+	}
+
+	/**
+	 * @return ratio of borrowed connections that were reused.
+	 */
+	public synchronized float getReuseRatio() {
+		return mBorrows == 0 ? 0 : (float) mReuses / mBorrows;
+	}
+
+	/**
+	 * @return number of idle connections closed by timeout or health check.
+	 */
+	public synchronized int getEvictionCount() {
+		return mEvictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return mHost + ":" + mPort + " open:" + mOpen + " idle:" + mIdle.size()
+				+ " connects:" + mConnects + " borrows:" + mBorrows
+				+ " reuse:" + (mBorrows == 0 ? 0 : mReuses * 100 / mBorrows) + "%";
+	}
+}
@@ -14,6 +14,8 @@
  */
 package org.oscim.database;
 
+import java.util.BitSet;
+
 import org.oscim.core.Tag;
 import org.oscim.database.mapfile.MapDatabase;
 
@@ -68,4 +70,21 @@ public interface IMapDatabaseCallback {
 	 */
 	boolean checkWay(Tag[] tags, boolean closed);
 
+	/**
+	 * Select the tags of a tag table that are required to render an element
+	 * of the current tile, so that other elements can be skipped before
+	 * their tags and strings are decoded.
+	 * 
+	 * @param tags
+	 *            the tag table of the map file
+	 * @param way
+	 *            true for the way tag table, false for POIs
+	 * @param captions
+	 *            select the tags of elements that can be labeled with their
+	 *            name instead
+	 * @return bit i is set when an element with tags[i] may be rendered, or
+	 *         null when any element may be rendered
+	 */
+	BitSet getTagFilter(Tag[] tags, boolean way, boolean captions);
+
 }
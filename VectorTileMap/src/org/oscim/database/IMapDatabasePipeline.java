@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database;
+
+import org.oscim.generator.JobTile;
+
+/**
+ * Implemented by IMapDatabases which can request tiles before they are
+ * queried, e.g. by pipelining HTTP requests.
+ */
+public interface IMapDatabasePipeline {
+
+	/**
+	 * @return maximum number of tiles that should be requested ahead,
+	 *         including the one queried next.
+	 */
+	public abstract int getPipelineDepth();
+
+	/**
+	 * Request tile ahead. executeQuery() should be called for prefetched
+	 * tiles in the same order. Tiles which are not queried are skipped.
+	 * 
+	 * @param tile
+	 *            the tile to request.
+	 */
+	public abstract void prefetch(JobTile tile);
+}
@@ -31,14 +31,31 @@ public enum MapDatabases {
 	/**
 	 * ...
 	 */
-	POSTGIS_READER,
+	POSTGIS_READER(true),
 
 	/**
 	 * ...
 	 */
-	PBMAP_READER,
+	PBMAP_READER(true),
 	/**
 	 * ...
 	 */
-	OSCIMAP_READER,
+	OSCIMAP_READER(true);
+
+	private final boolean mNetworkBound;
+
+	private MapDatabases() {
+		this(false);
+	}
+
+	private MapDatabases(boolean networkBound) {
+		mNetworkBound = networkBound;
+	}
+
+	/**
+	 * @return true when loading tiles mostly waits for a server
+	 */
+	public boolean isNetworkBound() {
+		return mNetworkBound;
+	}
 }
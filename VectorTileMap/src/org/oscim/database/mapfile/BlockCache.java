@@ -0,0 +1,305 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.oscim.core.Tag;
+import org.oscim.database.IMapDatabaseCallback;
+
+/**
+ * LRU cache of decoded blocks, limited by an estimate of their size in
+ * bytes. A block is queried for each tile it covers on zoom levels above
+ * its base zoom level. With the cache it is decoded once for the first of
+ * these tiles, the others only filter its elements by zoom level and tile
+ * bitmask. Queries on other zoom levels use cached blocks, but do not add
+ * them.
+ * <p>
+ * The cache is shared by all MapDatabase instances, Blocks are not
+ * modified after put().
+ */
+class BlockCache {
+	private final LinkedHashMap<Long, Block> mBlocks;
+	private final long mMaxBytes;
+	private long mBytes;
+
+	// statistics
+	private long mHits;
+	private long mMisses;
+	private long mDecodeTime;
+	private long mSavedTime;
+
+	/**
+	 * @param maxBytes
+	 *            estimated size of decoded blocks to keep
+	 */
+	BlockCache(long maxBytes) {
+		mMaxBytes = maxBytes;
+		mBlocks = new LinkedHashMap<Long, Block>(64, 0.75f, true);
+	}
+
+	/**
+	 * @param file
+	 *            id of the MapFile
+	 * @param position
+	 *            position of the block in the file, less than 2^40
+	 * @return the key of the block
+	 */
+	static long key(int file, long position) {
+		return ((long) file << 40) | position;
+	}
+
+	/**
+	 * @param key
+	 *            the key of the block
+	 * @return the decoded block or null
+	 */
+	synchronized Block get(long key) {
+		Block b = mBlocks.get(Long.valueOf(key));
+		if (b == null) {
+			mMisses++;
+			return null;
+		}
+		mHits++;
+		return b;
+	}
+
+	/**
+	 * @param block
+	 *            a block returned by get()
+	 * @param ways
+	 *            number of ways passed to the callback from the block.
+	 *            Without the cache only these would have been decoded.
+	 */
+	synchronized void addSavedTime(Block block, int ways) {
+		if (block.wayCount > 0)
+			mSavedTime += block.decodeTime * ways / block.wayCount;
+	}
+
+	synchronized void put(long key, Block block) {
+		mDecodeTime += block.decodeTime;
+
+		if (block.bytes > mMaxBytes)
+			return;
+
+		Block old = mBlocks.put(Long.valueOf(key), block);
+		if (old != null)
+			mBytes -= old.bytes;
+
+		mBytes += block.bytes;
+
+		Iterator<Block> it = mBlocks.values().iterator();
+		while (mBytes > mMaxBytes && it.hasNext()) {
+			mBytes -= it.next().bytes;
+			it.remove();
+		}
+	}
+
+	synchronized void clear() {
+		mBlocks.clear();
+		mBytes = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long queries = mHits + mMisses;
+		return "BlockCache: " + mBlocks.size() + " blocks, " + (mBytes >> 10) + "kB"
+				+ ", hit rate " + (queries == 0 ? 0 : mHits * 100 / queries) + "%"
+				+ " (" + mHits + "/" + queries + ")"
+				+ ", decode " + mDecodeTime / 1000000 + "ms"
+				+ ", saved " + mSavedTime / 1000000 + "ms";
+	}
+
+	/**
+	 * Elements of a block, decoded for the highest zoom level of its
+	 * sub-file. Ways are ordered by their index in the block, a way may
+	 * have several entries, one for each way data block.
+	 */
+	static final class Block {
+		// cumulated number of POIs and ways per zoom table row
+		int[] poisPerRow;
+		int[] waysPerRow;
+
+		int poiCount;
+		byte[] poiLayer;
+		Tag[][] poiTags;
+		float[] poiCoords;
+
+		int wayCount;
+		int[] wayIndex;
+		short[] wayBitmask;
+		byte[] wayLayer;
+		boolean[] wayClosed;
+		Tag[][] wayTags;
+		short[][] wayLengths;
+		int[] wayCoordOffset;
+
+		float[] coords;
+
+		long decodeTime;
+		int bytes;
+	}
+
+	/**
+	 * Collects the elements of a block when passed as IMapDatabaseCallback
+	 * to MapDatabase.processBlock(). Each MapDatabase keeps one Decoder, its
+	 * arrays are reused for the next block.
+	 */
+	static final class Decoder implements IMapDatabaseCallback {
+		private int poiCount;
+		private byte[] poiLayer = new byte[64];
+		private Tag[][] poiTags = new Tag[64][];
+		private float[] poiCoords = new float[128];
+
+		private int wayCount;
+		private int[] wayIndex = new int[1024];
+		private short[] wayBitmask = new short[1024];
+		private byte[] wayLayer = new byte[1024];
+		private boolean[] wayClosed = new boolean[1024];
+		private Tag[][] wayTags = new Tag[1024][];
+		private short[][] wayLengths = new short[1024][];
+		private int[] wayCoordOffset = new int[1025];
+
+		private int coordCount;
+		private float[] coords = new float[32768];
+
+		// set by MapDatabase before each renderWay()
+		int curWayIndex;
+		int curWayBitmask;
+
+		void clear() {
+			poiCount = 0;
+			wayCount = 0;
+			coordCount = 0;
+		}
+
+		@Override
+		public void renderPointOfInterest(byte layer, Tag[] tags, float latitude,
+				float longitude) {
+			int n = poiCount;
+			if (n == poiLayer.length) {
+				poiLayer = Arrays.copyOf(poiLayer, n * 2);
+				poiTags = Arrays.copyOf(poiTags, n * 2);
+				poiCoords = Arrays.copyOf(poiCoords, n * 4);
+			}
+			poiLayer[n] = layer;
+			poiTags[n] = tags;
+			poiCoords[n * 2] = latitude;
+			poiCoords[n * 2 + 1] = longitude;
+			poiCount++;
+		}
+
+		@Override
+		public void renderWay(byte layer, Tag[] tags, float[] wayNodes, short[] wayLength,
+				boolean closed) {
+			int n = wayCount;
+			if (n == wayLayer.length) {
+				wayIndex = Arrays.copyOf(wayIndex, n * 2);
+				wayBitmask = Arrays.copyOf(wayBitmask, n * 2);
+				wayLayer = Arrays.copyOf(wayLayer, n * 2);
+				wayClosed = Arrays.copyOf(wayClosed, n * 2);
+				wayTags = Arrays.copyOf(wayTags, n * 2);
+				wayLengths = Arrays.copyOf(wayLengths, n * 2);
+				wayCoordOffset = Arrays.copyOf(wayCoordOffset, n * 2 + 1);
+			}
+
+			int len = 0;
+			for (int i = 0; i < wayLength.length; i++)
+				len += wayLength[i];
+
+			if (coordCount + len > coords.length)
+				coords = Arrays.copyOf(coords, Math.max(coords.length * 2, coordCount + len));
+
+			System.arraycopy(wayNodes, 0, coords, coordCount, len);
+
+			wayIndex[n] = curWayIndex;
+			wayBitmask[n] = (short) curWayBitmask;
+			wayLayer[n] = layer;
+			wayClosed[n] = closed;
+			wayTags[n] = tags;
+			wayLengths[n] = wayLength;
+			wayCoordOffset[n] = coordCount;
+
+			coordCount += len;
+			wayCount++;
+			wayCoordOffset[wayCount] = coordCount;
+		}
+
+		@Override
+		public void renderWaterBackground() {
+		}
+
+		@Override
+		public boolean checkWay(Tag[] tags, boolean closed) {
+			return true;
+		}
+
+		@Override
+		public BitSet getTagFilter(Tag[] tags, boolean way, boolean captions) {
+			// blocks are decoded for all zoom levels and themes
+			return null;
+		}
+
+		/**
+		 * @param zoomTable
+		 *            the zoom table of the block
+		 * @return a Block with the elements collected since clear()
+		 */
+		Block getBlock(int[][] zoomTable) {
+			Block b = new Block();
+
+			int rows = zoomTable.length;
+			b.poisPerRow = new int[rows];
+			b.waysPerRow = new int[rows];
+			for (int row = 0; row < rows; row++) {
+				b.poisPerRow[row] = zoomTable[row][0];
+				b.waysPerRow[row] = zoomTable[row][1];
+			}
+
+			int p = poiCount;
+			b.poiCount = p;
+			b.poiLayer = Arrays.copyOf(poiLayer, p);
+			b.poiTags = Arrays.copyOf(poiTags, p);
+			b.poiCoords = Arrays.copyOf(poiCoords, p * 2);
+
+			int n = wayCount;
+			b.wayCount = n;
+			b.wayIndex = Arrays.copyOf(wayIndex, n);
+			b.wayBitmask = Arrays.copyOf(wayBitmask, n);
+			b.wayLayer = Arrays.copyOf(wayLayer, n);
+			b.wayClosed = Arrays.copyOf(wayClosed, n);
+			b.wayTags = Arrays.copyOf(wayTags, n);
+			b.wayLengths = Arrays.copyOf(wayLengths, n);
+			b.wayCoordOffset = Arrays.copyOf(wayCoordOffset, n + 1);
+			b.coords = Arrays.copyOf(coords, coordCount);
+
+			// array headers, elements and references, the Tag and short
+			// arrays referenced
+			b.bytes = 256 + coordCount * 4
+					+ n * (4 + 2 + 1 + 1 + 4 + 4 + 4 + 24 + 32)
+					+ p * (1 + 4 + 8 + 32);
+
+			// drop references to tags
+			Arrays.fill(poiTags, 0, p, null);
+			Arrays.fill(wayTags, 0, n, null);
+			Arrays.fill(wayLengths, 0, n, null);
+
+			return b;
+		}
+	}
+}
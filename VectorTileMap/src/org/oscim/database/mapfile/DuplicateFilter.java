@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.oscim.core.Tag;
+import org.oscim.database.IMapDatabaseCallback;
+
+/**
+ * Passes the elements of a tile from several map files to a callback and
+ * drops those that were passed for a previous file already.
+ * <p>
+ * Regional extracts contain the same elements where they overlap. Elements
+ * are compared by a 64 bit hash of layer, tags and coordinates, so ways
+ * that were clipped differently at the seam of two extracts are kept.
+ */
+final class DuplicateFilter implements IMapDatabaseCallback {
+	private IMapDatabaseCallback mCallback;
+
+	// open addressing hash set, 0 is the empty slot
+	private long[] mHashes = new long[1024];
+	private int mSize;
+
+	private boolean mCheck;
+	private boolean mAdd;
+
+	/**
+	 * Start a new query.
+	 *
+	 * @param callback
+	 *            the callback to pass the elements to
+	 */
+	void start(IMapDatabaseCallback callback) {
+		mCallback = callback;
+
+		if (mSize > 0) {
+			Arrays.fill(mHashes, 0);
+			mSize = 0;
+		}
+	}
+
+	/**
+	 * @param file
+	 *            index of the file that is queried next
+	 * @param files
+	 *            number of files queried for the tile
+	 */
+	void setFile(int file, int files) {
+		mCheck = file > 0;
+		mAdd = file < files - 1;
+	}
+
+	@Override
+	public void renderPointOfInterest(byte layer, Tag[] tags, float latitude,
+			float longitude) {
+		long h = hash(layer, tags);
+		h = h * 31 + Float.floatToIntBits(latitude);
+		h = h * 31 + Float.floatToIntBits(longitude);
+
+		if (isDuplicate(h))
+			return;
+
+		mCallback.renderPointOfInterest(layer, tags, latitude, longitude);
+	}
+
+	@Override
+	public void renderWay(byte layer, Tag[] tags, float[] wayNodes, short[] wayLength,
+			boolean closed) {
+		long h = hash(layer, tags);
+
+		int length = 0;
+		for (int i = 0; i < wayLength.length; i++) {
+			h = h * 31 + wayLength[i];
+			length += wayLength[i];
+		}
+
+		for (int i = 0; i < length; i++)
+			h = h * 31 + Float.floatToIntBits(wayNodes[i]);
+
+		if (isDuplicate(h))
+			return;
+
+		mCallback.renderWay(layer, tags, wayNodes, wayLength, closed);
+	}
+
+	@Override
+	public void renderWaterBackground() {
+		mCallback.renderWaterBackground();
+	}
+
+	@Override
+	public boolean checkWay(Tag[] tags, boolean closed) {
+		return mCallback.checkWay(tags, closed);
+	}
+
+	@Override
+	public BitSet getTagFilter(Tag[] tags, boolean way, boolean captions) {
+		return mCallback.getTagFilter(tags, way, captions);
+	}
+
+	private static long hash(byte layer, Tag[] tags) {
+		long h = layer;
+		for (int i = 0; i < tags.length; i++)
+			h = h * 31 + tags[i].hashCode();
+		return h;
+	}
+
+	private boolean isDuplicate(long hash) {
+		// spread the bits, 0 marks empty slots
+		long h = hash * 0x9E3779B97F4A7C15L;
+		if (h == 0)
+			h = 1;
+
+		if (mCheck && contains(h))
+			return true;
+
+		if (mAdd)
+			add(h);
+
+		return false;
+	}
+
+	private boolean contains(long h) {
+		long[] hashes = mHashes;
+		int mask = hashes.length - 1;
+
+		for (int i = (int) (h >>> 40) & mask; hashes[i] != 0; i = (i + 1) & mask)
+			if (hashes[i] == h)
+				return true;
+
+		return false;
+	}
+
+	private void add(long h) {
+		if (mSize * 2 >= mHashes.length)
+			grow();
+
+		long[] hashes = mHashes;
+		int mask = hashes.length - 1;
+
+		int i = (int) (h >>> 40) & mask;
+		for (; hashes[i] != 0; i = (i + 1) & mask)
+			if (hashes[i] == h)
+				return;
+
+		hashes[i] = h;
+		mSize++;
+	}
+
+	private void grow() {
+		long[] old = mHashes;
+		mHashes = new long[old.length * 2];
+		mSize = 0;
+
+		for (int i = 0; i < old.length; i++)
+			if (old[i] != 0)
+				add(old[i]);
+	}
+}
@@ -14,17 +14,31 @@
  */
 package org.oscim.database.mapfile;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.oscim.database.mapfile.header.SubFileParameter;
-import org.oscim.utils.LRUCache;
 
 /**
  * A cache for database index blocks with a fixed size and LRU policy.
+ * <p>
+ * The cache is shared by all MapDatabase instances reading the same file.
+ * It reads with its own FileChannel at absolute positions, so that no
+ * seek position is shared between threads. Entries are kept in SEGMENTS
+ * segments, each with its own LRU order, and are keyed by the file
+ * position of the index block.
+ * <p>
+ * A FileChannel is closed when a thread is interrupted while reading from
+ * it. TileExecutor waits for its MapWorkers to pause before interrupting
+ * them, other threads may not, so the channel is reopened when it was
+ * closed that way.
  */
 class IndexCache {
 	/**
@@ -39,33 +53,159 @@ class IndexCache {
 	 */
 	private static final int SIZE_OF_INDEX_BLOCK = INDEX_ENTRIES_PER_BLOCK * SubFileParameter.BYTES_PER_INDEX_ENTRY;
 
-	private final Map<IndexCacheEntryKey, byte[]> map;
-	private final RandomAccessFile randomAccessFile;
+	private static final int SEGMENT_BITS = 3;
+	private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+	private static final class Entry {
+		final long key;
+		final byte[] block;
+		int lastUse;
+
+		Entry(long key, byte[] block) {
+			this.key = key;
+			this.block = block;
+		}
+	}
+
+	/**
+	 * Index blocks of one segment. Segments are small, lookup and eviction
+	 * scan the entries. Lookups take no lock: entries are immutable but for
+	 * lastUse, which is updated racily as it only approximates LRU order.
+	 * A lookup that misses an entry just added reads the block once more.
+	 */
+	private static final class Segment {
+		final Entry[] entries;
+		int clock;
+
+		Segment(int capacity) {
+			entries = new Entry[capacity];
+		}
+
+		byte[] get(long key) {
+			Entry[] e = entries;
+			for (int i = 0; i < e.length; i++) {
+				Entry entry = e[i];
+				if (entry != null && entry.key == key) {
+					entry.lastUse = ++clock;
+					return entry.block;
+				}
+			}
+			return null;
+		}
+
+		synchronized byte[] put(long key, byte[] block) {
+			Entry[] e = entries;
+			int slot = -1;
+
+			for (int i = 0; i < e.length; i++) {
+				Entry entry = e[i];
+				if (entry == null) {
+					if (slot < 0)
+						slot = i;
+					continue;
+				}
+				// added by another thread meanwhile
+				if (entry.key == key)
+					return entry.block;
+			}
+
+			if (slot < 0) {
+				// replace the least recently used block
+				slot = 0;
+				for (int i = 1; i < e.length; i++)
+					if (e[i].lastUse - e[slot].lastUse < 0)
+						slot = i;
+			}
+
+			Entry entry = new Entry(key, block);
+			entry.lastUse = ++clock;
+			e[slot] = entry;
+
+			return block;
+		}
+
+		synchronized void clear() {
+			for (int i = 0; i < entries.length; i++)
+				entries[i] = null;
+		}
+	}
+
+	private final Segment[] mSegments;
+	private final File mPath;
+
+	// replaced by reopen(), guarded by this
+	private RandomAccessFile mFile;
+	private volatile FileChannel mChannel;
+	private boolean mDestroyed;
 
 	/**
-	 * @param randomAccessFile
+	 * @param file
 	 *            the map file from which the index should be read and cached.
 	 * @param capacity
 	 *            the maximum number of entries in the cache.
+	 * @throws IOException
+	 *             if the file cannot be opened.
 	 * @throws IllegalArgumentException
 	 *             if the capacity is negative.
 	 */
-	IndexCache(RandomAccessFile randomAccessFile, int capacity) {
-		this.randomAccessFile = randomAccessFile;
-		this.map = new LRUCache<IndexCacheEntryKey, byte[]>(capacity);
+	IndexCache(File file, int capacity) throws IOException {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+
+		int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+
+		mSegments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			mSegments[i] = new Segment(segmentCapacity);
+
+		mPath = file;
+		mFile = new RandomAccessFile(file, "r");
+		mChannel = mFile.getChannel();
 	}
 
 	/**
 	 * Destroy the cache at the end of its lifetime.
 	 */
-	void destroy() {
-		this.map.clear();
+	synchronized void destroy() {
+		for (Segment s : mSegments)
+			s.clear();
+
+		mDestroyed = true;
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, null, e);
+		}
 	}
 
 	/**
-	 * Returns the index entry of a block in the given map file. If the required index entry is not cached, it will be
-	 * read from the map file index and put in the cache.
+	 * Open a new channel when 'closed' is still the current one.
 	 * 
+	 * @return the current channel or null when it cannot be opened
+	 */
+	private synchronized FileChannel reopen(FileChannel closed) {
+		if (mDestroyed)
+			return null;
+
+		if (mChannel != closed)
+			return mChannel;
+
+		LOG.warning("reopen " + mPath + " closed by interrupt");
+		try {
+			mFile.close();
+			mFile = new RandomAccessFile(mPath, "r");
+			mChannel = mFile.getChannel();
+		} catch (IOException e) {
+			LOG.log(Level.SEVERE, null, e);
+			return null;
+		}
+		return mChannel;
+	}
+
+	/**
+	 * Returns the index entry of a block in the given map file. If the required index entry is not cached, it will be
+	 * read from the map file index and put in the cache. May be called concurrently.
+	 *
 	 * @param subFileParameter
 	 *            the parameters of the map file for which the index entry is needed.
 	 * @param blockNumber
@@ -73,47 +213,73 @@ class IndexCache {
 	 * @return the index entry or -1 if the block number is invalid.
 	 */
 	long getIndexEntry(SubFileParameter subFileParameter, long blockNumber) {
-		try {
-			// check if the block number is out of bounds
-			if (blockNumber >= subFileParameter.numberOfBlocks) {
+		// check if the block number is out of bounds
+		if (blockNumber >= subFileParameter.numberOfBlocks) {
+			return -1;
+		}
+
+		// calculate the index block number
+		long indexBlockNumber = blockNumber / INDEX_ENTRIES_PER_BLOCK;
+
+		// the position in the file identifies the index block
+		long indexBlockPosition = subFileParameter.indexStartAddress + indexBlockNumber * SIZE_OF_INDEX_BLOCK;
+
+		Segment segment = mSegments[(int) ((indexBlockPosition * 0x9E3779B97F4A7C15L) >>> (64 - SEGMENT_BITS))];
+
+		// check for cached index block
+		byte[] indexBlock = segment.get(indexBlockPosition);
+		if (indexBlock == null) {
+			// cache miss, read the index block. this is done without lock,
+			// when two threads miss the same block the first one is kept.
+			int remainingIndexSize = (int) (subFileParameter.indexEndAddress - indexBlockPosition);
+			int indexBlockSize = Math.min(SIZE_OF_INDEX_BLOCK, remainingIndexSize);
+
+			indexBlock = readIndexBlock(indexBlockPosition, indexBlockSize);
+			if (indexBlock == null)
 				return -1;
-			}
 
-			// calculate the index block number
-			long indexBlockNumber = blockNumber / INDEX_ENTRIES_PER_BLOCK;
+			indexBlock = segment.put(indexBlockPosition, indexBlock);
+		}
 
-			// create the cache entry key for this request
-			IndexCacheEntryKey indexCacheEntryKey = new IndexCacheEntryKey(subFileParameter, indexBlockNumber);
+		// calculate the address of the index entry inside the index block
+		long indexEntryInBlock = blockNumber % INDEX_ENTRIES_PER_BLOCK;
+		int addressInIndexBlock = (int) (indexEntryInBlock * SubFileParameter.BYTES_PER_INDEX_ENTRY);
 
-			// check for cached index block
-			byte[] indexBlock = this.map.get(indexCacheEntryKey);
-			if (indexBlock == null) {
-				// cache miss, seek to the correct index block in the file and read it
-				long indexBlockPosition = subFileParameter.indexStartAddress + indexBlockNumber * SIZE_OF_INDEX_BLOCK;
+		// return the real index entry
+		return Deserializer.getFiveBytesLong(indexBlock, addressInIndexBlock);
+	}
 
-				int remainingIndexSize = (int) (subFileParameter.indexEndAddress - indexBlockPosition);
-				int indexBlockSize = Math.min(SIZE_OF_INDEX_BLOCK, remainingIndexSize);
-				indexBlock = new byte[indexBlockSize];
+	private byte[] readIndexBlock(long position, int size) {
+		byte[] indexBlock = new byte[size];
+		ByteBuffer buf = ByteBuffer.wrap(indexBlock);
+		FileChannel channel = mChannel;
 
-				this.randomAccessFile.seek(indexBlockPosition);
-				if (this.randomAccessFile.read(indexBlock, 0, indexBlockSize) != indexBlockSize) {
-					LOG.warning("reading the current index block has failed");
-					return -1;
+		while (channel != null) {
+			try {
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, position + buf.position()) < 0) {
+						LOG.warning("reading the current index block has failed");
+						return null;
+					}
 				}
+				return indexBlock;
 
-				// put the index block in the map
-				this.map.put(indexCacheEntryKey, indexBlock);
-			}
+			} catch (ClosedByInterruptException e) {
+				// this thread was interrupted, keep the channel usable for
+				// the others
+				reopen(channel);
+				return null;
 
-			// calculate the address of the index entry inside the index block
-			long indexEntryInBlock = blockNumber % INDEX_ENTRIES_PER_BLOCK;
-			int addressInIndexBlock = (int) (indexEntryInBlock * SubFileParameter.BYTES_PER_INDEX_ENTRY);
+			} catch (ClosedChannelException e) {
+				// closed by an interrupt of another thread
+				channel = reopen(channel);
+				buf.clear();
 
-			// return the real index entry
-			return Deserializer.getFiveBytesLong(indexBlock, addressInIndexBlock);
-		} catch (IOException e) {
-			LOG.log(Level.SEVERE, null, e);
-			return -1;
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, null, e);
+				return null;
+			}
 		}
+		return null;
 	}
 }
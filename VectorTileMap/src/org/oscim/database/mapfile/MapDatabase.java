@@ -17,26 +17,38 @@ package org.oscim.database.mapfile;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.oscim.core.BoundingBox;
 import org.oscim.core.MercatorProjection;
 import org.oscim.core.Tag;
 import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.database.MapInfo;
 import org.oscim.database.OpenResult;
 import org.oscim.database.QueryResult;
 import org.oscim.database.mapfile.header.MapFileHeader;
 import org.oscim.database.mapfile.header.MapFileInfo;
 import org.oscim.database.mapfile.header.SubFileParameter;
 import org.oscim.generator.JobTile;
+import org.oscim.generator.TileMetrics;
 
 import android.os.Environment;
 
 /**
  * A class for reading binary map files.
  * <p>
+ * Several files, e.g. regional extracts, can be opened at once with
+ * OPTION_MAPFILE. Queries only read the files whose bounding box overlaps
+ * the tile, elements contained in more than one of them are passed once.
+ * <p>
  * This class is not thread-safe. Each thread should use its own instance.
  * 
  * @see <a
@@ -68,11 +80,6 @@ public class MapDatabase implements IMapDatabase {
 	 */
 	private static final String DEBUG_SIGNATURE_WAY = "way signature: ";
 
-	/**
-	 * Amount of cache blocks that the index cache should store.
-	 */
-	private static final int INDEX_CACHE_SIZE = 64;
-
 	/**
 	 * Error message for an invalid first way offset.
 	 */
@@ -123,6 +130,14 @@ public class MapDatabase implements IMapDatabase {
 
 	private static final String READ_ONLY_MODE = "r";
 
+	/**
+	 * Option with the map files to open, separated by File.pathSeparator.
+	 * For a directory all files ending with MAP_FILE_EXTENSION are opened.
+	 */
+	public static final String OPTION_MAPFILE = "mapfile";
+
+	private static final String MAP_FILE_EXTENSION = ".map";
+
 	/**
 	 * Length of the debug signature at the beginning of each block.
 	 */
@@ -183,13 +198,43 @@ public class MapDatabase implements IMapDatabase {
 	 */
 	private static final int WAY_NUMBER_OF_TAGS_BITMASK = 0x0f;
 
-	private static IndexCache sDatabaseIndexCache;
-	private static MapFileHeader sMapFileHeader;
+	/**
+	 * Option to copy blocks from memory-mapped sub-files instead of reading
+	 * them with RandomAccessFile, "true" to enable.
+	 */
+	public static final String OPTION_MMAP = "mmap";
+
+	/**
+	 * Option to set the size in bytes of the cache for decoded blocks, "0"
+	 * to disable it.
+	 */
+	public static final String OPTION_BLOCK_CACHE = "blockcache";
+
+	/**
+	 * Default size of the cache for decoded blocks.
+	 */
+	private static final int BLOCK_CACHE_SIZE = 4 * 1024 * 1024;
+
+	private static BlockCache sBlockCache;
 	private static int instances = 0;
 
-	private long mFileSize;
-	private boolean mDebugFile;
+	// opened files, their bounding boxes as minLat, minLon, maxLat, maxLon
+	// in microdegrees, and RandomAccessFiles opened on first query
+	private MapFile[] mMapFiles;
+	private int[] mFileBounds;
+	private RandomAccessFile[] mInputFiles;
+	private MapInfo mMapInfo;
+
+	// files overlapping the current tile
+	private int[] mQueryFiles;
+	private DuplicateFilter mDuplicateFilter;
+
+	// file of the current query
+	private MapFile mMapFile;
+	private MapFileHeader mMapFileHeader;
 	private RandomAccessFile mInputFile;
+
+	private boolean mDebugFile;
 	private ReadBuffer mReadBuffer;
 	private String mSignatureBlock;
 	private String mSignaturePoi;
@@ -198,11 +243,24 @@ public class MapDatabase implements IMapDatabase {
 	private int mTileLongitude;
 	private int[] mIntBuffer;
 
+	// tile of the current query
+	private JobTile mTile;
+
 	private float[] mWayNodes = new float[100000];
 	private int mWayNodePosition;
 
+	// tag IDs of the current element
+	private final int[] mTagIds = new int[WAY_NUMBER_OF_TAGS_BITMASK];
+
 	private int minLat, minLon;
 
+	// zoom table of the last block read by processBlock()
+	private int[][] mZoomTable;
+	// collects blocks for the cache, is passed the way index and bitmask
+	// before renderWay(). null unless a block is being decoded.
+	private BlockCache.Decoder mDecoder;
+	private BlockCache.Decoder mDecoding;
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.oscim.map.reader.IMapDatabase#executeQuery(org.oscim.core.Tile,
@@ -210,48 +268,133 @@ public class MapDatabase implements IMapDatabase {
 	 */
 	@Override
 	public QueryResult executeQuery(JobTile tile, IMapDatabaseCallback mapDatabaseCallback) {
-		if (sMapFileHeader == null)
+		if (mMapFiles == null)
 			return QueryResult.FAILED;
 
 		if (mIntBuffer == null)
 			mIntBuffer = new int[MAXIMUM_WAY_NODES_SEQUENCE_LENGTH * 2];
 
 		mWayNodePosition = 0;
+		mTile = tile;
+
+		int numFiles = findFiles(tile);
+
+		IMapDatabaseCallback callback = mapDatabaseCallback;
+		if (numFiles > 1) {
+			// remove elements contained in several files
+			mDuplicateFilter.start(mapDatabaseCallback);
+			callback = mDuplicateFilter;
+		}
+
+		// files that returned data for the tile
+		int queried = 0;
 
 		try {
-			// prepareExecution();
-			QueryParameters queryParameters = new QueryParameters();
-			queryParameters.queryZoomLevel = sMapFileHeader
-					.getQueryZoomLevel(tile.zoomLevel);
-			// get and check the sub-file for the query zoom level
-			SubFileParameter subFileParameter = sMapFileHeader
-					.getSubFileParameter(queryParameters.queryZoomLevel);
-			if (subFileParameter == null) {
-				LOG.warning("no sub-file for zoom level: "
-						+ queryParameters.queryZoomLevel);
-				return QueryResult.FAILED;
-			}
+			for (int i = 0; i < numFiles; i++) {
+				if (mTile.isCanceled)
+					break;
+
+				if (numFiles > 1)
+					mDuplicateFilter.setFile(i, numFiles);
 
-			QueryCalculations.calculateBaseTiles(queryParameters, tile, subFileParameter);
-			QueryCalculations.calculateBlocks(queryParameters, subFileParameter);
-			processBlocks(mapDatabaseCallback, queryParameters, subFileParameter);
+				// skip files without data for the zoom level
+				if (queryFile(mQueryFiles[i], callback))
+					queried++;
+			}
 		} catch (IOException e) {
 			LOG.log(Level.SEVERE, null, e);
 			return QueryResult.FAILED;
 		}
+
+		if (numFiles > 0 && queried == 0)
+			return QueryResult.FAILED;
+
+		// blocks were passed to callback partially
+		if (tile.isCanceled)
+			return QueryResult.FAILED;
+
 		return QueryResult.SUCCESS;
 	}
 
+	/**
+	 * Finds the files whose bounding box overlaps the tile of the query.
+	 * 
+	 * @return the number of files, their indices are in mQueryFiles.
+	 */
+	private int findFiles(JobTile tile) {
+		int maxLat = (int) (MercatorProjection.tileYToLatitude(tile.tileY,
+				tile.zoomLevel) * 1000000);
+		int minLat = (int) (MercatorProjection.tileYToLatitude(tile.tileY + 1,
+				tile.zoomLevel) * 1000000);
+		int minLon = (int) (MercatorProjection.tileXToLongitude(tile.tileX,
+				tile.zoomLevel) * 1000000);
+		int maxLon = (int) (MercatorProjection.tileXToLongitude(tile.tileX + 1,
+				tile.zoomLevel) * 1000000);
+
+		int[] bounds = mFileBounds;
+		int cnt = 0;
+
+		for (int i = 0, n = mMapFiles.length; i < n; i++) {
+			int b = i * 4;
+			if (bounds[b] < maxLat && bounds[b + 2] > minLat
+					&& bounds[b + 1] < maxLon && bounds[b + 3] > minLon)
+				mQueryFiles[cnt++] = i;
+		}
+		return cnt;
+	}
+
+	/**
+	 * Query one of the opened files for the current tile.
+	 * 
+	 * @param file
+	 *            index of the file
+	 * @param mapDatabaseCallback
+	 *            the callback which handles the extracted map elements.
+	 * @return false if the file has no sub-file for the zoom level of the
+	 *         query.
+	 * @throws IOException
+	 *             if reading the file fails.
+	 */
+	private boolean queryFile(int file, IMapDatabaseCallback mapDatabaseCallback)
+			throws IOException {
+
+		if (mInputFiles[file] == null)
+			mInputFiles[file] = new RandomAccessFile(mMapFiles[file].file, READ_ONLY_MODE);
+
+		mMapFile = mMapFiles[file];
+		mMapFileHeader = mMapFile.header;
+		mInputFile = mInputFiles[file];
+		mReadBuffer.setInputFile(mInputFile);
+
+		QueryParameters queryParameters = new QueryParameters();
+		queryParameters.queryZoomLevel = mMapFileHeader
+				.getQueryZoomLevel(mTile.zoomLevel);
+		// get and check the sub-file for the query zoom level
+		SubFileParameter subFileParameter = mMapFileHeader
+				.getSubFileParameter(queryParameters.queryZoomLevel);
+		if (subFileParameter == null) {
+			LOG.warning(mMapFile.file + ": no sub-file for zoom level: "
+					+ queryParameters.queryZoomLevel);
+			return false;
+		}
+
+		QueryCalculations.calculateBaseTiles(queryParameters, mTile, subFileParameter);
+		QueryCalculations.calculateBlocks(queryParameters, subFileParameter);
+		processBlocks(mapDatabaseCallback, queryParameters, subFileParameter);
+
+		return true;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.oscim.map.reader.IMapDatabase#getMapFileInfo()
 	 */
 	@Override
-	public MapFileInfo getMapInfo() {
-		if (sMapFileHeader == null) {
+	public MapInfo getMapInfo() {
+		if (mMapInfo == null) {
 			throw new IllegalStateException("no map file is currently opened");
 		}
-		return sMapFileHeader.getMapFileInfo();
+		return mMapInfo;
 	}
 
 	@Override
@@ -265,7 +408,7 @@ public class MapDatabase implements IMapDatabase {
 	 */
 	@Override
 	public boolean isOpen() {
-		return mInputFile != null;
+		return mMapFiles != null;
 	}
 
 	/*
@@ -274,28 +417,34 @@ public class MapDatabase implements IMapDatabase {
 	 */
 	@Override
 	public OpenResult open(Map<String, String> options) {
-		// if (options == null) {
-		// options = new HashMap<String, String>(1);
-		// options.put("mapfile", "/sdcard/bremen.map");
-		// }
-		try {
-			// if (options == null || options.get("mapfile") == null) {
-			// // throw new
-			// // IllegalArgumentException("mapFile must not be null");
-			// return new OpenResult("no file!");
-			// }
-
-			// make sure to close any previously opened file first
-			close();
-
-			File file = new File(Environment.getExternalStorageDirectory().getPath()
-					+ "/bremen.map");
-
-			System.out.println("load " + file + " "
-					+ (Environment.getExternalStorageDirectory().getPath()
-					+ "/bremen.map"));
-
-			// File file = new File(options.get("mapfile"));
+		// make sure to close any previously opened file first
+		close();
+
+		String mapFiles;
+		if (options != null && options.get(OPTION_MAPFILE) != null)
+			mapFiles = options.get(OPTION_MAPFILE);
+		else
+			mapFiles = Environment.getExternalStorageDirectory().getPath()
+					+ "/bremen.map";
+
+		List<File> files = new ArrayList<File>();
+		for (String path : mapFiles.split(File.pathSeparator)) {
+			if (path.length() == 0)
+				continue;
+
+			File file = new File(path);
+
+			if (file.isDirectory()) {
+				File[] list = file.listFiles();
+				if (list == null)
+					return new OpenResult("cannot read directory: " + file);
+
+				Arrays.sort(list);
+				for (File f : list)
+					if (f.isFile() && f.getName().endsWith(MAP_FILE_EXTENSION))
+						files.add(f);
+				continue;
+			}
 
 			// check if the file exists and is readable
 			if (!file.exists()) {
@@ -305,36 +454,54 @@ public class MapDatabase implements IMapDatabase {
 			} else if (!file.canRead()) {
 				return new OpenResult("cannot read file: " + file);
 			}
+			files.add(file);
+		}
 
-			// open the file in read only mode
-			mInputFile = new RandomAccessFile(file, READ_ONLY_MODE);
-			mFileSize = mInputFile.length();
-			mReadBuffer = new ReadBuffer(mInputFile);
+		if (files.isEmpty())
+			return new OpenResult("no map file: " + mapFiles);
 
-			if (instances > 0) {
-				instances++;
-				return OpenResult.SUCCESS;
-			}
+		boolean mmap = options != null && "true".equals(options.get(OPTION_MMAP));
 
-			sMapFileHeader = new MapFileHeader();
-			OpenResult openResult = sMapFileHeader.readHeader(mReadBuffer,
-					mFileSize);
-			if (!openResult.isSuccess()) {
+		int numFiles = files.size();
+		mMapFiles = new MapFile[numFiles];
+		mFileBounds = new int[numFiles * 4];
+		mInputFiles = new RandomAccessFile[numFiles];
+		mQueryFiles = new int[numFiles];
+
+		for (int i = 0; i < numFiles; i++) {
+			LOG.info("load " + files.get(i));
+			try {
+				mMapFiles[i] = MapFile.open(files.get(i), mmap);
+			} catch (IOException e) {
+				LOG.log(Level.SEVERE, null, e);
+				// make sure that the files are closed
 				close();
-				return openResult;
+				return new OpenResult(e.getMessage());
 			}
 
-			prepareExecution();
+			BoundingBox bbox = mMapFiles[i].boundingBox;
+			mFileBounds[i * 4 + 0] = bbox.minLatitudeE6;
+			mFileBounds[i * 4 + 1] = bbox.minLongitudeE6;
+			mFileBounds[i * 4 + 2] = bbox.maxLatitudeE6;
+			mFileBounds[i * 4 + 3] = bbox.maxLongitudeE6;
+		}
 
-			instances++;
+		mMapInfo = createMapInfo(mMapFiles);
+		mReadBuffer = new ReadBuffer(null);
+		mDuplicateFilter = new DuplicateFilter();
 
+		// the block cache is shared with other instances
+		if (instances++ > 0)
 			return OpenResult.SUCCESS;
-		} catch (IOException e) {
-			LOG.log(Level.SEVERE, null, e);
-			// make sure that the file is closed
-			close();
-			return new OpenResult(e.getMessage());
-		}
+
+		int blockCacheSize = BLOCK_CACHE_SIZE;
+		if (options != null && options.get(OPTION_BLOCK_CACHE) != null)
+			blockCacheSize = Integer.parseInt(options.get(OPTION_BLOCK_CACHE));
+
+		if (blockCacheSize > 0)
+			sBlockCache = new BlockCache(blockCacheSize);
+
+		return OpenResult.SUCCESS;
 	}
 
 	/*
@@ -343,29 +510,74 @@ public class MapDatabase implements IMapDatabase {
 	 */
 	@Override
 	public void close() {
-		instances--;
-		if (instances > 0) {
-			mReadBuffer = null;
+		// not opened
+		if (mMapFiles == null)
 			return;
-		}
 
-		try {
-			sMapFileHeader = null;
+		boolean opened = (mMapInfo != null);
 
-			if (sDatabaseIndexCache != null) {
-				sDatabaseIndexCache.destroy();
-				sDatabaseIndexCache = null;
+		for (int i = 0; i < mMapFiles.length; i++) {
+			if (mInputFiles[i] != null) {
+				try {
+					mInputFiles[i].close();
+				} catch (IOException e) {
+					LOG.log(Level.SEVERE, null, e);
+				}
 			}
+			if (mMapFiles[i] != null)
+				MapFile.release(mMapFiles[i]);
+		}
 
-			if (mInputFile != null) {
-				mInputFile.close();
-				mInputFile = null;
-			}
+		mMapFiles = null;
+		mFileBounds = null;
+		mInputFiles = null;
+		mQueryFiles = null;
+		mMapInfo = null;
+		mMapFile = null;
+		mMapFileHeader = null;
+		mInputFile = null;
+		mReadBuffer = null;
+		mDuplicateFilter = null;
+
+		// failed in open()
+		if (!opened || --instances > 0)
+			return;
 
-			mReadBuffer = null;
-		} catch (IOException e) {
-			LOG.log(Level.SEVERE, null, e);
+		if (sBlockCache != null) {
+			LOG.info(sBlockCache.toString());
+			sBlockCache.clear();
+			sBlockCache = null;
+		}
+	}
+
+	/**
+	 * @return the MapFileInfo of a single file, or for several files a
+	 *         MapInfo with their combined bounding box and otherwise the
+	 *         info of the first file.
+	 */
+	private static MapInfo createMapInfo(MapFile[] mapFiles) {
+		MapFileInfo first = mapFiles[0].header.getMapFileInfo();
+		if (mapFiles.length == 1)
+			return first;
+
+		int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+		long mapDate = 0, fileSize = 0;
+
+		for (MapFile f : mapFiles) {
+			MapFileInfo info = f.header.getMapFileInfo();
+			minLat = Math.min(minLat, info.boundingBox.minLatitudeE6);
+			minLon = Math.min(minLon, info.boundingBox.minLongitudeE6);
+			maxLat = Math.max(maxLat, info.boundingBox.maxLatitudeE6);
+			maxLon = Math.max(maxLon, info.boundingBox.maxLongitudeE6);
+			mapDate = Math.max(mapDate, info.mapDate);
+			fileSize += info.fileSize;
 		}
+
+		return new MapInfo(new BoundingBox(minLat, minLon, maxLat, maxLon),
+				first.startZoomLevel, null, first.projectionName, mapDate, fileSize,
+				first.fileVersion, first.languagePreference, null, first.createdBy,
+				first.zoomLevel);
 	}
 
 	/**
@@ -378,12 +590,6 @@ public class MapDatabase implements IMapDatabase {
 		}
 	}
 
-	private void prepareExecution() {
-		if (sDatabaseIndexCache == null) {
-			sDatabaseIndexCache = new IndexCache(mInputFile, INDEX_CACHE_SIZE);
-		}
-	}
-
 	/**
 	 * Processes a single block and executes the callback functions on all map
 	 * elements.
@@ -394,18 +600,21 @@ public class MapDatabase implements IMapDatabase {
 	 *            the parameters of the current map file.
 	 * @param mapDatabaseCallback
 	 *            the callback which handles the extracted map elements.
+	 * @return true if all elements of the block were processed, false if
+	 *         the block is invalid or the query was canceled.
 	 */
-	private void processBlock(QueryParameters queryParameters,
+	private boolean processBlock(QueryParameters queryParameters,
 			SubFileParameter subFileParameter,
 			IMapDatabaseCallback mapDatabaseCallback) {
 		if (!processBlockSignature()) {
-			return;
+			return false;
 		}
 
 		int[][] zoomTable = readZoomTable(subFileParameter);
 		if (zoomTable == null) {
-			return;
+			return false;
 		}
+		mZoomTable = zoomTable;
 		int zoomTableRow = queryParameters.queryZoomLevel - subFileParameter.zoomLevelMin;
 		int poisOnQueryZoomLevel = zoomTable[zoomTableRow][0];
 		int waysOnQueryZoomLevel = zoomTable[zoomTableRow][1];
@@ -417,7 +626,7 @@ public class MapDatabase implements IMapDatabase {
 			if (mDebugFile) {
 				LOG.warning(DEBUG_SIGNATURE_BLOCK + mSignatureBlock);
 			}
-			return;
+			return false;
 		}
 
 		// add the current buffer position to the relative first way offset
@@ -427,11 +636,11 @@ public class MapDatabase implements IMapDatabase {
 			if (mDebugFile) {
 				LOG.warning(DEBUG_SIGNATURE_BLOCK + mSignatureBlock);
 			}
-			return;
+			return false;
 		}
 
 		if (!processPOIs(mapDatabaseCallback, poisOnQueryZoomLevel)) {
-			return;
+			return false;
 		}
 
 		// finished reading POIs, check if the current buffer position is valid
@@ -440,15 +649,12 @@ public class MapDatabase implements IMapDatabase {
 			if (mDebugFile) {
 				LOG.warning(DEBUG_SIGNATURE_BLOCK + mSignatureBlock);
 			}
-			return;
+			return false;
 		}
 
 		// move the pointer to the first way
 		mReadBuffer.setBufferPosition(firstWayOffset);
-		if (!processWays(queryParameters, mapDatabaseCallback, waysOnQueryZoomLevel)) {
-			return;
-		}
-
+		return processWays(queryParameters, mapDatabaseCallback, waysOnQueryZoomLevel);
 	}
 
 	private void processBlocks(IMapDatabaseCallback mapDatabaseCallback,
@@ -457,16 +663,25 @@ public class MapDatabase implements IMapDatabase {
 		boolean queryIsWater = true;
 		// boolean queryReadWaterInfo = false;
 
+		Map<SubFileParameter, ByteBuffer> mappedSubFiles = mMapFile.mappedSubFiles;
+		ByteBuffer mapped = null;
+		if (mappedSubFiles != null)
+			mapped = mappedSubFiles.get(subFileParameter);
+
+		BlockCache blockCache = sBlockCache;
+
 		// read and process all blocks from top to bottom and from left to right
 		for (long row = queryParameters.fromBlockY; row <= queryParameters.toBlockY; ++row) {
 			for (long column = queryParameters.fromBlockX; column <= queryParameters.toBlockX; ++column) {
+				if (mTile.isCanceled)
+					return;
 
 				// calculate the actual block number of the needed block in the
 				// file
 				long blockNumber = row * subFileParameter.blocksWidth + column;
 
 				// get the current index entry
-				long currentBlockIndexEntry = sDatabaseIndexCache.getIndexEntry(
+				long currentBlockIndexEntry = mMapFile.indexCache.getIndexEntry(
 						subFileParameter, blockNumber);
 
 				// check if the current query would still return a water tile
@@ -493,7 +708,7 @@ public class MapDatabase implements IMapDatabase {
 					nextBlockPointer = subFileParameter.subFileSize;
 				} else {
 					// get and check the next block pointer
-					nextBlockPointer = sDatabaseIndexCache.getIndexEntry(
+					nextBlockPointer = mMapFile.indexCache.getIndexEntry(
 							subFileParameter, blockNumber + 1)
 							& BITMASK_INDEX_OFFSET;
 					if (nextBlockPointer < 1
@@ -518,17 +733,45 @@ public class MapDatabase implements IMapDatabase {
 					// block
 					LOG.warning("current block size too large: " + currentBlockSize);
 					continue;
-				} else if (currentBlockPointer + currentBlockSize > mFileSize) {
+				} else if (currentBlockPointer + currentBlockSize > mMapFile.fileSize) {
 					LOG.warning("current block largher than file size: "
 							+ currentBlockSize);
 					return;
 				}
 
-				// seek to the current block in the map file
-				mInputFile.seek(subFileParameter.startAddress + currentBlockPointer);
+				// the block was decoded before, only filter its elements
+				long blockKey = BlockCache.key(mMapFile.id,
+						subFileParameter.startAddress + currentBlockPointer);
+				BlockCache.Block block = null;
+				if (blockCache != null)
+					block = blockCache.get(blockKey);
+
+				if (block != null) {
+					int ways = processCachedBlock(block, queryParameters,
+							subFileParameter, mapDatabaseCallback);
+					blockCache.addSavedTime(block, ways);
+					continue;
+				}
+
+				long start = TileMetrics.enabled ? System.nanoTime() : 0;
+
+				boolean read = true;
+				if (mapped != null) {
+					// copy the block from the mapping
+					read = mReadBuffer.readFromMapped(mapped,
+							(int) currentBlockPointer, currentBlockSize);
+				} else {
+					// seek to the current block in the map file
+					mInputFile.seek(subFileParameter.startAddress + currentBlockPointer);
+
+					// read the current block into the buffer
+					read = mReadBuffer.readFromFile(currentBlockSize);
+				}
+
+				if (start != 0)
+					mTile.fetchTime += System.nanoTime() - start;
 
-				// read the current block into the buffer
-				if (!mReadBuffer.readFromFile(currentBlockSize)) {
+				if (!read) {
 					// skip the current block
 					LOG.warning("reading current block has failed: " + currentBlockSize);
 					return;
@@ -545,8 +788,24 @@ public class MapDatabase implements IMapDatabase {
 				mTileLongitude = (int) (tileLongitudeDeg * 1000000);
 
 				try {
-					processBlock(queryParameters, subFileParameter, mapDatabaseCallback);
-				} catch (ArrayIndexOutOfBoundsException e) {
+					// a block is only queried again by the neighbours of tiles
+					// above its base zoom level, others are not cached.
+					if (blockCache == null || !queryParameters.useTileBitmask) {
+						processBlock(queryParameters, subFileParameter, mapDatabaseCallback);
+						continue;
+					}
+
+					// not cached when the block is invalid or the query was
+					// canceled
+					block = decodeBlock(subFileParameter);
+					if (block == null)
+						continue;
+
+					blockCache.put(blockKey, block);
+					processCachedBlock(block, queryParameters, subFileParameter,
+							mapDatabaseCallback);
+				} catch (IndexOutOfBoundsException e) {
+					mDecoding = null;
 					LOG.log(Level.SEVERE, null, e);
 				}
 			}
@@ -565,6 +824,101 @@ public class MapDatabase implements IMapDatabase {
 
 	}
 
+	/**
+	 * Decodes all elements of the current block for the highest zoom level
+	 * of the sub-file.
+	 * 
+	 * @param subFileParameter
+	 *            the parameters of the current map file.
+	 * @return the decoded block or null if the block is invalid or the query
+	 *         was canceled.
+	 */
+	private BlockCache.Block decodeBlock(SubFileParameter subFileParameter) {
+		long start = System.nanoTime();
+
+		QueryParameters queryParameters = new QueryParameters();
+		queryParameters.queryZoomLevel = subFileParameter.zoomLevelMax;
+		queryParameters.useTileBitmask = false;
+
+		if (mDecoder == null)
+			mDecoder = new BlockCache.Decoder();
+
+		BlockCache.Decoder decoder = mDecoder;
+		decoder.clear();
+
+		mDecoding = decoder;
+		boolean complete = processBlock(queryParameters, subFileParameter, decoder);
+		mDecoding = null;
+
+		if (!complete)
+			return null;
+
+		BlockCache.Block block = decoder.getBlock(mZoomTable);
+		block.decodeTime = System.nanoTime() - start;
+
+		return block;
+	}
+
+	/**
+	 * Passes the elements of a decoded block to the callback that are
+	 * visible on the query zoom level and, if the query uses it, within the
+	 * query tile bitmask. Tags, coordinates and lengths are copied as the
+	 * callback may modify them.
+	 * 
+	 * @param block
+	 *            the decoded block.
+	 * @param queryParameters
+	 *            the parameters of the current query.
+	 * @param subFileParameter
+	 *            the parameters of the current map file.
+	 * @param mapDatabaseCallback
+	 *            the callback which handles the extracted map elements.
+	 * @return the number of ways passed to the callback.
+	 */
+	private int processCachedBlock(BlockCache.Block block,
+			QueryParameters queryParameters, SubFileParameter subFileParameter,
+			IMapDatabaseCallback mapDatabaseCallback) {
+
+		int zoomTableRow = queryParameters.queryZoomLevel - subFileParameter.zoomLevelMin;
+		int pois = block.poisPerRow[zoomTableRow];
+		int ways = block.waysPerRow[zoomTableRow];
+
+		int cnt = 0;
+
+		for (int i = 0; i < pois; i++) {
+			if (mTile.isCanceled)
+				return cnt;
+
+			mapDatabaseCallback.renderPointOfInterest(block.poiLayer[i],
+					block.poiTags[i].clone(),
+					block.poiCoords[i * 2], block.poiCoords[i * 2 + 1]);
+		}
+
+		int bitmask = queryParameters.useTileBitmask ? queryParameters.queryTileBitmask : ~0;
+
+		for (int i = 0; i < block.wayCount; i++) {
+			// ways are ordered by the zoom level from which on they are
+			// visible
+			if (block.wayIndex[i] >= ways)
+				break;
+
+			if ((block.wayBitmask[i] & bitmask) == 0)
+				continue;
+
+			if (mTile.isCanceled)
+				return cnt;
+
+			int offset = block.wayCoordOffset[i];
+			System.arraycopy(block.coords, offset, mWayNodes, 0,
+					block.wayCoordOffset[i + 1] - offset);
+
+			mapDatabaseCallback.renderWay(block.wayLayer[i], block.wayTags[i].clone(),
+					mWayNodes, block.wayLengths[i].clone(), block.wayClosed[i]);
+			cnt++;
+		}
+		return cnt;
+	}
+
 	/**
 	 * Processes the block signature, if present.
 	 * 
@@ -594,10 +948,22 @@ public class MapDatabase implements IMapDatabase {
 	 *         otherwise.
 	 */
 	private boolean processPOIs(IMapDatabaseCallback mapDatabaseCallback, int numberOfPois) {
-		Tag[] poiTags = sMapFileHeader.getMapFileInfo().poiTags;
+		Tag[] poiTags = mMapFileHeader.getMapFileInfo().poiTags;
 		Tag[] tags = null;
 
+		// POIs without a tag the theme needs are skipped, names are only
+		// decoded for POIs that may show them
+		BitSet filter = mapDatabaseCallback.getTagFilter(poiTags, false, false);
+		BitSet nameFilter = mapDatabaseCallback.getTagFilter(poiTags, false, true);
+
+		int[] tagIds = mTagIds;
+		int numTags = 0;
+
 		for (int elementCounter = numberOfPois; elementCounter != 0; --elementCounter) {
+			// stop when tile is not needed anymore
+			if (mTile.isCanceled)
+				return false;
+
 			if (mDebugFile) {
 				// get and check the POI signature
 				mSignaturePoi = mReadBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_POI);
@@ -624,36 +990,44 @@ public class MapDatabase implements IMapDatabase {
 			// bit 5-8 represent the number of tag IDs
 			byte numberOfTags = (byte) (specialByte & POI_NUMBER_OF_TAGS_BITMASK);
 
-			// boolean changed = false;
-
 			if (numberOfTags != 0) {
-				tags = mReadBuffer.readTags(poiTags, numberOfTags);
-				// changed = true;
+				if (!mReadBuffer.readTagIds(tagIds, numberOfTags, poiTags.length))
+					return false;
+
+				numTags = numberOfTags;
+				tags = null;
 			}
-			if (tags == null)
+			if (numTags == 0)
 				return false;
 
+			boolean render = hasTag(filter, tagIds, numTags);
+
 			// get the feature bitmask (1 byte)
 			byte featureByte = mReadBuffer.readByte();
 
 			// bit 1-3 enable optional features
 
+			if (render && tags == null)
+				tags = getTags(poiTags, tagIds, numTags);
+
+			Tag[] poiTagsWithName = tags;
+
 			// check if the POI has a name
 			if ((featureByte & POI_FEATURE_NAME) != 0) {
-				// int pos = mReadBuffer.getPositionAndSkip();
-				String str = mReadBuffer.readUTF8EncodedString();
+				if (render && hasTag(nameFilter, tagIds, numTags)) {
+					String str = mReadBuffer.readUTF8EncodedString();
 
-				Tag[] tmp = tags;
-				tags = new Tag[tmp.length + 1];
-				System.arraycopy(tmp, 0, tags, 0, tmp.length);
-				tags[tags.length - 1] = new Tag("name", str, false);
+					poiTagsWithName = new Tag[tags.length + 1];
+					System.arraycopy(tags, 0, poiTagsWithName, 0, tags.length);
+					poiTagsWithName[tags.length] = new Tag("name", str, false);
+				} else {
+					mReadBuffer.getPositionAndSkip();
+				}
 			}
 
 			// check if the POI has a house number
 			if ((featureByte & POI_FEATURE_HOUSE_NUMBER) != 0) {
-				// mReadBuffer.getPositionAndSkip();
-				// String str =
-				mReadBuffer.readUTF8EncodedString();
+				mReadBuffer.getPositionAndSkip();
 			}
 
 			// check if the POI has an elevation
@@ -664,13 +1038,36 @@ public class MapDatabase implements IMapDatabase {
 				// Integer.toString(mReadBuffer.readSignedInt())));
 			}
 
-			mapDatabaseCallback.renderPointOfInterest(layer, tags, latitude, longitude);
-
+			if (render)
+				mapDatabaseCallback.renderPointOfInterest(layer, poiTagsWithName,
+						latitude, longitude);
 		}
 
 		return true;
 	}
 
+	/**
+	 * @return true if 'filter' is null or contains one of the tag IDs.
+	 */
+	private static boolean hasTag(BitSet filter, int[] tagIds, int numTags) {
+		if (filter == null)
+			return true;
+
+		for (int i = 0; i < numTags; i++)
+			if (filter.get(tagIds[i]))
+				return true;
+
+		return false;
+	}
+
+	private static Tag[] getTags(Tag[] tagTable, int[] tagIds, int numTags) {
+		Tag[] tags = new Tag[numTags];
+		for (int i = 0; i < numTags; i++)
+			tags[i] = tagTable[tagIds[i]];
+
+		return tags;
+	}
+
 	private short[] processWayDataBlock(boolean doubleDeltaEncoding) {
 		// get and check the number of way coordinate blocks (VBE-U)
 		int numBlocks = mReadBuffer.readUnsignedInt();
@@ -816,11 +1213,21 @@ public class MapDatabase implements IMapDatabase {
 			int numberOfWays) {
 
 		Tag[] tags = null;
-		Tag[] wayTags = sMapFileHeader.getMapFileInfo().wayTags;
+		Tag[] wayTags = mMapFileHeader.getMapFileInfo().wayTags;
+
+		// ways without a tag the theme needs are skipped before their
+		// coordinates are decoded
+		BitSet filter = mapDatabaseCallback.getTagFilter(wayTags, true, false);
+
+		int[] tagIds = mTagIds;
+		int numTags = 0;
+		int wayEnd;
+
 		int[] textPos = new int[3];
 		// float[] labelPosition;
 		// boolean skippedWays = false;
 		int wayDataBlocks;
+		int wayTileBitmask = ~0;
 
 		// skip string block
 		int stringsSize = mReadBuffer.readUnsignedInt();
@@ -828,6 +1235,10 @@ public class MapDatabase implements IMapDatabase {
 		mReadBuffer.skipBytes(stringsSize);
 
 		for (int elementCounter = numberOfWays; elementCounter != 0; --elementCounter) {
+			// stop when tile is not needed anymore
+			if (mTile.isCanceled)
+				return false;
+
 			if (mDebugFile) {
 				// get and check the way signature
 				mSignatureWay = mReadBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_WAY);
@@ -848,17 +1259,19 @@ public class MapDatabase implements IMapDatabase {
 				if (elementCounter < 0)
 					return false;
 
+				wayEnd = mReadBuffer.wayEndPosition;
+
 				if (mReadBuffer.lastTagPosition > 0) {
 					int pos = mReadBuffer.getBufferPosition();
 					mReadBuffer.setBufferPosition(mReadBuffer.lastTagPosition);
 
 					byte numberOfTags = (byte) (mReadBuffer.readByte() & WAY_NUMBER_OF_TAGS_BITMASK);
 
-					tags = mReadBuffer.readTags(wayTags, numberOfTags);
-					if (tags == null)
+					if (!mReadBuffer.readTagIds(tagIds, numberOfTags, wayTags.length))
 						return false;
 
-					// skippedWays = true;
+					numTags = numberOfTags;
+					tags = null;
 
 					mReadBuffer.setBufferPosition(pos);
 				}
@@ -872,9 +1285,10 @@ public class MapDatabase implements IMapDatabase {
 					LOG.warning("EEEEEK way... 2");
 					return false;
 				}
+				wayEnd = mReadBuffer.getBufferPosition() + wayDataSize;
 
-				// ignore the way tile bitmask (2 bytes)
-				mReadBuffer.skipBytes(2);
+				// the way tile bitmask (2 bytes)
+				wayTileBitmask = mReadBuffer.readShort();
 			}
 
 			// get the special byte which encodes multiple flags
@@ -885,34 +1299,34 @@ public class MapDatabase implements IMapDatabase {
 			// bit 5-8 represent the number of tag IDs
 			byte numberOfTags = (byte) (specialByte & WAY_NUMBER_OF_TAGS_BITMASK);
 
-			// boolean changed = skippedWays;
-			// skippedWays = false;
-
 			if (numberOfTags != 0) {
-				tags = mReadBuffer.readTags(wayTags, numberOfTags);
-				// changed = true;
+				if (!mReadBuffer.readTagIds(tagIds, numberOfTags, wayTags.length))
+					return false;
+
+				numTags = numberOfTags;
+				tags = null;
 			}
-			if (tags == null)
+			if (numTags == 0)
 				return false;
 
+			if (!hasTag(filter, tagIds, numTags)) {
+				mReadBuffer.setBufferPosition(wayEnd);
+				continue;
+			}
+
+			if (tags == null)
+				tags = getTags(wayTags, tagIds, numTags);
+
 			// get the feature bitmask (1 byte)
 			byte featureByte = mReadBuffer.readByte();
 
 			// bit 1-6 enable optional features
 			boolean featureWayDoubleDeltaEncoding = (featureByte & WAY_FEATURE_DOUBLE_DELTA_ENCODING) != 0;
 
-			// check if the way has a name
+			// check if the way has a name. strings are not passed to the
+			// callback, only their offsets in the string block are read.
 			if ((featureByte & WAY_FEATURE_NAME) != 0) {
 				textPos[0] = mReadBuffer.readUnsignedInt();
-				// String str =
-				mReadBuffer.readUTF8EncodedStringAt(stringOffset + textPos[0]);
-				// if (changed) {
-				// Tag[] tmp = tags;
-				// tags = new Tag[tmp.length + 1];
-				// System.arraycopy(tmp, 0, tags, 0, tmp.length);
-				// }
-				// tags[tags.length - 1] = new Tag(Tag.TAG_KEY_NAME, str,
-				// false);
 			}
 			else
 				textPos[0] = -1;
@@ -960,6 +1374,11 @@ public class MapDatabase implements IMapDatabase {
 				boolean closed = mWayNodes[0] == mWayNodes[l - 2]
 						&& mWayNodes[1] == mWayNodes[l - 1];
 
+				if (mDecoding != null) {
+					mDecoding.curWayIndex = numberOfWays - elementCounter;
+					mDecoding.curWayBitmask = wayTileBitmask;
+				}
+
 				mapDatabaseCallback
 						.renderWay(layer, tags, mWayNodes, wayLengths, closed);
 			}
@@ -1013,7 +1432,7 @@ public class MapDatabase implements IMapDatabase {
 					|| cumulatedNumberOfWays > MAXIMUM_ZOOM_TABLE_OBJECTS) {
 				LOG.warning("invalid cumulated number of ways in row " + row + ' '
 						+ cumulatedNumberOfWays);
-				if (sMapFileHeader.getMapFileInfo().debugFile) {
+				if (mMapFileHeader.getMapFileInfo().debugFile) {
 					LOG.warning(DEBUG_SIGNATURE_BLOCK + mSignatureBlock);
 				}
 				return null;
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.oscim.core.BoundingBox;
+import org.oscim.database.OpenResult;
+import org.oscim.database.mapfile.header.MapFileHeader;
+import org.oscim.database.mapfile.header.SubFileParameter;
+
+/**
+ * A map file opened by MapDatabase. The header, index cache and mapped
+ * sub-files are shared by all MapDatabase instances that read the file,
+ * each instance reads blocks with its own RandomAccessFile.
+ */
+final class MapFile {
+	private static final Logger LOG = Logger.getLogger(MapFile.class.getName());
+
+	/**
+	 * Amount of cache blocks that the index cache should store.
+	 */
+	private static final int INDEX_CACHE_SIZE = 64;
+
+	// opened files by canonical path
+	private static final Map<String, MapFile> sMapFiles = new HashMap<String, MapFile>();
+	private static int sNextId;
+
+	/**
+	 * Identifies the file in BlockCache keys, unique while the process
+	 * runs.
+	 */
+	final int id;
+	final File file;
+	final long fileSize;
+	final MapFileHeader header;
+	final BoundingBox boundingBox;
+	final IndexCache indexCache;
+
+	// sub-files mapped when MapDatabase.OPTION_MMAP is set, otherwise null
+	final Map<SubFileParameter, ByteBuffer> mappedSubFiles;
+
+	private final String mPath;
+	private int mRefs;
+
+	private MapFile(File file, String path, MapFileHeader header, long fileSize,
+			Map<SubFileParameter, ByteBuffer> mappedSubFiles) throws IOException {
+		this.id = sNextId++;
+		this.file = file;
+		this.fileSize = fileSize;
+		this.header = header;
+		this.boundingBox = header.getMapFileInfo().boundingBox;
+		this.mappedSubFiles = mappedSubFiles;
+		this.indexCache = new IndexCache(file, INDEX_CACHE_SIZE);
+		mPath = path;
+	}
+
+	/**
+	 * Returns the opened MapFile for 'file' or reads its header. Must be
+	 * passed to release() when no longer used.
+	 *
+	 * @param file
+	 *            the map file
+	 * @param mmap
+	 *            whether to map the sub-files, when the file is not opened
+	 *            yet
+	 * @return the MapFile
+	 * @throws IOException
+	 *             if the file cannot be read or the header is invalid.
+	 */
+	static synchronized MapFile open(File file, boolean mmap) throws IOException {
+		String path = file.getCanonicalPath();
+
+		MapFile mapFile = sMapFiles.get(path);
+		if (mapFile == null) {
+			RandomAccessFile inputFile = new RandomAccessFile(file, "r");
+			try {
+				long fileSize = inputFile.length();
+
+				MapFileHeader header = new MapFileHeader();
+				OpenResult openResult = header.readHeader(new ReadBuffer(inputFile),
+						fileSize);
+				if (!openResult.isSuccess())
+					throw new IOException(openResult.getErrorMessage() + ": " + file);
+
+				Map<SubFileParameter, ByteBuffer> mapped = null;
+				if (mmap)
+					mapped = mapSubFiles(inputFile, header);
+
+				mapFile = new MapFile(file, path, header, fileSize, mapped);
+			} finally {
+				inputFile.close();
+			}
+
+			sMapFiles.put(path, mapFile);
+			LOG.info("opened " + file + " " + mapFile.boundingBox);
+		}
+
+		mapFile.mRefs++;
+		return mapFile;
+	}
+
+	/**
+	 * Close the file when it is not used by another MapDatabase.
+	 *
+	 * @param mapFile
+	 *            a MapFile returned by open()
+	 */
+	static synchronized void release(MapFile mapFile) {
+		if (--mapFile.mRefs > 0)
+			return;
+
+		sMapFiles.remove(mapFile.mPath);
+		mapFile.indexCache.destroy();
+	}
+
+	/**
+	 * Map all sub-files of the file read-only. Sub-files larger than 2GB
+	 * cannot be mapped and are read with RandomAccessFile.
+	 */
+	private static Map<SubFileParameter, ByteBuffer> mapSubFiles(
+			RandomAccessFile file, MapFileHeader header) throws IOException {
+		Map<SubFileParameter, ByteBuffer> mapped = new HashMap<SubFileParameter, ByteBuffer>();
+		FileChannel channel = file.getChannel();
+
+		int minZoom = header.getQueryZoomLevel((byte) 0);
+		int maxZoom = header.getQueryZoomLevel(Byte.MAX_VALUE);
+
+		for (int z = minZoom; z <= maxZoom; z++) {
+			SubFileParameter p = header.getSubFileParameter(z);
+			if (p == null || mapped.containsKey(p))
+				continue;
+
+			if (p.subFileSize > Integer.MAX_VALUE) {
+				LOG.warning("sub-file too large to map: " + p.subFileSize);
+				continue;
+			}
+
+			// the mapping stays valid when the channel is closed
+			try {
+				mapped.put(p, channel.map(FileChannel.MapMode.READ_ONLY,
+						p.startAddress, p.subFileSize));
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "cannot map sub-file", e);
+			}
+		}
+
+		LOG.info("mapped " + mapped.size() + " sub-files");
+		return mapped;
+	}
+}
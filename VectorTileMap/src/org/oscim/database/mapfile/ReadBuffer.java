@@ -17,12 +17,12 @@ package org.oscim.database.mapfile;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.logging.Logger;
 
-import org.oscim.core.Tag;
-
 /**
- * Reads from a {@link RandomAccessFile} into a buffer and decodes the data.
+ * Reads from a {@link RandomAccessFile} or a memory-mapped sub-file into a
+ * buffer and decodes the data.
  */
 public class ReadBuffer {
 	private static final String CHARSET_UTF8 = "UTF-8";
@@ -33,14 +33,31 @@ public class ReadBuffer {
 	 */
 	static final int MAXIMUM_BUFFER_SIZE = 8000000;
 
+	// buffers larger than this are replaced by one of the block size after
+	// a smaller block, so that each reader does not keep up to
+	// MAXIMUM_BUFFER_SIZE for a few large blocks
+	private static final int KEEP_BUFFER_SIZE = 512 * 1024;
+
 	private byte[] mBufferData;
 	private int mBufferPosition;
-	private final RandomAccessFile mInputFile;
+	private RandomAccessFile mInputFile;
+
+	// view of the mapped sub-file last passed to readFromMapped()
+	private ByteBuffer mMapped;
+	private ByteBuffer mMappedView;
 
 	ReadBuffer(RandomAccessFile inputFile) {
 		mInputFile = inputFile;
 	}
 
+	/**
+	 * @param inputFile
+	 *            the file to read from with readFromFile()
+	 */
+	void setInputFile(RandomAccessFile inputFile) {
+		mInputFile = inputFile;
+	}
+
 	/**
 	 * Returns one signed byte from the read buffer.
 	 * 
@@ -61,15 +78,8 @@ public class ReadBuffer {
 	 *             if an error occurs while reading the file.
 	 */
 	public boolean readFromFile(int length) throws IOException {
-		// ensure that the read buffer is large enough
-		if (mBufferData == null || mBufferData.length < length) {
-			// ensure that the read buffer is not too large
-			if (length > MAXIMUM_BUFFER_SIZE) {
-				LOG.warning("invalid read length: " + length);
-				return false;
-			}
-			mBufferData = new byte[length];
-		}
+		if (!ensureBuffer(length))
+			return false;
 
 		mBufferPosition = 0;
 
@@ -78,6 +88,53 @@ public class ReadBuffer {
 		return mInputFile.read(mBufferData, 0, length) == length;
 	}
 
+	/**
+	 * Copies a block of a memory-mapped sub-file into the read buffer and
+	 * resets the buffer position. Unlike readFromFile() this needs no system
+	 * call.
+	 * 
+	 * @param mapped
+	 *            the mapped sub-file, shared with other threads. Its position
+	 *            and limit are not modified.
+	 * @param offset
+	 *            offset of the block in 'mapped'
+	 * @param length
+	 *            size of the block in bytes
+	 * @return false if the block is larger than MAXIMUM_BUFFER_SIZE.
+	 */
+	boolean readFromMapped(ByteBuffer mapped, int offset, int length) {
+		if (!ensureBuffer(length))
+			return false;
+
+		// the view keeps its own position
+		if (mMapped != mapped) {
+			mMapped = mapped;
+			mMappedView = mapped.duplicate();
+		}
+
+		mMappedView.position(offset);
+		mMappedView.get(mBufferData, 0, length);
+
+		mBufferPosition = 0;
+		return true;
+	}
+
+	private boolean ensureBuffer(int length) {
+		// ensure that the read buffer is not too large
+		if (length > MAXIMUM_BUFFER_SIZE) {
+			LOG.warning("invalid read length: " + length);
+			return false;
+		}
+
+		// ensure that the read buffer is large enough, shrink it after
+		// an oversized block
+		if (mBufferData == null || mBufferData.length < length
+				|| (mBufferData.length > KEEP_BUFFER_SIZE && length <= KEEP_BUFFER_SIZE))
+			mBufferData = new byte[length];
+
+		return true;
+	}
+
 	/**
 	 * Converts four bytes from the read buffer to a signed int.
 	 * <p>
@@ -454,24 +511,34 @@ public class ReadBuffer {
 		mBufferPosition += bytes;
 	}
 
-	Tag[] readTags(Tag[] wayTags, byte numberOfTags) {
-		Tag[] tags = new Tag[numberOfTags];
-
-		int maxTag = wayTags.length;
-
-		for (byte i = 0; i < numberOfTags; i++) {
+	/**
+	 * Reads the tag IDs of an element, the tags are looked up only when the
+	 * element is passed to the callback.
+	 * 
+	 * @param tagIds
+	 *            array to store the IDs
+	 * @param numberOfTags
+	 *            the number of IDs to read
+	 * @param maxTag
+	 *            the size of the tag table
+	 * @return false if an ID is invalid
+	 */
+	boolean readTagIds(int[] tagIds, int numberOfTags, int maxTag) {
+		for (int i = 0; i < numberOfTags; i++) {
 			int tagId = readUnsignedInt();
 			if (tagId < 0 || tagId >= maxTag) {
 				LOG.warning("invalid tag ID: " + tagId);
-				return null;
+				return false;
 			}
-			tags[i] = wayTags[tagId];
+			tagIds[i] = tagId;
 		}
-		return tags;
+		return true;
 	}
 
-	private static final int WAY_NUMBER_OF_TAGS_BITMASK = 0x0f;
+	static final int WAY_NUMBER_OF_TAGS_BITMASK = 0x0f;
 	int lastTagPosition;
+	// end of the way found by skipWays()
+	int wayEndPosition;
 
 	int skipWays(int queryTileBitmask, int elements) {
 		int pos = mBufferPosition;
@@ -525,6 +592,7 @@ public class ReadBuffer {
 				pos += skip;
 				cnt--;
 			} else {
+				wayEndPosition = pos + skip;
 				pos += 2;
 				break;
 			}
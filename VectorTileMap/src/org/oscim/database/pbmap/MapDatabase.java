@@ -14,22 +14,17 @@
  */
 package org.oscim.database.pbmap;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -53,26 +48,29 @@ import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.RequestExpectContinue;
 import org.apache.http.protocol.RequestUserAgent;
+import org.oscim.backend.Log;
+import org.oscim.cache.CacheManager;
 import org.oscim.core.BoundingBox;
 import org.oscim.core.GeoPoint;
 import org.oscim.core.Tag;
 import org.oscim.core.Tile;
+import org.oscim.database.ConnectionPool;
 import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.database.IMapDatabasePipeline;
 import org.oscim.database.MapInfo;
 import org.oscim.database.OpenResult;
 import org.oscim.database.QueryResult;
 import org.oscim.generator.JobTile;
+import org.oscim.generator.TileMetrics;
 
 import android.os.Environment;
-import android.os.SystemClock;
-import android.util.Log;
 
 /**
  * 
  *
  */
-public class MapDatabase implements IMapDatabase {
+public class MapDatabase implements IMapDatabase, IMapDatabasePipeline {
 	private static final String TAG = "MapDatabase";
 
 	private static final MapInfo mMapInfo =
@@ -82,13 +80,14 @@ public class MapDatabase implements IMapDatabase {
 
 	private boolean mOpenFile = false;
 
-	private static final boolean USE_CACHE = false;
+	private static final boolean USE_CACHE = true;
 
 	private static final boolean USE_APACHE_HTTP = false;
 	private static final boolean USE_LW_HTTP = true;
 
 	private static final String CACHE_DIRECTORY = "/Android/data/org.oscim.app/cache/";
-	private static final String CACHE_FILE = "%d-%d-%d.tile";
+	// budget for tile cache
+	private static final long CACHE_SIZE = 64 * 1024 * 1024;
 
 	private static final String SERVER_ADDR = "city.informatik.uni-bremen.de";
 	// private static final String URL =
@@ -113,7 +112,9 @@ public class MapDatabase implements IMapDatabase {
 	private IMapDatabaseCallback mMapGenerator;
 	private float mScaleFactor;
 	private JobTile mTile;
-	private FileOutputStream mCacheFile;
+
+	private CacheManager mCache;
+	private CacheManager.TileWriter mCacheWriter;
 
 	private long mContentLenth;
 	private InputStream mInputStream;
@@ -137,8 +138,6 @@ public class MapDatabase implements IMapDatabase {
 	@Override
 	public QueryResult executeQuery(JobTile tile, IMapDatabaseCallback mapDatabaseCallback) {
 		QueryResult result = QueryResult.SUCCESS;
-		mCacheFile = null;
-
 		mTile = tile;
 
 		mMapGenerator = mapDatabaseCallback;
@@ -147,20 +146,23 @@ public class MapDatabase implements IMapDatabase {
 		// scale coordinates to tile size
 		mScaleFactor = REF_TILE_SIZE / Tile.TILE_SIZE;
 
-		File f = null;
-
 		mBufferSize = 0;
 		mBufferPos = 0;
 		mReadPos = 0;
 
-		if (USE_CACHE) {
-			f = new File(cacheDir, String.format(CACHE_FILE,
-					Integer.valueOf(tile.zoomLevel),
-					Integer.valueOf(tile.tileX),
-					Integer.valueOf(tile.tileY)));
+		// drop buffer grown for a large element of a previous tile
+		if (mReadBuffer.length > BUFFER_SIZE) {
+			mReadBuffer = new byte[BUFFER_SIZE];
+			mBuffer = ByteBuffer.wrap(mReadBuffer);
+		}
 
-			if (cacheRead(tile, f))
-				return QueryResult.SUCCESS;
+		// tiles in cache are never requested from server
+		if (mCache != null) {
+			result = cacheRead(tile);
+			if (result != null)
+				return result;
+
+			result = QueryResult.SUCCESS;
 		}
 
 		String url = null;
@@ -180,9 +182,22 @@ public class MapDatabase implements IMapDatabase {
 
 		try {
 			if (USE_LW_HTTP) {
-				if (lwHttpSendRequest(tile) && lwHttpReadHeader() > 0) {
-					cacheBegin(tile, f);
-					decode();
+				long start = TileMetrics.enabled ? System.nanoTime() : 0;
+
+				boolean ok = lwHttpRequest(tile) && lwHttpReadHeader() > 0;
+
+				if (start != 0)
+					tile.fetchTime += System.nanoTime() - start;
+
+				if (ok) {
+					cacheBegin(tile);
+					// do not cache invalid tiles
+					if (!decode())
+						cacheFinish(false);
+					else if (tile.isCanceled)
+						lwHttpCacheContent();
+
+					lwHttpSkipContent();
 				} else {
 					result = QueryResult.FAILED;
 				}
@@ -211,9 +226,11 @@ public class MapDatabase implements IMapDatabase {
 
 					mContentLenth = entity.getContentLength();
 					mInputStream = is;
-					cacheBegin(tile, f);
+					cacheBegin(tile);
 					// zis = new GZIPInputStream(is);
-					decode();
+					// do not cache invalid tiles
+					if (!decode() || mTile.isCanceled)
+						cacheFinish(false);
 				} finally {
 					// if (zis != null)
 					// zis.close();
@@ -246,18 +263,26 @@ public class MapDatabase implements IMapDatabase {
 			result = QueryResult.FAILED;
 		}
 
-		mLastRequest = SystemClock.elapsedRealtime();
-
 		if (USE_APACHE_HTTP)
 			mRequest = null;
 
-		cacheFinish(tile, f, result == QueryResult.SUCCESS);
+		if (USE_LW_HTTP) {
+			// responses of requests written ahead may be out of sync
+			if (result != QueryResult.SUCCESS)
+				lwHttpClose();
+			else
+				lwHttpRelease();
+		}
+
+		cacheFinish(result == QueryResult.SUCCESS);
+
+		// content was cached completely, but not passed to callback
+		if (tile.isCanceled)
+			result = QueryResult.FAILED;
 
 		return result;
 	}
 
-	private static File cacheDir;
-
 	@Override
 	public String getMapProjection() {
 		return null;
@@ -304,13 +329,20 @@ public class MapDatabase implements IMapDatabase {
 		if (USE_APACHE_HTTP)
 			createClient();
 
-		if (USE_CACHE) {
-			if (cacheDir == null) {
+		if (USE_CACHE && mCache == null) {
+			try {
 				String externalStorageDirectory = Environment
 						.getExternalStorageDirectory()
 						.getAbsolutePath();
 				String cacheDirectoryPath = externalStorageDirectory + CACHE_DIRECTORY;
-				cacheDir = createDirectory(cacheDirectoryPath);
+				File cacheDir = createDirectory(cacheDirectoryPath);
+
+				mCache = CacheManager.open(cacheDir, URL, CACHE_SIZE);
+				mCacheWriter = mCache.writer();
+			} catch (IllegalArgumentException e) {
+				Log.d(TAG, "no tile cache: " + e.getMessage());
+			} catch (IOException e) {
+				Log.d(TAG, "no tile cache: " + e.getMessage());
 			}
 		}
 
@@ -328,17 +360,16 @@ public class MapDatabase implements IMapDatabase {
 		}
 
 		if (USE_LW_HTTP) {
-			if (mSocket != null) {
-				try {
-					mSocket.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				mSocket = null;
-			}
+			lwHttpClose();
+			mRequested.clear();
+
+			Log.d(TAG, "connections: " + mPool);
 		}
-		if (USE_CACHE) {
-			cacheDir = null;
+
+		if (mCache != null) {
+			mCache.release();
+			mCache = null;
+			mCacheWriter = null;
 		}
 	}
 
@@ -359,7 +390,11 @@ public class MapDatabase implements IMapDatabase {
 	// /////////////// hand sewed tile protocol buffers decoder ////////////////
 	private static final int BUFFER_SIZE = 65536;
 
-	private final byte[] mReadBuffer = new byte[BUFFER_SIZE];
+	private byte[] mReadBuffer = new byte[BUFFER_SIZE];
+
+	// buffer to decode from: mReadBuffer when reading from a stream or the
+	// buffer of a cached tile
+	private ByteBuffer mBuffer = ByteBuffer.wrap(mReadBuffer);
 
 	// position in read buffer
 	private int mBufferPos;
@@ -386,11 +421,37 @@ public class MapDatabase implements IMapDatabase {
 	private static final int TAG_NODE_NUM_TAGS = 1;
 	private static final int TAG_NODE_NUM_COORDS = 2;
 
+	/**
+	 * Decode a response body of 'length' bytes from 'in', like
+	 * executeQuery() after reading the response header, without tile cache.
+	 * Package-private for tests.
+	 */
+	boolean decode(JobTile tile, IMapDatabaseCallback mapDatabaseCallback,
+			InputStream in, long length) throws IOException {
+		mTile = tile;
+		mMapGenerator = mapDatabaseCallback;
+		mCurTagCnt = 0;
+		mScaleFactor = REF_TILE_SIZE / Tile.TILE_SIZE;
+
+		mBufferSize = 0;
+		mBufferPos = 0;
+		mReadPos = 0;
+
+		mInputStream = in;
+		mContentLenth = length;
+
+		return decode();
+	}
+
 	private boolean decode() throws IOException {
 		mBytesProcessed = 0;
 		int val;
 
 		while (mBytesProcessed < mContentLenth && (val = decodeVarint32()) > 0) {
+			// stop between elements when tile is not needed anymore
+			if (mTile.isCanceled)
+				return true;
+
 			// read tag and wire type
 			int tag = (val >> 3);
 
@@ -666,40 +727,40 @@ public class MapDatabase implements IMapDatabase {
 
 		int pos = mBufferPos;
 		int end = pos + bytes;
-		byte[] buf = mReadBuffer;
+		ByteBuffer buf = mBuffer;
 		int result;
 
 		while (pos < end) {
 			// int val = decodeVarint32();
 
-			if (buf[pos] >= 0) {
-				result = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| buf[pos + 1] << 7;
+			if (buf.get(pos) >= 0) {
+				result = buf.get(pos++);
+			} else if (buf.get(pos + 1) >= 0) {
+				result = (buf.get(pos) & 0x7f)
+						| buf.get(pos + 1) << 7;
 				pos += 2;
-			} else if (buf[pos + 2] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2]) << 14;
+			} else if (buf.get(pos + 2) >= 0) {
+				result = (buf.get(pos) & 0x7f)
+						| (buf.get(pos + 1) & 0x7f) << 7
+						| (buf.get(pos + 2)) << 14;
 				pos += 3;
-			} else if (buf[pos + 3] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3]) << 21;
+			} else if (buf.get(pos + 3) >= 0) {
+				result = (buf.get(pos) & 0x7f)
+						| (buf.get(pos + 1) & 0x7f) << 7
+						| (buf.get(pos + 2) & 0x7f) << 14
+						| (buf.get(pos + 3)) << 21;
 				pos += 4;
 			} else {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3] & 0x7f) << 21
-						| (buf[pos + 4]) << 28;
+				result = (buf.get(pos) & 0x7f)
+						| (buf.get(pos + 1) & 0x7f) << 7
+						| (buf.get(pos + 2) & 0x7f) << 14
+						| (buf.get(pos + 3) & 0x7f) << 21
+						| (buf.get(pos + 4)) << 28;
 
 				pos += 4;
 				int i = 0;
 
-				while (buf[pos++] < 0 && i < 10)
+				while (buf.get(pos++) < 0 && i < 10)
 					i++;
 
 				if (i == 10)
@@ -726,17 +787,17 @@ public class MapDatabase implements IMapDatabase {
 	private int decodeWayCoordinates(boolean skip, int nodes) throws IOException {
 		int bytes = decodeVarint32();
 
-		readBuffer(bytes);
-
 		if (skip) {
-			mBufferPos += bytes;
+			skipBytes(bytes);
 			return nodes;
 		}
 
+		readBuffer(bytes);
+
 		int pos = mBufferPos;
 		int end = pos + bytes;
 		float[] coords = tmpCoords;
-		byte[] buf = mReadBuffer;
+		ByteBuffer buf = mBuffer;
 		int cnt = 0;
 		int result;
 
@@ -755,34 +816,34 @@ public class MapDatabase implements IMapDatabase {
 		// read repeated sint32
 		while (pos < end) {
 
-			if (buf[pos] >= 0) {
-				result = buf[pos++];
-			} else if (buf[pos + 1] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| buf[pos + 1] << 7;
+			if (buf.get(pos) >= 0) {
+				result = buf.get(pos++);
+			} else if (buf.get(pos + 1) >= 0) {
+				result = (buf.get(pos) & 0x7f)
+						| buf.get(pos + 1) << 7;
 				pos += 2;
-			} else if (buf[pos + 2] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2]) << 14;
+			} else if (buf.get(pos + 2) >= 0) {
+				result = (buf.get(pos) & 0x7f)
+						| (buf.get(pos + 1) & 0x7f) << 7
+						| (buf.get(pos + 2)) << 14;
 				pos += 3;
-			} else if (buf[pos + 3] >= 0) {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3]) << 21;
+			} else if (buf.get(pos + 3) >= 0) {
+				result = (buf.get(pos) & 0x7f)
+						| (buf.get(pos + 1) & 0x7f) << 7
+						| (buf.get(pos + 2) & 0x7f) << 14
+						| (buf.get(pos + 3)) << 21;
 				pos += 4;
 			} else {
-				result = (buf[pos] & 0x7f)
-						| (buf[pos + 1] & 0x7f) << 7
-						| (buf[pos + 2] & 0x7f) << 14
-						| (buf[pos + 3] & 0x7f) << 21
-						| (buf[pos + 4]) << 28;
+				result = (buf.get(pos) & 0x7f)
+						| (buf.get(pos + 1) & 0x7f) << 7
+						| (buf.get(pos + 2) & 0x7f) << 14
+						| (buf.get(pos + 3) & 0x7f) << 21
+						| (buf.get(pos + 4)) << 28;
 
 				pos += 4;
 				int i = 0;
 
-				while (buf[pos++] < 0 && i < 10)
+				while (buf.get(pos++) < 0 && i < 10)
 					i++;
 
 				if (i == 10)
@@ -819,59 +880,94 @@ public class MapDatabase implements IMapDatabase {
 		if (mReadPos == mContentLenth)
 			return mBufferSize - mBufferPos;
 
-		if (size > BUFFER_SIZE) {
-			// FIXME throw exception for now, but frankly better
-			// sanitize tile data on compilation. this should only
-			// happen with strings or one ways coordinates are
-			// larger than 64kb
-			throw new IOException("X requested size too large " + mTile);
-		}
+		byte[] buf = mReadBuffer;
 
 		if (mBufferSize == mBufferPos) {
 			mBufferPos = 0;
 			mBufferSize = 0;
-		} else if (mBufferPos + (size - mBufferSize) > BUFFER_SIZE) {
-			Log.d(TAG, "wrap buffer" + (size - mBufferSize) + " " + mBufferPos);
+		}
+
+		if (size > buf.length) {
+			// strings or coordinates of one way (e.g. coastlines at low
+			// zoom) larger than buffer: grow buffer for the current tile
+			int length = buf.length;
+			while (length < size)
+				length <<= 1;
+
+			Log.d(TAG, "increase read buffer " + mTile + " to " + length);
+
+			buf = new byte[length];
+			mBufferSize -= mBufferPos;
+			System.arraycopy(mReadBuffer, mBufferPos, buf, 0, mBufferSize);
+			mBufferPos = 0;
+			mReadBuffer = buf;
+			mBuffer = ByteBuffer.wrap(buf);
+
+		} else if (mBufferPos + size > buf.length) {
+			// Log.d(TAG, "wrap buffer" + (size - mBufferSize) + " " + mBufferPos);
 			// copy bytes left to read to the beginning of buffer
 			mBufferSize -= mBufferPos;
-			System.arraycopy(mReadBuffer, mBufferPos, mReadBuffer, 0, mBufferSize);
+			System.arraycopy(buf, mBufferPos, buf, 0, mBufferSize);
 			mBufferPos = 0;
 		}
 
-		int max = BUFFER_SIZE - mBufferSize;
+		int max = buf.length - mBufferSize;
 
 		while ((mBufferSize - mBufferPos) < size && max > 0) {
 
-			max = BUFFER_SIZE - mBufferSize;
+			max = buf.length - mBufferSize;
 			if (max > mContentLenth - mReadPos)
 				max = (int) (mContentLenth - mReadPos);
 
 			// read until requested size is available in buffer
-			int len = mInputStream.read(mReadBuffer, mBufferSize, max);
+			long start = TileMetrics.enabled ? System.nanoTime() : 0;
+
+			int len = mInputStream.read(buf, mBufferSize, max);
+
+			if (start != 0)
+				mTile.fetchTime += System.nanoTime() - start;
 
 			if (len < 0) {
 				// finished reading, mark end
-				mReadBuffer[mBufferSize] = 0;
+				if (mBufferSize < buf.length)
+					buf[mBufferSize] = 0;
 				break;
 			}
 
 			read += len;
 			mReadPos += len;
 
-			if (mCacheFile != null)
-				mCacheFile.write(mReadBuffer, mBufferSize, len);
+			if (mCacheWriter != null)
+				mCacheWriter.write(buf, mBufferSize, len);
+
+			mBufferSize += len;
 
 			if (USE_LW_HTTP) {
 				if (mReadPos == mContentLenth)
 					break;
 			}
-
-			mBufferSize += len;
 		}
 
 		return read;
 	}
 
+	// skip content without reading all of it into buffer
+	private void skipBytes(int bytes) throws IOException {
+		mBytesProcessed += bytes;
+
+		while (bytes > 0) {
+			if (mBufferPos == mBufferSize) {
+				readBuffer(Math.min(bytes, BUFFER_SIZE));
+				if (mBufferPos == mBufferSize)
+					throw new IOException("X unexpected end of content " + mTile);
+			}
+
+			int len = Math.min(bytes, mBufferSize - mBufferPos);
+			mBufferPos += len;
+			bytes -= len;
+		}
+	}
+
 	@Override
 	public void cancel() {
 		if (mRequest != null) {
@@ -880,6 +976,26 @@ public class MapDatabase implements IMapDatabase {
 		}
 	}
 
+	@Override
+	public int getPipelineDepth() {
+		return USE_LW_HTTP ? PIPELINE_DEPTH : 1;
+	}
+
+	@Override
+	public void prefetch(JobTile tile) {
+		if (!USE_LW_HTTP || (mCache != null && mCache.contains(tile)))
+			return;
+
+		mRequested.add(tile);
+
+		try {
+			lwHttpSendRequests();
+		} catch (IOException e) {
+			Log.d(TAG, "prefetch failed: " + e.getMessage());
+			lwHttpClose();
+		}
+	}
+
 	private int decodeVarint32() throws IOException {
 		int pos = mBufferPos;
 
@@ -888,45 +1004,45 @@ public class MapDatabase implements IMapDatabase {
 			pos = mBufferPos;
 		}
 
-		byte[] buf = mReadBuffer;
+		ByteBuffer buf = mBuffer;
 
-		if (buf[pos] >= 0) {
+		if (buf.get(pos) >= 0) {
 			mBufferPos += 1;
 			mBytesProcessed += 1;
-			return buf[pos];
-		} else if (buf[pos + 1] >= 0) {
+			return buf.get(pos);
+		} else if (buf.get(pos + 1) >= 0) {
 			mBufferPos += 2;
 			mBytesProcessed += 2;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1]) << 7;
+			return (buf.get(pos) & 0x7f)
+					| (buf.get(pos + 1)) << 7;
 
-		} else if (buf[pos + 2] >= 0) {
+		} else if (buf.get(pos + 2) >= 0) {
 			mBufferPos += 3;
 			mBytesProcessed += 3;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1] & 0x7f) << 7
-					| (buf[pos + 2]) << 14;
-		} else if (buf[pos + 3] >= 0) {
+			return (buf.get(pos) & 0x7f)
+					| (buf.get(pos + 1) & 0x7f) << 7
+					| (buf.get(pos + 2)) << 14;
+		} else if (buf.get(pos + 3) >= 0) {
 			mBufferPos += 4;
 			mBytesProcessed += 4;
-			return (buf[pos] & 0x7f)
-					| (buf[pos + 1] & 0x7f) << 7
-					| (buf[pos + 2] & 0x7f) << 14
-					| (buf[pos + 3]) << 21;
+			return (buf.get(pos) & 0x7f)
+					| (buf.get(pos + 1) & 0x7f) << 7
+					| (buf.get(pos + 2) & 0x7f) << 14
+					| (buf.get(pos + 3)) << 21;
 		}
 
-		int result = (buf[pos] & 0x7f)
-				| (buf[pos + 1] & 0x7f) << 7
-				| (buf[pos + 2] & 0x7f) << 14
-				| (buf[pos + 3] & 0x7f) << 21
-				| (buf[pos + 4]) << 28;
+		int result = (buf.get(pos) & 0x7f)
+				| (buf.get(pos + 1) & 0x7f) << 7
+				| (buf.get(pos + 2) & 0x7f) << 14
+				| (buf.get(pos + 3) & 0x7f) << 21
+				| (buf.get(pos + 4)) << 28;
 
 		int read = 5;
 		pos += 4;
 
 		// 'Discard upper 32 bits' - the original comment.
 		// havent found this in any document but the code provided by google.
-		while (buf[pos++] < 0 && read < 10)
+		while (buf.get(pos++) < 0 && read < 10)
 			read++;
 
 		if (read == 10)
@@ -941,17 +1057,19 @@ public class MapDatabase implements IMapDatabase {
 	// ///////////////////////// Lightweight HttpClient //////////////////////
 	// would have written simple tcp server/client for this...
 
+	// number of requests written ahead on one connection
+	private static final int PIPELINE_DEPTH = 4;
+
+	private final ConnectionPool mPool = ConnectionPool.get(SERVER_ADDR, 80);
+	private ConnectionPool.Connection mConnection;
+
 	private int mMaxReq = 0;
-	private Socket mSocket;
 	private OutputStream mCommandStream;
 	private InputStream mResponseStream;
-	private long mLastRequest = 0;
-	private SocketAddress mSockAddr;
 
 	private final static byte[] RESPONSE_HTTP_OK = "HTTP/1.1 200 OK".getBytes();
 	private final static byte[] RESPONSE_CONTENT_LEN = "Content-Length: ".getBytes();
 	private final static int RESPONSE_EXPECTED_LIVES = 100;
-	private final static int RESPONSE_EXPECTED_TIMEOUT = 10000;
 
 	private final static byte[] REQUEST_GET_START = "GET /osmstache/test/".getBytes();
 	private final static byte[] REQUEST_GET_END = (".osmtile HTTP/1.1\n" +
@@ -960,145 +1078,231 @@ public class MapDatabase implements IMapDatabase {
 
 	private byte[] mRequestBuffer;
 
+	// tiles to be requested, in order of queries
+	private final ArrayDeque<Tile> mRequested = new ArrayDeque<Tile>(PIPELINE_DEPTH);
+	// number of tiles in mRequested sent on current connection
+	private int mSent;
+
 	int lwHttpReadHeader() throws IOException {
 		InputStream is = mResponseStream;
 
 		byte[] buf = mReadBuffer;
 
-		int read = 0;
 		int pos = 0;
 		int end = 0;
 		// int max_req = 0;
 		int resp_len = 0;
 		boolean first = true;
 
-		for (int len = 0; pos < read
-				|| (len = is.read(buf, read, BUFFER_SIZE - read)) >= 0; len = 0) {
-			read += len;
+		// read byte-wise from buffered stream so that no bytes of the
+		// following (pipelined) response are consumed
+		for (int b; (b = is.read()) >= 0 || end == 0;) {
+			if (b < 0)
+				throw new IOException("connection closed");
 
-			while (end < read && (buf[end] != '\n'))
-				end++;
+			if (end == BUFFER_SIZE)
+				return -1;
 
-			if (buf[end] == '\n') {
+			buf[end++] = (byte) b;
+			if (b != '\n')
+				continue;
 
-				if (first) {
-					// check for OK
-					for (int i = 0; i < 15 && pos + i < end; i++)
-						if (buf[pos + i] != RESPONSE_HTTP_OK[i])
-							return -1;
-					first = false;
-				} else if (end - pos == 1) {
-					// check empty line (header end)
-					end += 1;
-					break;
-				}
-				else {
-					// parse Content-Length, TODO just encode this with message
-					for (int i = 0; pos + i < end - 1; i++) {
-						if (i < 16) {
-							if (buf[pos + i] == RESPONSE_CONTENT_LEN[i])
-								continue;
+			if (first) {
+				// check for OK
+				for (int i = 0; i < 15 && pos + i < end; i++)
+					if (buf[pos + i] != RESPONSE_HTTP_OK[i])
+						return -1;
+				first = false;
+			} else if (end - pos <= 2) {
+				// empty line (header end)
+				mContentLenth = resp_len;
+
+				mBufferSize = 0;
+				mBufferPos = 0;
+				mReadPos = 0;
 
-							break;
-						}
+				mInputStream = is;
 
-						// read int value
-						resp_len = resp_len * 10 + (buf[pos + i]) - '0';
+				return resp_len;
+			} else {
+				// parse Content-Length, TODO just encode this with message
+				for (int i = 0; pos + i < end - 2; i++) {
+					if (i < 16) {
+						if (buf[pos + i] == RESPONSE_CONTENT_LEN[i])
+							continue;
+
+						break;
 					}
+
+					// read int value
+					resp_len = resp_len * 10 + (buf[pos + i]) - '0';
 				}
+			}
 
-				// String line = new String(buf, pos, end - pos - 1);
-				// Log.d(TAG, ">" + line + "< " + resp_len);
+			// String line = new String(buf, pos, end - pos - 1);
+			// Log.d(TAG, ">" + line + "< " + resp_len);
 
-				pos += (end - pos) + 1;
-				end = pos;
-			}
+			pos = end;
 		}
 
-		mContentLenth = resp_len;
+		return -1;
+	}
 
-		// start of content
-		mBufferPos = end;
+	/**
+	 * Make the response for 'tile' the next to be read: skip responses of
+	 * tiles requested ahead that are not queried, send the request when
+	 * tile was not requested yet.
+	 */
+	private boolean lwHttpRequest(Tile tile) throws IOException {
+		if (!mRequested.contains(tile)) {
+			// not prefetched, drop requests ahead
+			while (mSent > 0)
+				lwHttpSkipResponse();
+
+			mRequested.clear();
+			mRequested.add(tile);
+		}
 
-		// bytes of content already read into buffer
-		mReadPos = read - end;
+		while (mRequested.peek() != tile) {
+			if (mSent > 0)
+				lwHttpSkipResponse();
+			else
+				mRequested.poll();
+		}
 
-		// buffer fill
-		mBufferSize = read;
+		if (mSent == 0)
+			lwHttpSendRequests();
 
-		mInputStream = mResponseStream;
+		mRequested.poll();
+		mSent--;
 
-		return resp_len;
+		return true;
 	}
 
-	private boolean lwHttpSendRequest(Tile tile) throws IOException {
-		if (mSockAddr == null) {
-			mSockAddr = new InetSocketAddress(SERVER_ADDR, 80);
-		}
+	private void lwHttpSkipResponse() throws IOException {
+		mRequested.poll();
+		mSent--;
 
-		if (mSocket != null && ((mMaxReq-- <= 0)
-				|| (SystemClock.elapsedRealtime() - mLastRequest
-				> RESPONSE_EXPECTED_TIMEOUT))) {
+		if (lwHttpReadHeader() < 0)
+			throw new IOException("invalid response");
 
-			try {
-				mSocket.close();
-			} catch (IOException e) {
+		lwHttpSkipContent();
+	}
 
-			}
 
-			// Log.d(TAG, "not alive  - recreate connection " + mMaxReq);
-			mSocket = null;
-		}
+	// read content left by a canceled decode into cache, the tile will
+	// likely be needed again
+	private void lwHttpCacheContent() throws IOException {
+		if (mCacheWriter == null)
+			return;
 
-		if (mSocket == null) {
-			lwHttpConnect();
-			// we know our server
-			mMaxReq = RESPONSE_EXPECTED_LIVES;
-			// Log.d(TAG, "create connection");
-		} else {
-			// should not be needed
-			int avail = mResponseStream.available();
-			if (avail > 0) {
-				Log.d(TAG, "Consume left-over bytes: " + avail);
-				mResponseStream.read(mReadBuffer, 0, avail);
-			}
+		while (mReadPos < mContentLenth) {
+			mBufferPos = mBufferSize;
+			if (readBuffer((int) Math.min(BUFFER_SIZE, mContentLenth - mReadPos)) <= 0)
+				throw new IOException("unexpected end of content " + mTile);
 		}
+	}
 
-		byte[] request = mRequestBuffer;
-		int pos = REQUEST_GET_START.length;
+	// skip content that was not read by decoder
+	private void lwHttpSkipContent() throws IOException {
+		long skip = mContentLenth - mReadPos;
 
-		pos = writeInt(tile.zoomLevel, pos, request);
-		request[pos++] = '/';
-		pos = writeInt(tile.tileX, pos, request);
-		request[pos++] = '/';
-		pos = writeInt(tile.tileY, pos, request);
+		while (skip > 0) {
+			long len = mResponseStream.skip(skip);
+			if (len <= 0) {
+				if (mResponseStream.read() < 0)
+					throw new IOException("unexpected end of stream");
+				len = 1;
+			}
+			skip -= len;
+		}
+		mReadPos = (int) mContentLenth;
+	}
 
-		int len = REQUEST_GET_END.length;
-		System.arraycopy(REQUEST_GET_END, 0, request, pos, len);
-		len += pos;
+	/**
+	 * Send requests for the tiles in mRequested that were not sent on the
+	 * current connection, as many as the connection is expected to serve.
+	 */
+	private void lwHttpSendRequests() throws IOException {
+		if (mConnection != null && mSent == 0 && mMaxReq <= 0) {
+			// Log.d(TAG, "not alive  - recreate connection " + mMaxReq);
+			lwHttpClose();
+		}
 
-		// this does the same but with a few more allocations:
-		// byte[] request = String.format(REQUEST,
-		// Integer.valueOf(tile.zoomLevel),
-		// Integer.valueOf(tile.tileX), Integer.valueOf(tile.tileY)).getBytes();
+		if (mConnection == null)
+			lwHttpConnect(true);
 
 		try {
-			mCommandStream.write(request, 0, len);
-			mCommandStream.flush();
-			return true;
+			lwHttpWriteRequests();
+			return;
 		} catch (IOException e) {
 			Log.d(TAG, "retry - recreate connection");
 		}
 
-		lwHttpConnect();
+		// requests written before on this connection are lost as well
+		lwHttpClose();
+		lwHttpConnect(false);
+
+		lwHttpWriteRequests();
+	}
+
+	private void lwHttpWriteRequests() throws IOException {
+		int cnt = 0;
+
+		for (Tile tile : mRequested) {
+			if (cnt++ < mSent)
+				continue;
+
+			// server closes connection after the pending responses
+			if (mMaxReq <= 0)
+				break;
+
+			byte[] request = mRequestBuffer;
+			int pos = REQUEST_GET_START.length;
+
+			pos = writeInt(tile.zoomLevel, pos, request);
+			request[pos++] = '/';
+			pos = writeInt(tile.tileX, pos, request);
+			request[pos++] = '/';
+			pos = writeInt(tile.tileY, pos, request);
+
+			int len = REQUEST_GET_END.length;
+			System.arraycopy(REQUEST_GET_END, 0, request, pos, len);
+			len += pos;
+
+			// this does the same but with a few more allocations:
+			// byte[] request = String.format(REQUEST,
+			// Integer.valueOf(tile.zoomLevel),
+			// Integer.valueOf(tile.tileX), Integer.valueOf(tile.tileY)).getBytes();
+
+			mCommandStream.write(request, 0, len);
+			mMaxReq--;
+			mSent++;
+		}
 
-		mCommandStream.write(request, 0, len);
 		mCommandStream.flush();
+	}
 
-		return true;
+	// close connection, requests not answered will be sent again
+	private void lwHttpClose() {
+		if (mConnection != null) {
+			mPool.discard(mConnection);
+			mConnection = null;
+		}
+		mSent = 0;
+	}
+
+	// pass connection back to pool when no responses are pending
+	private void lwHttpRelease() {
+		if (mConnection == null || mSent > 0)
+			return;
+
+		mConnection.requestsLeft = mMaxReq;
+		mPool.release(mConnection);
+		mConnection = null;
 	}
 
-	private boolean lwHttpConnect() throws IOException {
+	private boolean lwHttpConnect(boolean reuse) throws IOException {
 		if (mRequestBuffer == null) {
 			mRequestBuffer = new byte[1024];
 			System.arraycopy(REQUEST_GET_START,
@@ -1106,12 +1310,14 @@ public class MapDatabase implements IMapDatabase {
 					REQUEST_GET_START.length);
 		}
 
-		mSocket = new Socket();
-		mSocket.connect(mSockAddr, 30000);
-		mSocket.setTcpNoDelay(true);
-		// mCmdBuffer = new PrintStream(mSocket.getOutputStream());
-		mCommandStream = new BufferedOutputStream(mSocket.getOutputStream());
-		mResponseStream = mSocket.getInputStream();
+		mConnection = mPool.borrow(reuse, RESPONSE_EXPECTED_LIVES);
+
+		// we know our server
+		mMaxReq = mConnection.requestsLeft;
+
+		mCommandStream = mConnection.out;
+		mResponseStream = mConnection.in;
+
 		return true;
 	}
 
@@ -1139,76 +1345,58 @@ public class MapDatabase implements IMapDatabase {
 
 	// //////////////////////////// Tile cache ///////////////////////////////
 
-	private boolean cacheRead(Tile tile, File f) {
-		if (f.exists() && f.length() > 0) {
-			FileInputStream in;
-
-			try {
-				in = new FileInputStream(f);
-
-				mContentLenth = f.length();
-				Log.d(TAG, tile + " using cache: " + mContentLenth);
-				mInputStream = in;
+	/**
+	 * @return the result of decoding the cached tile, or null when the tile
+	 *         is not in cache.
+	 */
+	private QueryResult cacheRead(Tile tile) {
+		ByteBuffer data = mCache.get(tile);
+		if (data == null)
+			return null;
+
+		// decode from the cache buffer, usually mapped from the cache file,
+		// all content is available so readBuffer() will not read further.
+		mBuffer = data;
+		mBufferPos = data.position();
+		mBufferSize = data.limit();
+		mContentLenth = data.remaining();
+		mReadPos = (int) mContentLenth;
+		mInputStream = null;
 
-				decode();
-				in.close();
-
-				return true;
+		try {
+			if (decode()) {
+				// keep cached, only this query was canceled
+				if (mTile.isCanceled)
+					return QueryResult.FAILED;
 
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} catch (Exception ex) {
-				ex.printStackTrace();
+				return QueryResult.SUCCESS;
 			}
-
-			f.delete();
-			return false;
+		} catch (Exception ex) {
+			ex.printStackTrace();
+		} finally {
+			mBuffer = ByteBuffer.wrap(mReadBuffer);
 		}
 
-		return false;
+		// invalid data, the tile may have been passed partially to the
+		// callback already. let it be reloaded from server next time
+		mCache.remove(tile);
+		return QueryResult.FAILED;
 	}
 
-	private boolean cacheBegin(Tile tile, File f) {
-		if (USE_CACHE) {
-			try {
-				Log.d(TAG, "writing cache: " + tile);
-				mCacheFile = new FileOutputStream(f);
+	private void cacheBegin(Tile tile) {
+		if (mCacheWriter == null)
+			return;
 
-				if (mReadPos > 0) {
-					try {
-						mCacheFile.write(mReadBuffer, mBufferPos,
-								mBufferSize - mBufferPos);
+		mCacheWriter.begin(tile);
 
-					} catch (IOException e) {
-						e.printStackTrace();
-						mCacheFile = null;
-						return false;
-					}
-				}
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-				mCacheFile = null;
-				return false;
-			}
-		}
-		return true;
+		// content already read with the response header
+		if (mReadPos > 0)
+			mCacheWriter.write(mReadBuffer, mBufferPos, mBufferSize - mBufferPos);
 	}
 
-	private void cacheFinish(Tile tile, File file, boolean success) {
-		if (USE_CACHE) {
-			if (success) {
-				try {
-					mCacheFile.flush();
-					mCacheFile.close();
-					Log.d(TAG, tile + " cache written " + file.length());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			} else {
-				file.delete();
-			}
-		}
-		mCacheFile = null;
+	private void cacheFinish(boolean success) {
+		if (mCacheWriter != null)
+			mCacheWriter.finish(success);
 	}
 
 	/* All code below is taken from or based on Google's Protocol Buffers
@@ -1244,12 +1432,28 @@ public class MapDatabase implements IMapDatabase {
 	// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
 	// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
+	// strings copied from buffers without array
+	private byte[] mStringBuffer = new byte[256];
+
 	private String decodeString() throws IOException {
 		final int size = decodeVarint32();
 
 		readBuffer(size);
 
-		final String result = new String(mReadBuffer, mBufferPos, size, "UTF-8");
+		final String result;
+		if (mBuffer.hasArray()) {
+			result = new String(mBuffer.array(), mBuffer.arrayOffset() + mBufferPos,
+					size, "UTF-8");
+		} else {
+			byte[] tmp = mStringBuffer;
+			if (tmp.length < size)
+				tmp = mStringBuffer = new byte[size];
+
+			for (int i = 0; i < size; i++)
+				tmp[i] = mBuffer.get(mBufferPos + i);
+
+			result = new String(tmp, 0, size, "UTF-8");
+		}
 
 		mBufferPos += size;
 		mBytesProcessed += size;
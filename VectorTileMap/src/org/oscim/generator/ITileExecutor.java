@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.generator;
+
+import org.oscim.database.IMapDatabase;
+import org.oscim.database.MapDatabases;
+import org.oscim.view.DebugSettings;
+
+/**
+ * Engine that runs the jobs of a JobQueue. Implementations keep one
+ * TileGenerator and IMapDatabase per worker, as neither is thread-safe, and
+ * must support pausing and canceling between tiles.
+ */
+public interface ITileExecutor {
+
+	/**
+	 * Use a new IMapDatabase of 'type' for each worker. Databases replaced
+	 * are closed. Workers must be paused when already started.
+	 * 
+	 * @param type
+	 *            the database type
+	 */
+	void setMapDatabase(MapDatabases type);
+
+	/**
+	 * @param debugSettings
+	 *            the DebugSettings passed to the TileGenerators of all
+	 *            workers.
+	 */
+	void setDebugSettings(DebugSettings debugSettings);
+
+	/**
+	 * @return the number of workers
+	 */
+	int getWorkerCount();
+
+	/**
+	 * @param worker
+	 *            index of worker
+	 * @return the IMapDatabase used by the worker
+	 */
+	IMapDatabase getMapDatabase(int worker);
+
+	void start();
+
+	/**
+	 * Wake up workers for new jobs.
+	 */
+	void notifyWorkers();
+
+	/**
+	 * Pause all workers, they finish the tile they are working on.
+	 * 
+	 * @param wait
+	 *            whether to wait until all workers are pausing
+	 */
+	void pause(boolean wait);
+
+	void proceed();
+
+	/**
+	 * Remove all queued jobs and abort running queries, without pausing the
+	 * workers.
+	 */
+	void cancel();
+
+	/**
+	 * Stop all workers and close their databases.
+	 */
+	void destroy();
+}
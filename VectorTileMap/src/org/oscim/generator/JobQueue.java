@@ -14,61 +14,174 @@
  */
 package org.oscim.generator;
 
-//import static org.oscim.view.mapgenerator.JobTile.LOADING;
-
 import java.util.ArrayList;
-import java.util.PriorityQueue;
 
 /**
  * A JobQueue keeps the list of pending jobs for a MapView and prioritizes them.
+ * <p>
+ * Jobs are kept in a binary heap ordered by JobTile.distance, each JobTile
+ * knows its position in the heap. This way setJobs() can update the queue
+ * for a new set of visible tiles in place: jobs still wanted stay queued with
+ * new priority, only jobs of tiles that left the view are removed.
  */
 public class JobQueue {
 	private static final int INITIAL_CAPACITY = 64;
 
-	private PriorityQueue<JobTile> mPriorityQueue;
+	private JobTile[] mHeap = new JobTile[INITIAL_CAPACITY];
+	private int mSize;
 
-	/**
-	 */
-	public JobQueue() {
-		mPriorityQueue = new PriorityQueue<JobTile>(INITIAL_CAPACITY);
-	}
+	// incremented by setJobs() to mark the tiles passed
+	private int mSerial;
+
+	// jobs taken by poll() and not yet done()
+	private final ArrayList<JobTile> mRunning = new ArrayList<JobTile>();
 
 	/**
+	 * Replace the jobs of this queue: queued tiles which are not in 'tiles'
+	 * are removed (and reset isLoading), tiles which are queued already are
+	 * re-prioritized by their current distance, other tiles are added and
+	 * set isLoading. Tiles that are not queued but isLoading are skipped,
+	 * these are processed by a MapWorker. Running jobs which are not in
+	 * 'tiles' are canceled, see JobTile.isCanceled.
 	 * @param tiles
-	 *            the job to be added to this queue.
+	 *            the jobs to be in this queue.
 	 */
 	public synchronized void setJobs(ArrayList<JobTile> tiles) {
+		int serial = ++mSerial;
+		int n = tiles.size();
+
+		for (int i = 0; i < n; i++) {
+			JobTile t = tiles.get(i);
+			t.queueSerial = serial;
+			t.isCanceled = false;
+		}
+
+		for (int i = 0, m = mRunning.size(); i < m; i++) {
+			JobTile t = mRunning.get(i);
+			if (t.queueSerial != serial)
+				t.isCanceled = true;
+		}
+
+		// remove jobs not wanted anymore
+		JobTile[] heap = mHeap;
+		int size = 0;
 
-		for (int i = 0, n = tiles.size(); i < n; i++) {
-			JobTile tile = tiles.get(i);
-			tile.isLoading = true;
-			mPriorityQueue.offer(tile);
+		for (int i = 0; i < mSize; i++) {
+			JobTile t = heap[i];
+			if (t.queueSerial == serial) {
+				heap[size] = t;
+				t.queueIndex = size++;
+			} else {
+				t.queueIndex = -1;
+				t.isLoading = false;
+			}
 		}
+
+		for (int i = size; i < mSize; i++)
+			heap[i] = null;
+
+		long now = System.nanoTime();
+
+		// append new jobs
+		for (int i = 0; i < n; i++) {
+			JobTile t = tiles.get(i);
+
+			if (t.queueIndex >= 0 || t.isLoading)
+				continue;
+
+			if (size == heap.length) {
+				JobTile[] tmp = new JobTile[size * 2];
+				System.arraycopy(heap, 0, tmp, 0, size);
+				mHeap = heap = tmp;
+			}
+
+			t.isLoading = true;
+			t.queueTime = now;
+			t.queueIndex = size;
+			heap[size++] = t;
+		}
+
+		mSize = size;
+
+		// distances of all jobs may have changed, restore heap order
+		for (int i = (size >> 1) - 1; i >= 0; i--)
+			siftDown(i);
 	}
 
 	/**
 	 * Removes all jobs from this queue.
 	 */
 	public synchronized void clear() {
-
-		JobTile t;
-		while ((t = mPriorityQueue.poll()) != null)
+		for (int i = 0; i < mSize; i++) {
+			JobTile t = mHeap[i];
 			t.isLoading = false;
-
-		mPriorityQueue.clear();
+			t.queueIndex = -1;
+			mHeap[i] = null;
+		}
+		mSize = 0;
 	}
 
 	/**
 	 * @return true if this queue contains no jobs, false otherwise.
 	 */
 	public synchronized boolean isEmpty() {
-		return mPriorityQueue.isEmpty();
+		return mSize == 0;
 	}
 
 	/**
 	 * @return the most important job from this queue or null, if empty.
 	 */
 	public synchronized JobTile poll() {
-		return mPriorityQueue.poll();
+		if (mSize == 0)
+			return null;
+
+		JobTile[] heap = mHeap;
+		JobTile t = heap[0];
+		t.queueIndex = -1;
+		mRunning.add(t);
+
+		if (TileMetrics.enabled && t.queueTime != 0)
+			TileMetrics.add(TileMetrics.QUEUE, System.nanoTime() - t.queueTime);
+
+		JobTile last = heap[--mSize];
+		heap[mSize] = null;
+
+		if (mSize > 0) {
+			heap[0] = last;
+			last.queueIndex = 0;
+			siftDown(0);
+		}
+		return t;
+	}
+
+	/**
+	 * Called by MapWorker when a job taken by poll() is finished.
+	 */
+	public synchronized void done(JobTile tile) {
+		mRunning.remove(tile);
+	}
+
+	private void siftDown(int pos) {
+		JobTile[] heap = mHeap;
+		JobTile t = heap[pos];
+		int half = mSize >> 1;
+
+		while (pos < half) {
+			int child = (pos << 1) + 1;
+			int right = child + 1;
+
+			if (right < mSize && heap[right].distance < heap[child].distance)
+				child = right;
+
+			if (t.distance <= heap[child].distance)
+				break;
+
+			heap[pos] = heap[child];
+			heap[pos].queueIndex = pos;
+			pos = child;
+		}
+
+		heap[pos] = t;
+		t.queueIndex = pos;
 	}
 }
@@ -37,6 +37,28 @@ public class JobTile extends Tile implements Comparable<JobTile> {
 	 */
 	public float distance;
 
+	/**
+	 * set by JobQueue when the tile is not wanted anymore while a MapWorker
+	 * is loading it. IMapDatabase implementations check it between elements
+	 * and stop decoding.
+	 */
+	public volatile boolean isCanceled;
+
+	// position in JobQueue heap, -1 when not queued
+	int queueIndex = -1;
+
+	// serial of last JobQueue.setJobs() that included this tile
+	int queueSerial;
+
+	// when the tile was added to JobQueue, for TileMetrics
+	long queueTime;
+
+	/**
+	 * nanoseconds IMapDatabase.executeQuery() waited for data, set when
+	 * TileMetrics are enabled.
+	 */
+	public long fetchTime;
+
 	/**
 	 * @param tileX
 	 *            ...
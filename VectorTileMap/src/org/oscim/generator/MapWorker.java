@@ -14,8 +14,13 @@
  */
 package org.oscim.generator;
 
+import java.util.ArrayDeque;
+
+import org.oscim.database.IMapDatabase;
+import org.oscim.database.IMapDatabasePipeline;
 import org.oscim.renderer.TileGenerator;
 import org.oscim.renderer.TileManager;
+import org.oscim.utils.Histogram;
 import org.oscim.utils.PausableThread;
 
 /**
@@ -28,6 +33,12 @@ public class MapWorker extends PausableThread {
 	private final TileGenerator mMapGenerator;
 	private final TileManager mTileManager;
 
+	// jobs taken from JobQueue and passed to IMapDatabasePipeline.prefetch
+	private final ArrayDeque<JobTile> mPrefetched = new ArrayDeque<JobTile>();
+
+	// time jobs waited in JobQueue, read by TileExecutor
+	private final Histogram mQueueWait = new Histogram();
+
 	/**
 	 * @param id
 	 *            thread id
@@ -52,6 +63,22 @@ public class MapWorker extends PausableThread {
 		return mMapGenerator;
 	}
 
+	/**
+	 * @return the time each tile loaded by this worker waited in JobQueue.
+	 */
+	public Histogram getQueueWait() {
+		return mQueueWait;
+	}
+
+	/**
+	 * Abort the current query. Jobs taken from JobQueue are kept: their
+	 * requests were sent already, so they are completed into the tile
+	 * cache instead of being fetched again later.
+	 */
+	public void cancel() {
+		takeabreak();
+	}
+
 	@Override
 	protected void afterRun() {
 		// empty
@@ -59,11 +86,13 @@ public class MapWorker extends PausableThread {
 
 	@Override
 	protected void doWork() {
-		JobTile tile = mJobQueue.poll();
+		JobTile tile = nextJob();
 
 		if (tile == null)
 			return;
 
+		mQueueWait.add(System.nanoTime() - tile.queueTime);
+
 		// Log.d("...", "load: " + tile);
 
 		mMapGenerator.executeJob(tile);
@@ -71,6 +100,36 @@ public class MapWorker extends PausableThread {
 		if (!isInterrupted()) {
 			mTileManager.passTile(tile);
 		}
+
+		mJobQueue.done(tile);
+	}
+
+	private JobTile nextJob() {
+		IMapDatabase mapDatabase = mMapGenerator.getMapDatabase();
+
+		if (mapDatabase instanceof IMapDatabasePipeline) {
+			IMapDatabasePipeline pipeline = (IMapDatabasePipeline) mapDatabase;
+
+			for (int n = pipeline.getPipelineDepth(); mPrefetched.size() < n;) {
+				JobTile tile = mJobQueue.poll();
+				if (tile == null)
+					break;
+
+				pipeline.prefetch(tile);
+				mPrefetched.add(tile);
+			}
+		}
+
+		JobTile tile;
+		while ((tile = mPrefetched.poll()) != null) {
+			// skip tiles that were removed by TileManager meanwhile
+			if (tile.isLoading)
+				return tile;
+
+			mJobQueue.done(tile);
+		}
+
+		return mJobQueue.poll();
 	}
 
 	@Override
@@ -90,6 +149,6 @@ public class MapWorker extends PausableThread {
 
 	@Override
 	protected boolean hasWork() {
-		return !mJobQueue.isEmpty();
+		return !mJobQueue.isEmpty() || !mPrefetched.isEmpty();
 	}
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.generator;
+
+import org.oscim.backend.Log;
+import org.oscim.database.IMapDatabase;
+import org.oscim.database.MapDatabaseFactory;
+import org.oscim.database.MapDatabases;
+import org.oscim.renderer.TileGenerator;
+import org.oscim.renderer.TileManager;
+import org.oscim.utils.Histogram;
+import org.oscim.view.DebugSettings;
+import org.oscim.view.MapView;
+
+/**
+ * Runs the jobs of a JobQueue on a set of MapWorkers. Each MapWorker keeps
+ * its own TileGenerator and IMapDatabase. The number of workers depends on
+ * the type of database: as many as there are cores when loading tiles is
+ * bound by CPU, more for network backends which mostly wait for responses.
+ * <p>
+ * Throughput and queue wait of each configuration are logged when the
+ * database is replaced and on destroy().
+ */
+public class TileExecutor implements ITileExecutor {
+	private final static String TAG = TileExecutor.class.getName();
+
+	private static final int MIN_IO_WORKERS = 4;
+	// each network worker can keep one connection busy, see ConnectionPool
+	private static final int MAX_IO_WORKERS = 8;
+
+	private final MapView mMapView;
+	private final JobQueue mJobQueue;
+	private final TileManager mTileManager;
+
+	private MapWorker[] mWorkers = new MapWorker[0];
+	private boolean mStarted;
+
+	// current configuration, see report()
+	private MapDatabases mType;
+	private long mConfigTime;
+
+	/**
+	 * @param type
+	 *            type of IMapDatabase
+	 * @return the number of MapWorkers to use for the database type.
+	 */
+	public static int getWorkerCount(MapDatabases type) {
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		if (type.isNetworkBound())
+			return Math.min(Math.max(cores * 2, MIN_IO_WORKERS), MAX_IO_WORKERS);
+
+		return Math.max(cores, 1);
+	}
+
+	/**
+	 * @param mapView
+	 *            the MapView
+	 * @param jobQueue
+	 *            the queue to take jobs from
+	 * @param tileManager
+	 *            receives loaded tiles
+	 */
+	public TileExecutor(MapView mapView, JobQueue jobQueue, TileManager tileManager) {
+		mMapView = mapView;
+		mJobQueue = jobQueue;
+		mTileManager = tileManager;
+	}
+
+	/**
+	 * Set a new IMapDatabase of 'type' for each worker and add or remove
+	 * workers to match getWorkerCount(type). Databases replaced are closed.
+	 * Workers must be paused when already started.
+	 * @param type
+	 *            the database type
+	 */
+	@Override
+	public synchronized void setMapDatabase(MapDatabases type) {
+		report();
+
+		int num = getWorkerCount(type);
+		MapWorker[] workers = new MapWorker[num];
+
+		for (int i = 0; i < num; i++) {
+			IMapDatabase mapDatabase = MapDatabaseFactory.createMapDatabase(type);
+
+			if (i < mWorkers.length) {
+				TileGenerator tileGenerator = mWorkers[i].getMapGenerator();
+				IMapDatabase old = tileGenerator.getMapDatabase();
+				if (old != null)
+					old.close();
+
+				tileGenerator.setMapDatabase(mapDatabase);
+				workers[i] = mWorkers[i];
+				continue;
+			}
+
+			TileGenerator tileGenerator = new TileGenerator();
+			tileGenerator.setDebugSettings(mMapView.getDebugSettings());
+			tileGenerator.setMapDatabase(mapDatabase);
+			workers[i] = new MapWorker(i, mJobQueue, tileGenerator, mTileManager);
+
+			if (mStarted) {
+				// start paused, like the others
+				workers[i].pause();
+				workers[i].start();
+			}
+		}
+
+		for (int i = num; i < mWorkers.length; i++)
+			stopWorker(mWorkers[i]);
+
+		mWorkers = workers;
+
+		for (MapWorker worker : mWorkers)
+			worker.getQueueWait().reset();
+
+		mType = type;
+		mConfigTime = System.nanoTime();
+
+		Log.d(TAG, "using " + num + " workers for " + type);
+	}
+
+	/**
+	 * Log tiles loaded per second and their average and maximum wait in
+	 * JobQueue since the current configuration was set.
+	 */
+	private void report() {
+		if (mType == null)
+			return;
+
+		long tiles = 0;
+		long wait = 0;
+		long maxWait = 0;
+		for (MapWorker worker : mWorkers) {
+			Histogram h = worker.getQueueWait();
+			tiles += h.getCount();
+			wait += h.getSum();
+			maxWait = Math.max(maxWait, h.getMax());
+		}
+
+		if (tiles == 0)
+			return;
+
+		double seconds = (System.nanoTime() - mConfigTime) / 1e9;
+
+		Log.d(TAG, mType + " with " + mWorkers.length + " workers: " + tiles
+				+ " tiles, " + (int) (tiles / seconds) + " tiles/s, queue wait "
+				+ (wait / tiles / 1000000) + "ms avg, " + (maxWait / 1000000)
+				+ "ms max");
+	}
+
+	/**
+	 * @param debugSettings
+	 *            the DebugSettings passed to the TileGenerators of all
+	 *            workers.
+	 */
+	@Override
+	public synchronized void setDebugSettings(DebugSettings debugSettings) {
+		for (MapWorker worker : mWorkers)
+			worker.getMapGenerator().setDebugSettings(debugSettings);
+	}
+
+	@Override
+	public synchronized int getWorkerCount() {
+		return mWorkers.length;
+	}
+
+	/**
+	 * @param worker
+	 *            index of worker
+	 * @return the IMapDatabase used by the worker
+	 */
+	@Override
+	public synchronized IMapDatabase getMapDatabase(int worker) {
+		return mWorkers[worker].getMapGenerator().getMapDatabase();
+	}
+
+	@Override
+	public synchronized void start() {
+		if (mStarted)
+			return;
+
+		mStarted = true;
+		for (MapWorker worker : mWorkers)
+			worker.start();
+	}
+
+	/**
+	 * Wake up workers for new jobs.
+	 */
+	@Override
+	public synchronized void notifyWorkers() {
+		for (MapWorker worker : mWorkers) {
+			synchronized (worker) {
+				worker.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Pause all workers, they finish the tile they are working on.
+	 * @param wait
+	 *            whether to wait until all workers are pausing
+	 */
+	@Override
+	public synchronized void pause(boolean wait) {
+		// signal all workers first, so that they can stop in parallel
+		for (MapWorker worker : mWorkers)
+			worker.pause();
+
+		if (!wait)
+			return;
+
+		for (MapWorker worker : mWorkers) {
+			if (!worker.isPausing())
+				worker.awaitPausing();
+		}
+	}
+
+	@Override
+	public synchronized void proceed() {
+		for (MapWorker worker : mWorkers)
+			worker.proceed();
+	}
+
+	/**
+	 * Remove all queued jobs and abort running queries, without pausing the
+	 * workers. Jobs the workers have taken already are completed, their
+	 * requests may have been sent.
+	 */
+	@Override
+	public synchronized void cancel() {
+		mJobQueue.clear();
+
+		for (MapWorker worker : mWorkers)
+			worker.cancel();
+	}
+
+	/**
+	 * Stop all workers and close their databases.
+	 */
+	@Override
+	public synchronized void destroy() {
+		for (MapWorker worker : mWorkers)
+			stopWorker(worker);
+
+		report();
+		mType = null;
+
+		mWorkers = new MapWorker[0];
+	}
+
+	private void stopWorker(MapWorker worker) {
+		if (worker.isAlive()) {
+			// let the worker finish its current tile first: an interrupt
+			// while reading closes FileChannels shared with other workers
+			worker.pause();
+			worker.awaitPausing();
+			worker.interrupt();
+
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				// restore the interrupted status
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		IMapDatabase mapDatabase = worker.getMapGenerator().getMapDatabase();
+		if (mapDatabase != null)
+			mapDatabase.close();
+	}
+}
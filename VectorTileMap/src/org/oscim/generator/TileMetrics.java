@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.generator;
+
+import org.oscim.backend.Log;
+import org.oscim.utils.Histogram;
+
+/**
+ * Durations of the stages of loading a tile, one Histogram per stage and
+ * tile. Call sites check 'enabled' before reading the clock, so there is
+ * no cost other than the check when disabled.
+ * <p>
+ * QUERY stages are exclusive: DECODE is the time spent in
+ * IMapDatabase.executeQuery() minus FETCH, THEME and GEOMETRY.
+ * <p>
+ * FRAME is recorded per frame rather than per tile: the CPU time of the
+ * GL-Thread to upload tiles and draw.
+ */
+public final class TileMetrics {
+	private final static String TAG = TileMetrics.class.getName();
+
+	/** time from JobQueue.setJobs() until a MapWorker takes the job */
+	public static final int QUEUE = 0;
+	/** waiting for data from network or file */
+	public static final int FETCH = 1;
+	/** parsing data of IMapDatabase */
+	public static final int DECODE = 2;
+	/** RenderTheme matching */
+	public static final int THEME = 3;
+	/** building lines and polygons in LineLayer, PolygonLayer */
+	public static final int GEOMETRY = 4;
+	/** compiling layers to vertices */
+	public static final int COMPILE = 5;
+	/** upload of vertices and textures by GLRenderer */
+	public static final int UPLOAD = 6;
+	/** GL-Thread CPU time of one frame */
+	public static final int FRAME = 7;
+
+	public static final int STAGES = 8;
+
+	private static final String[] NAMES = {
+			"queue", "fetch", "decode", "theme", "geometry", "compile", "upload",
+			"frame" };
+
+	/**
+	 * enable recording, checked by instrumented code.
+	 */
+	public static boolean enabled;
+
+	private static final Histogram[] mStages = new Histogram[STAGES];
+
+	static {
+		for (int i = 0; i < STAGES; i++)
+			mStages[i] = new Histogram();
+	}
+
+	// interval of dump(), 0 to disable
+	private static long mDumpInterval;
+	private static long mLastDump;
+
+	/**
+	 * @param stage
+	 *            one of QUEUE, FETCH, ...
+	 * @return the Histogram of stage
+	 */
+	public static Histogram get(int stage) {
+		return mStages[stage];
+	}
+
+	public static String getName(int stage) {
+		return NAMES[stage];
+	}
+
+	/**
+	 * Add duration to stage. Instrumented code should only call this when
+	 * 'enabled' is set.
+	 */
+	public static void add(int stage, long nanos) {
+		mStages[stage].add(nanos);
+	}
+
+	/**
+	 * @param millis
+	 *            log metrics of all stages every 'millis', 0 to disable.
+	 *            also enables recording when > 0.
+	 */
+	public static void setDumpInterval(long millis) {
+		mDumpInterval = millis;
+		if (millis > 0)
+			enabled = true;
+	}
+
+	/**
+	 * Called periodically by GLRenderer, logs metrics when the dump
+	 * interval passed.
+	 */
+	public static void update() {
+		if (mDumpInterval <= 0)
+			return;
+
+		long now = System.nanoTime() / 1000000;
+		if (now - mLastDump < mDumpInterval)
+			return;
+
+		mLastDump = now;
+		dump();
+	}
+
+	/**
+	 * Log metrics of all stages.
+	 */
+	public static void dump() {
+		for (int i = 0; i < STAGES; i++)
+			Log.d(TAG, NAMES[i] + " " + mStages[i]);
+	}
+
+	public static void reset() {
+		for (int i = 0; i < STAGES; i++)
+			mStages[i].reset();
+	}
+
+	private TileMetrics() {
+	}
+}
@@ -33,8 +33,10 @@ import javax.microedition.khronos.opengles.GL10;
 
 import org.oscim.core.MapPosition;
 import org.oscim.core.Tile;
+import org.oscim.generator.TileMetrics;
 import org.oscim.renderer.layer.Layer;
 import org.oscim.renderer.layer.Layers;
+import org.oscim.renderer.layer.VertexPool;
 import org.oscim.renderer.overlays.RenderOverlay;
 import org.oscim.theme.RenderTheme;
 import org.oscim.utils.GlUtils;
@@ -44,6 +46,7 @@ import org.oscim.view.MapViewPosition;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Debug;
 import android.os.SystemClock;
 import android.util.Log;
 
@@ -68,7 +71,17 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 	private static int rotateBuffers = 2;
 	private static ShortBuffer shortBuffer[];
-	private static short[] mFillCoords;
+
+	// tile clip/fill coordinates, with half pixel added to avoid rounding
+	// issues. initialized statically as TileGenerator uses them without a
+	// GLRenderer.
+	private static final short FILL_MIN = -4;
+	private static final short FILL_MAX = (short) ((Tile.TILE_SIZE << 3) + 4);
+	static final short[] mFillCoords = {
+			FILL_MIN, FILL_MAX,
+			FILL_MAX, FILL_MAX,
+			FILL_MIN, FILL_MIN,
+			FILL_MAX, FILL_MIN };
 
 	// bytes currently loaded in VBOs
 	private static int mBufferMemoryUsage;
@@ -100,6 +113,9 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 	/* package */static int mHolderCount;
 	/* package */static Tiles mDrawTiles;
 
+	// mDrawTiles and placeholders, to find tiles in mScanBox
+	private static TileSet mDrawSet = new TileSet(64);
+
 	static boolean[] vertexArray = { false, false };
 
 	// TODO
@@ -116,13 +132,14 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 			MapTile[] tiles = mDrawTiles.tiles;
 
-			for (int i = 0; i < cnt; i++) {
-				MapTile t = tiles[i];
-				if (t.tileY == y && t.tileX >= x1 && t.tileX < x2)
+			int xmax = 1 << mZoom;
+
+			for (int x = Math.max(x1, 0), end = Math.min(x2, xmax); x < end; x++) {
+				MapTile t = mDrawSet.get(x, y, mZoom);
+				if (t != null)
 					t.isVisible = true;
 			}
 
-			int xmax = 1 << mZoom;
 			if (x1 >= 0 && x2 < xmax)
 				return;
 
@@ -131,7 +148,6 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 			for (int x = x1; x < x2; x++) {
 				MapTile holder = null;
 				MapTile tile = null;
-				boolean found = false;
 
 				if (x >= 0 && x < xmax)
 					continue;
@@ -146,22 +162,12 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 					// Log.d(TAG, "out of bounds " + y + " " + x + "/" + xx);
 					continue;
 				}
-				for (int i = cnt; i < cnt + mHolderCount; i++)
-					if (tiles[i].tileX == x && tiles[i].tileY == y) {
-						found = true;
-						break;
-					}
-
-				if (found) {
+				if (mDrawSet.get(x, y, mZoom) != null) {
 					// Log.d(TAG, "already added " + y + " " + x + "/" + xx);
 					continue;
 				}
 
-				for (int i = 0; i < cnt; i++)
-					if (tiles[i].tileX == xx && tiles[i].tileY == y) {
-						tile = tiles[i];
-						break;
-					}
+				tile = mDrawSet.get(xx, y, mZoom);
 
 				if (tile == null) {
 					// Log.d(TAG, "not found " + y + " " + x + "/" + xx);
@@ -172,6 +178,7 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 				holder.isVisible = true;
 				holder.holder = tile;
 				tiles[cnt + mHolderCount++] = holder;
+				mDrawSet.add(holder);
 			}
 		}
 	};
@@ -189,19 +196,6 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 		Matrix.setIdentityM(mMVPMatrix, 0);
 
-		// add half pixel to tile clip/fill coordinates to avoid rounding issues
-		short min = -4;
-		short max = (short) ((Tile.TILE_SIZE << 3) + 4);
-		mFillCoords = new short[8];
-		mFillCoords[0] = min;
-		mFillCoords[1] = max;
-		mFillCoords[2] = max;
-		mFillCoords[3] = max;
-		mFillCoords[4] = min;
-		mFillCoords[5] = min;
-		mFillCoords[6] = max;
-		mFillCoords[7] = min;
-
 		shortBuffer = new ShortBuffer[rotateBuffers];
 
 		for (int i = 0; i < rotateBuffers; i++) {
@@ -229,6 +223,9 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 	private static int uploadCnt = 0;
 
+	// compile time of last uploadLayers(), for TileMetrics
+	private static long mCompileTime;
+
 	private static boolean uploadLayers(Layers layers, BufferObject vbo, boolean addFill) {
 
 		int newSize = layers.getSize();
@@ -270,7 +267,16 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 			// sbuf.position(8);
 		}
 
+		long start = TileMetrics.enabled ? System.nanoTime() : 0;
+
 		layers.compile(sbuf, addFill);
+
+		if (start != 0) {
+			mCompileTime = System.nanoTime() - start;
+			TileMetrics.add(TileMetrics.COMPILE, mCompileTime);
+		}
+
+		layers.uploadTextures();
 		sbuf.flip();
 
 		if (newSize != sbuf.remaining()) {
@@ -283,7 +289,41 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 			// tile.newData = false;
 			return false;
 		}
-		newSize *= SHORT_BYTES;
+
+		uploadBuffer(sbuf, vbo);
+
+		return true;
+	}
+
+	/**
+	 * upload vertices that were already compiled by TileGenerator
+	 */
+	private static boolean uploadCompiled(Layers layers, ShortBuffer sbuf,
+			BufferObject vbo) {
+
+		int newSize = layers.getSize() + 8;
+		if (newSize != sbuf.remaining()) {
+			Log.d(TAG, "wrong size: "
+					+ newSize + " "
+					+ sbuf.position() + " "
+					+ sbuf.limit() + " "
+					+ sbuf.remaining());
+
+			return false;
+		}
+
+		layers.uploadTextures();
+
+		GLES20.glBindBuffer(GL_ARRAY_BUFFER, vbo.id);
+		uploadCnt++;
+
+		uploadBuffer(sbuf, vbo);
+
+		return true;
+	}
+
+	private static void uploadBuffer(ShortBuffer sbuf, BufferObject vbo) {
+		int newSize = sbuf.remaining() * SHORT_BYTES;
 
 		// reuse memory allocated for vbo when possible and allocated
 		// memory is less then four times the new data
@@ -296,13 +336,25 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 			GLES20.glBufferData(GL_ARRAY_BUFFER, vbo.size, sbuf, GL_DYNAMIC_DRAW);
 			mBufferMemoryUsage += vbo.size;
 		}
-
-		return true;
 	}
 
 	private static boolean uploadTileData(MapTile tile) {
+		long start = 0;
+		if (TileMetrics.enabled) {
+			start = System.nanoTime();
+			mCompileTime = 0;
+		}
+
 		if (tile.layers != null) {
-			tile.isReady = uploadLayers(tile.layers, tile.vbo, true);
+			if (tile.vertices != null) {
+				tile.isReady = uploadCompiled(tile.layers, tile.vertices, tile.vbo);
+				// data is copied by glBufferData, pass buffer back to pool
+				ShortBufferPool.release(tile.vertices);
+				tile.vertices = null;
+			} else {
+				tile.isReady = uploadLayers(tile.layers, tile.vbo, true);
+			}
+
 			if (!tile.isReady) {
 				tile.layers.clear();
 				tile.layers = null;
@@ -311,6 +363,9 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 		tile.newData = false;
 		// Log.d(TAG, "uploaded " + tile.isReady + " " + tile);
 
+		if (start != 0)
+			TileMetrics.add(TileMetrics.UPLOAD, System.nanoTime() - start - mCompileTime);
+
 		return tile.isReady;
 	}
 
@@ -339,6 +394,9 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 
 		Log.d(TAG, "now: " + mBufferMemoryUsage / MB + "MB");
 
+		Log.d(TAG, "vertex pool: " + VertexPool.getPoolSize() + " pooled, "
+				+ VertexPool.getAllocated() + " allocated");
+
 		if (mBufferMemoryUsage > LIMIT_BUFFERS && CACHE_TILES > 100)
 			CACHE_TILES -= 50;
 	}
@@ -386,7 +444,13 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 		// while rendering is going on.
 		drawlock.lock();
 		try {
+			long cpu = TileMetrics.enabled ? Debug.threadCpuTimeNanos() : -1;
+
 			draw();
+
+			// threadCpuTimeNanos returns -1 when not supported
+			if (cpu >= 0)
+				TileMetrics.add(TileMetrics.FRAME, Debug.threadCpuTimeNanos() - cpu);
 		} finally {
 			drawlock.unlock();
 		}
@@ -461,6 +525,11 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 			}
 
 			mHolderCount = 0;
+
+			mDrawSet.clear();
+			for (int i = 0; i < tileCnt; i++)
+				mDrawSet.add(tiles[i]);
+
 			mScanBox.scan(coords, tiles[0].zoomLevel);
 		}
 
@@ -580,6 +649,9 @@ public class GLRenderer implements GLSurfaceView.Renderer {
 			Log.d(TAG, "draw took " + (SystemClock.uptimeMillis() - start));
 		}
 
+		if (TileMetrics.enabled)
+			TileMetrics.update();
+
 		if (debugView) {
 			float mm = 0.5f;
 			float min = -mm;
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer;
+
+import java.nio.ShortBuffer;
+
+import org.oscim.database.IMapDatabase;
+import org.oscim.renderer.layer.Layers;
+import org.oscim.renderer.layer.TextItem;
+import org.oscim.theme.RenderTheme;
+
+/**
+ * Builds tiles without MapView, TileManager or GL context, e.g. to
+ * pre-render or test tiles on a server. Each HeadlessTileBuilder owns its
+ * TileGenerator, several builders with their own IMapDatabase can run in
+ * parallel.
+ * <p>
+ * Outside of Android text sizes are estimated and symbols are skipped, see
+ * org.oscim.backend.Platform.
+ */
+public class HeadlessTileBuilder {
+	private final TileGenerator mTileGenerator;
+
+	/**
+	 * @param mapDatabase
+	 *            an opened IMapDatabase, used only by this builder
+	 * @param theme
+	 *            the RenderTheme to apply
+	 */
+	public HeadlessTileBuilder(IMapDatabase mapDatabase, RenderTheme theme) {
+		mTileGenerator = new TileGenerator();
+		mTileGenerator.setMapDatabase(mapDatabase);
+		mTileGenerator.setTheme(theme);
+	}
+
+	/**
+	 * @return the TileGenerator, e.g. to pass DebugSettings
+	 */
+	public TileGenerator getTileGenerator() {
+		return mTileGenerator;
+	}
+
+	/**
+	 * @param x
+	 *            tile x
+	 * @param y
+	 *            tile y
+	 * @param z
+	 *            zoom level
+	 * @return the tile with layers, labels and compiled vertices or null
+	 *         when the database failed to load the tile. Pass it to
+	 *         release() when done.
+	 */
+	public MapTile build(int x, int y, byte z) {
+		MapTile tile = new MapTile(x, y, z);
+		tile.isLoading = true;
+
+		if (!mTileGenerator.executeJob(tile))
+			return null;
+
+		tile.isLoading = false;
+		return tile;
+	}
+
+	/**
+	 * @param tile
+	 *            a tile returned by build()
+	 * @return the layers of the tile or null when it is empty
+	 */
+	public static Layers getLayers(MapTile tile) {
+		return tile.layers;
+	}
+
+	/**
+	 * @param tile
+	 *            a tile returned by build()
+	 * @return the compiled vertices, as they would be uploaded to the VBO,
+	 *         or null when the tile is empty or too many tiles built were
+	 *         not released
+	 */
+	public static ShortBuffer getVertices(MapTile tile) {
+		return tile.vertices;
+	}
+
+	/**
+	 * Return the buffers of a tile to their pools.
+	 * @param tile
+	 *            a tile returned by build()
+	 */
+	public static void release(MapTile tile) {
+		if (tile.layers != null) {
+			tile.layers.clear();
+			tile.layers = null;
+		}
+
+		if (tile.vertices != null) {
+			ShortBufferPool.release(tile.vertices);
+			tile.vertices = null;
+		}
+
+		TextItem.release(tile.labels);
+		tile.labels = null;
+	}
+}
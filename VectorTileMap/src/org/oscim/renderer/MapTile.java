@@ -14,6 +14,8 @@
  */
 package org.oscim.renderer;
 
+import java.nio.ShortBuffer;
+
 import org.oscim.generator.JobTile;
 import org.oscim.renderer.layer.Layers;
 import org.oscim.renderer.layer.TextItem;
@@ -34,6 +36,12 @@ public final class MapTile extends JobTile {
 	public TextItem labels;
 	Layers layers;
 
+	/**
+	 * vertices of 'layers' compiled by TileGenerator, ready to be uploaded
+	 * to vbo by GL-Thread. null when layers are empty.
+	 */
+	ShortBuffer vertices;
+
 	/**
 	 * tile has new data to upload to gl
 	 */
@@ -49,6 +57,11 @@ public final class MapTile extends JobTile {
 	 */
 	public boolean isVisible;
 
+	/**
+	 * tile was queued by TilePrefetcher and has not been visible yet.
+	 */
+	boolean prefetch;
+
 	/**
 	 * pointer to access relatives in QuadTree
 	 */
@@ -56,6 +69,17 @@ public final class MapTile extends JobTile {
 
 	int lastDraw = 0;
 
+	/**
+	 * memory accounted for this tile by TileManager
+	 */
+	int bytes;
+
+	/**
+	 * position in TileCache, -1 when not contained, i.e. visible
+	 */
+	int cacheIndex = -1;
+	long cacheKey;
+
 	// keep track which tiles are locked as proxy for this tile
 	final static int PROXY_CHILD1 = 1 << 0;
 	final static int PROXY_CHILD2 = 1 << 1;
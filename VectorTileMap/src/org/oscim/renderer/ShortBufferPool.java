@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+
+/**
+ * Pool of direct ShortBuffers used by MapWorkers to pass compiled tile
+ * vertices to the GL-Thread. Buffers are pooled in size classes of powers
+ * of two, starting at MIN_SHORTS.
+ * <p>
+ * Loaded tiles keep their buffer until they are uploaded or cleared, which
+ * may take long for tiles that were prefetched or left the view. get()
+ * returns null when the buffers handed out exceed OUTSTANDING_LIMIT_BYTES,
+ * the vertices of such tiles are compiled on upload instead.
+ */
+final class ShortBufferPool {
+	private static final int SHORT_BYTES = 2;
+
+	// 8kb smallest buffer
+	private static final int MIN_SHIFT = 12;
+	private static final int MIN_SHORTS = 1 << MIN_SHIFT;
+	private static final int NUM_CLASSES = 12;
+
+	// do not keep more than this in pool
+	private static final int POOL_LIMIT_BYTES = 4 * 1024 * 1024;
+
+	// do not hand out more than this
+	private static final int OUTSTANDING_LIMIT_BYTES = 8 * 1024 * 1024;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final ArrayList<ShortBuffer>[] pool = new ArrayList[NUM_CLASSES];
+
+	static {
+		for (int i = 0; i < NUM_CLASSES; i++)
+			pool[i] = new ArrayList<ShortBuffer>();
+	}
+
+	private static int pooledBytes;
+	// bytes of buffers not released yet
+	private static int outstandingBytes;
+
+	private static int sizeClass(int shorts) {
+		int c = 0;
+		for (int size = MIN_SHORTS; size < shorts; size <<= 1)
+			c++;
+		return c;
+	}
+
+	/**
+	 * @param shorts
+	 *            minimum capacity of the buffer
+	 * @return a cleared ShortBuffer in native byte order, or null when too
+	 *         many buffers are in use
+	 */
+	static ShortBuffer get(int shorts) {
+		int c = sizeClass(shorts);
+		int capacity = (c < NUM_CLASSES ? MIN_SHORTS << c : shorts);
+
+		synchronized (pool) {
+			int bytes = capacity * SHORT_BYTES;
+			if (outstandingBytes + bytes > OUTSTANDING_LIMIT_BYTES)
+				return null;
+
+			outstandingBytes += bytes;
+
+			if (c < NUM_CLASSES) {
+				ArrayList<ShortBuffer> l = pool[c];
+				int n = l.size();
+				if (n > 0) {
+					ShortBuffer sbuf = l.remove(n - 1);
+					pooledBytes -= bytes;
+					sbuf.clear();
+					return sbuf;
+				}
+			}
+		}
+
+		// allocate outside of lock, allocateDirect can be slow
+
+		return ByteBuffer.allocateDirect(capacity * SHORT_BYTES)
+				.order(ByteOrder.nativeOrder())
+				.asShortBuffer();
+	}
+
+	/**
+	 * @param sbuf
+	 *            a buffer returned by get(), must not be used afterwards
+	 */
+	static void release(ShortBuffer sbuf) {
+		if (sbuf == null)
+			return;
+
+		int c = sizeClass(sbuf.capacity());
+		int bytes = sbuf.capacity() * SHORT_BYTES;
+
+		synchronized (pool) {
+			outstandingBytes -= bytes;
+
+			// only pool buffers with exact size class capacity
+			if (c >= NUM_CLASSES || (MIN_SHORTS << c) != sbuf.capacity())
+				return;
+
+			if (pooledBytes + bytes > POOL_LIMIT_BYTES)
+				return;
+
+			pooledBytes += bytes;
+			pool[c].add(sbuf);
+		}
+	}
+
+	static void clear() {
+		synchronized (pool) {
+			for (int i = 0; i < NUM_CLASSES; i++)
+				pool[i].clear();
+			pooledBytes = 0;
+		}
+	}
+
+	private ShortBufferPool() {
+	}
+}
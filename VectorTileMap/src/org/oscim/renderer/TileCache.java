@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer;
+
+/**
+ * Binary heap of the tiles which are not visible, ordered by
+ * MapTile.cacheKey so that the tile to be evicted first is on top. Each
+ * MapTile knows its position in the heap, so that tiles becoming visible
+ * again can be removed in O(log n).
+ * <p>
+ * Used only from TileManager.
+ */
+final class TileCache {
+	private static final int INITIAL_CAPACITY = 256;
+
+	private MapTile[] mHeap = new MapTile[INITIAL_CAPACITY];
+	private int mSize;
+
+	/**
+	 * Add tile, or update its key when it is already contained.
+	 * @param tile
+	 *            the tile
+	 * @param key
+	 *            lower keys are evicted first
+	 */
+	void add(MapTile tile, long key) {
+		if (tile.cacheIndex >= 0) {
+			int pos = tile.cacheIndex;
+			long prev = tile.cacheKey;
+			tile.cacheKey = key;
+			if (key < prev)
+				siftUp(pos);
+			else
+				siftDown(pos);
+			return;
+		}
+
+		if (mSize == mHeap.length) {
+			MapTile[] tmp = new MapTile[mSize * 2];
+			System.arraycopy(mHeap, 0, tmp, 0, mSize);
+			mHeap = tmp;
+		}
+
+		tile.cacheKey = key;
+		mHeap[mSize] = tile;
+		tile.cacheIndex = mSize++;
+		siftUp(tile.cacheIndex);
+	}
+
+	void remove(MapTile tile) {
+		int pos = tile.cacheIndex;
+		if (pos < 0)
+			return;
+
+		tile.cacheIndex = -1;
+
+		MapTile last = mHeap[--mSize];
+		mHeap[mSize] = null;
+
+		if (last == tile)
+			return;
+
+		mHeap[pos] = last;
+		last.cacheIndex = pos;
+
+		if (pos > 0 && last.cacheKey < mHeap[(pos - 1) >> 1].cacheKey)
+			siftUp(pos);
+		else
+			siftDown(pos);
+	}
+
+	/**
+	 * @return the tile to be evicted first, or null when empty
+	 */
+	MapTile poll() {
+		if (mSize == 0)
+			return null;
+
+		MapTile t = mHeap[0];
+		remove(t);
+		return t;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	void clear() {
+		for (int i = 0; i < mSize; i++) {
+			mHeap[i].cacheIndex = -1;
+			mHeap[i] = null;
+		}
+		mSize = 0;
+	}
+
+	private void siftUp(int pos) {
+		MapTile[] heap = mHeap;
+		MapTile t = heap[pos];
+
+		while (pos > 0) {
+			int parent = (pos - 1) >> 1;
+			if (heap[parent].cacheKey <= t.cacheKey)
+				break;
+
+			heap[pos] = heap[parent];
+			heap[pos].cacheIndex = pos;
+			pos = parent;
+		}
+
+		heap[pos] = t;
+		t.cacheIndex = pos;
+	}
+
+	private void siftDown(int pos) {
+		MapTile[] heap = mHeap;
+		MapTile t = heap[pos];
+		int half = mSize >> 1;
+
+		while (pos < half) {
+			int child = (pos << 1) + 1;
+			int right = child + 1;
+
+			if (right < mSize && heap[right].cacheKey < heap[child].cacheKey)
+				child = right;
+
+			if (t.cacheKey <= heap[child].cacheKey)
+				break;
+
+			heap[pos] = heap[child];
+			heap[pos].cacheIndex = pos;
+			pos = child;
+		}
+
+		heap[pos] = t;
+		t.cacheIndex = pos;
+	}
+}
@@ -14,6 +14,10 @@
  */
 package org.oscim.renderer;
 
+import java.nio.ShortBuffer;
+import java.util.BitSet;
+
+import org.oscim.backend.Log;
 import org.oscim.core.MercatorProjection;
 import org.oscim.core.Tag;
 import org.oscim.core.Tile;
@@ -22,6 +26,7 @@ import org.oscim.database.IMapDatabase;
 import org.oscim.database.IMapDatabaseCallback;
 import org.oscim.database.QueryResult;
 import org.oscim.generator.JobTile;
+import org.oscim.generator.TileMetrics;
 import org.oscim.renderer.layer.Layer;
 import org.oscim.renderer.layer.Layers;
 import org.oscim.renderer.layer.LineLayer;
@@ -30,18 +35,16 @@ import org.oscim.renderer.layer.SymbolItem;
 import org.oscim.renderer.layer.SymbolLayer;
 import org.oscim.renderer.layer.TextItem;
 import org.oscim.theme.IRenderCallback;
+import org.oscim.theme.MatchingCache;
 import org.oscim.theme.RenderTheme;
 import org.oscim.theme.renderinstruction.Area;
 import org.oscim.theme.renderinstruction.Line;
 import org.oscim.theme.renderinstruction.RenderInstruction;
 import org.oscim.theme.renderinstruction.Text;
 import org.oscim.view.DebugSettings;
-import org.oscim.view.MapView;
 
 import android.graphics.Bitmap;
 import android.graphics.Paint;
-import android.util.FloatMath;
-import android.util.Log;
 
 /**
  * 
@@ -56,11 +59,28 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	private static final double STROKE_INCREASE = Math.sqrt(2);
 	private static final byte LAYERS = 11;
 
+	// number of shorts used for tile fill coordinates in front of vertices
+	private static final int FILL_COORDS = 8;
+
 	static final byte STROKE_MIN_ZOOM_LEVEL = 12;
 	static final byte STROKE_MAX_ZOOM_LEVEL = 17;
 
+	// default theme of all TileGenerators
 	private static RenderTheme renderTheme;
 
+	// theme of this TileGenerator, null to use the default
+	private RenderTheme mTheme;
+
+	// theme used for the current job
+	private RenderTheme mRenderTheme;
+
+	// matched render instructions of mRenderTheme
+	private MatchingCache mMatchingCache;
+	private RenderTheme mMatchingCacheTheme;
+
+	private volatile DebugSettings mDebugSettings =
+			new DebugSettings(false, false, false, false);
+
 	private IMapDatabase mMapDatabase;
 
 	private MapTile mCurrentTile;
@@ -88,7 +108,6 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	private RenderInstruction[] mRenderInstructions = null;
 
 	private final String TAG_WATER = "water".intern();
-	private final MapView mMapView;
 
 	private final Tag[] debugTagBox = { new Tag("debug", "box") };
 	private final Tag[] debugTagWay = { new Tag("debug", "way") };
@@ -99,17 +118,38 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
 	private float mProjectionScaleFactor;
 
+	/**
+	 * @param theme
+	 *            the RenderTheme used by TileGenerators without their own
+	 *            theme.
+	 */
 	public static void setRenderTheme(RenderTheme theme) {
 		renderTheme = theme;
 	}
 
+	public TileGenerator() {
+		Log.d(TAG, "init TileGenerator");
+	}
+
 	/**
-	 * @param mapView
-	 *            the MapView
+	 * @param theme
+	 *            RenderTheme of this TileGenerator, null to use the one set
+	 *            by setRenderTheme(RenderTheme).
 	 */
-	public TileGenerator(MapView mapView) {
-		Log.d(TAG, "init TileGenerator");
-		mMapView = mapView;
+	public void setTheme(RenderTheme theme) {
+		mTheme = theme;
+	}
+
+	/**
+	 * @return the cache of matched render instructions of the last job, to
+	 *         read its counters. null before the first job.
+	 */
+	public MatchingCache getMatchingCache() {
+		return mMatchingCache;
+	}
+
+	public void setDebugSettings(DebugSettings debugSettings) {
+		mDebugSettings = debugSettings;
 	}
 
 	private float mPoiX = 256;
@@ -171,8 +211,13 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		filterTags(tags);
 		// Log.d(TAG, "renderPointOfInterest: " + mTagName);
 
+		long start = TileMetrics.enabled ? System.nanoTime() : 0;
+
 		// mNodeRenderInstructions =
-		TileGenerator.renderTheme.matchNode(this, tags, mCurrentTile.zoomLevel);
+		mRenderTheme.matchNode(this, mMatchingCache, tags, mCurrentTile.zoomLevel);
+
+		if (start != 0)
+			mThemeTime += System.nanoTime() - start;
 	}
 
 	@Override
@@ -216,10 +261,15 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		// mRenderInstructions[i].renderWay(this, tags);
 		// }
 
-		mRenderInstructions = TileGenerator.renderTheme.matchWay(this, tags,
+		long start = TileMetrics.enabled ? System.nanoTime() : 0;
+
+		mRenderInstructions = mRenderTheme.matchWay(this, mMatchingCache, tags,
 				(byte) (mCurrentTile.zoomLevel + 0),
 				closed, true);
 
+		if (start != 0)
+			mThemeTime += System.nanoTime() - start;
+
 		if (mRenderInstructions == null && mDebugDrawUnmatched)
 			debugUnmatched(closed, tags);
 	}
@@ -232,11 +282,11 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		mTagName = new Tag("name", tags[0].key + ":" + tags[0].value, false);
 
 		if (closed) {
-			mRenderInstructions = TileGenerator.renderTheme.matchWay(this, debugTagArea,
-					(byte) 0, true, true);
+			mRenderInstructions = mRenderTheme.matchWay(this, mMatchingCache,
+					debugTagArea, (byte) 0, true, true);
 		} else {
-			mRenderInstructions = TileGenerator.renderTheme.matchWay(this, debugTagWay,
-					(byte) 0, true, true);
+			mRenderInstructions = mRenderTheme.matchWay(this, mMatchingCache,
+					debugTagWay, (byte) 0, true, true);
 		}
 	}
 
@@ -303,6 +353,10 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	public void renderPointOfInterestSymbol(Bitmap bitmap) {
 		// Log.d(TAG, "add symbol");
 
+		// no bitmaps outside of Android
+		if (bitmap == null)
+			return;
+
 		if (mLayers.textureLayers == null)
 			mLayers.textureLayers = new SymbolLayer();
 
@@ -348,7 +402,12 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
 		mCurLineLayer = lineLayer;
 
+		long start = TileMetrics.enabled ? System.nanoTime() : 0;
+
 		lineLayer.addLine(mCoords, mIndices, mClosed);
+
+		if (start != 0)
+			mGeometryTime += System.nanoTime() - start;
 	}
 
 	@Override
@@ -368,7 +427,12 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 		if (layer.area == null)
 			layer.area = area;
 
+		long start = TileMetrics.enabled ? System.nanoTime() : 0;
+
 		layer.addPolygon(mCoords, mIndices);
+
+		if (start != 0)
+			mGeometryTime += System.nanoTime() - start;
 	}
 
 	@Override
@@ -385,6 +449,11 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 	private boolean mDebugDrawPolygons;
 	boolean mDebugDrawUnmatched;
 
+	// time spent in RenderTheme (including geometry) and in building
+	// geometry for the current tile, for TileMetrics
+	private long mThemeTime;
+	private long mGeometryTime;
+
 	public boolean executeJob(JobTile jobTile) {
 		MapTile tile;
 
@@ -392,7 +461,7 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 			return false;
 
 		tile = mCurrentTile = (MapTile) jobTile;
-		DebugSettings debugSettings = mMapView.getDebugSettings();
+		DebugSettings debugSettings = mDebugSettings;
 
 		mDebugDrawPolygons = !debugSettings.mDisablePolygons;
 		mDebugDrawUnmatched = debugSettings.mDrawUnmatchted;
@@ -407,7 +476,16 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 			return false;
 		}
 
-		mLevels = TileGenerator.renderTheme.getLevels();
+		mRenderTheme = (mTheme != null ? mTheme : renderTheme);
+		if (mRenderTheme == null)
+			return false;
+
+		if (mMatchingCacheTheme != mRenderTheme) {
+			mMatchingCache = mRenderTheme.createMatchingCache();
+			mMatchingCacheTheme = mRenderTheme;
+		}
+
+		mLevels = mRenderTheme.getLevels();
 
 		// limit stroke scale at z=17
 		// if (tile.zoomLevel < STROKE_MAX_ZOOM_LEVEL)
@@ -417,11 +495,19 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
 		// acount for area changes with latitude
 		mProjectionScaleFactor = 0.5f + 0.5f * (
-				FloatMath.sin((float) (Math.abs(MercatorProjection
-						.pixelYToLatitude(tile.pixelY, tile.zoomLevel)) * (Math.PI / 180))));
+				(float) Math.sin(Math.abs(MercatorProjection
+						.pixelYToLatitude(tile.pixelY, tile.zoomLevel)) * (Math.PI / 180)));
 
 		mLayers = new Layers();
 
+		long start = 0;
+		if (TileMetrics.enabled) {
+			start = System.nanoTime();
+			tile.fetchTime = 0;
+			mThemeTime = 0;
+			mGeometryTime = 0;
+		}
+
 		if (mMapDatabase.executeQuery(tile, this) != QueryResult.SUCCESS) {
 			//Log.d(TAG, "Failed loading: " + tile);
 			mLayers.clear();
@@ -432,16 +518,47 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 			return false;
 		}
 
+		if (start != 0) {
+			long query = System.nanoTime() - start;
+
+			if (tile.fetchTime > 0)
+				TileMetrics.add(TileMetrics.FETCH, tile.fetchTime);
+
+			TileMetrics.add(TileMetrics.DECODE, query - tile.fetchTime - mThemeTime);
+			TileMetrics.add(TileMetrics.THEME, mThemeTime - mGeometryTime);
+			TileMetrics.add(TileMetrics.GEOMETRY, mGeometryTime);
+		}
+
 		if (debugSettings.mDrawTileFrames) {
 			mTagName = new Tag("name", tile.toString(), false);
 			mPoiX = Tile.TILE_SIZE >> 1;
 			mPoiY = 10;
-			TileGenerator.renderTheme.matchNode(this, debugTagWay, (byte) 0);
+			mRenderTheme.matchNode(this, mMatchingCache, debugTagWay, (byte) 0);
 
 			mIndices = debugBoxIndex;
 			mCoords = debugBoxCoords;
 			mDrawingLayer = 10 * mLevels;
-			TileGenerator.renderTheme.matchWay(this, debugTagBox, (byte) 0, false, true);
+			mRenderTheme.matchWay(this, mMatchingCache, debugTagBox, (byte) 0,
+					false, true);
+		}
+
+		// compile vertices here so that GL-Thread only needs to upload them,
+		// unless too many tiles wait for upload already
+		int size = mLayers.getSize();
+		ShortBuffer sbuf = null;
+		if (size > 0)
+			sbuf = ShortBufferPool.get(size + FILL_COORDS);
+
+		if (sbuf != null) {
+			start = TileMetrics.enabled ? System.nanoTime() : 0;
+
+			sbuf.put(GLRenderer.mFillCoords, 0, FILL_COORDS);
+			mLayers.compile(sbuf, true);
+			sbuf.flip();
+			tile.vertices = sbuf;
+
+			if (start != 0)
+				TileMetrics.add(TileMetrics.COMPILE, System.nanoTime() - start);
 		}
 
 		tile.layers = mLayers;
@@ -490,13 +607,26 @@ public class TileGenerator implements IRenderCallback, IMapDatabaseCallback {
 
 	@Override
 	public boolean checkWay(Tag[] tags, boolean closed) {
+		long start = TileMetrics.enabled ? System.nanoTime() : 0;
 
-		mRenderInstructions = TileGenerator.renderTheme.matchWay(this, tags,
+		mRenderInstructions = mRenderTheme.matchWay(this, mMatchingCache, tags,
 				(byte) (mCurrentTile.zoomLevel + 0), closed, false);
 
+		if (start != 0)
+			mThemeTime += System.nanoTime() - start;
+
 		return mRenderInstructions != null;
 	}
 
+	@Override
+	public BitSet getTagFilter(Tag[] tags, boolean way, boolean captions) {
+		// unmatched ways are drawn for debugging
+		if (way && mDebugDrawUnmatched)
+			return null;
+
+		return mRenderTheme.getTagFilter(tags, mCurrentTile.zoomLevel, way, captions);
+	}
+
 	// TODO move this to Projection classes
 	private boolean projectToTile() {
 		if (mProjected || mMapProjection == null)
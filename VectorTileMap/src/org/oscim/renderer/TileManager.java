@@ -15,7 +15,6 @@
 package org.oscim.renderer;
 
 import java.util.ArrayList;
-import java.util.Collections;
 
 import org.oscim.core.MapPosition;
 import org.oscim.core.Tile;
@@ -25,6 +24,7 @@ import org.oscim.renderer.layer.VertexPool;
 import org.oscim.view.MapView;
 import org.oscim.view.MapViewPosition;
 
+import android.os.SystemClock;
 import android.util.FloatMath;
 import android.util.Log;
 
@@ -34,6 +34,15 @@ public class TileManager {
 	private static final int MAX_TILES_IN_QUEUE = 40;
 	private static final int CACHE_THRESHOLD = 10;
 
+	private static final int MB = 1024 * 1024;
+
+	// default memory budget for cached tiles
+	private static final int CACHE_BYTES = 24 * MB;
+
+	// accounted for each tile and each label, in bytes
+	private static final int TILE_BYTES = 256;
+	private static final int LABEL_BYTES = 64;
+
 	private static MapView mMapView;
 
 	private static final MapPosition mMapPosition = new MapPosition();
@@ -66,6 +75,30 @@ public class TileManager {
 
 	static int tileCounter;
 
+	private static TilePrefetcher mPrefetcher = new TilePrefetcher();
+
+	// tiles added to mNewTiles by mScanBox
+	private static TileSet mVisibleSet = new TileSet(64);
+
+	// tiles which are not visible, in eviction order
+	private static TileCache mCache = new TileCache();
+	private static ArrayList<MapTile> mCacheKeep = new ArrayList<MapTile>();
+	private static ArrayList<MapTile> mLeaving = new ArrayList<MapTile>();
+
+	private static int mCacheBudget = CACHE_BYTES;
+	// sum of MapTile.bytes of all tiles
+	private static int mCacheBytes;
+
+	// loading tiles kept on reset, passed tiles discarded or canceled
+	private static int mKeptLoading;
+	private static int mDiscarded;
+	private static int mCanceled;
+
+	private static int mEvictions;
+	private static int mRateEvictions;
+	private static long mRateTime;
+	private static float mEvictionRate;
+
 	private static ScanBox mScanBox = new ScanBox() {
 
 		@Override
@@ -98,15 +131,12 @@ public class TileManager {
 				}
 
 				// check if tile is already added
-				for (int i = 0; i < cnt; i++)
-					if (tiles[i].tileX == xx && tiles[i].tileY == y) {
-						tile = tiles[i];
-						break;
-					}
+				tile = mVisibleSet.get(xx, y, mZoom);
 
 				if (tile == null) {
 					tile = addTile(xx, y, mZoom, 0);
 					tiles[cnt++] = tile;
+					mVisibleSet.add(tile);
 				}
 			}
 			mNewTiles.cnt = cnt;
@@ -123,6 +153,9 @@ public class TileManager {
 	}
 
 	public void destroy() {
+		Log.d(TAG, "prefetch " + mPrefetcher);
+		Log.d(TAG, "loading tiles kept " + mKeptLoading
+				+ ", discarded " + mDiscarded + ", canceled " + mCanceled);
 		SINGLETON = null;
 		// mRenderer = null;
 		// mTiles = null;
@@ -179,6 +212,16 @@ public class TileManager {
 					clearTile(t);
 			} else {
 				VertexPool.init();
+
+				// keep tiles being loaded, without vbo their data is still
+				// valid. otherwise they would be loaded again as new tiles
+				// while the MapWorkers finish the old ones. other tiles may
+				// still hold compiled vertices waiting for upload.
+				for (MapTile t : mTiles)
+					if (t.isLoading && t.vbo == null)
+						mCacheKeep.add(t);
+					else
+						releaseVertices(t);
 			}
 
 			//VertexPool.init();
@@ -186,6 +229,23 @@ public class TileManager {
 
 			mTiles.clear();
 			mTilesLoaded.clear();
+			mCache.clear();
+			mCacheBytes = 0;
+
+			for (int i = 0, n = mCacheKeep.size(); i < n; i++) {
+				MapTile t = mCacheKeep.get(i);
+				// locks and proxies refer to the previous tiles
+				t.locked = 0;
+				t.refs = 0;
+				t.proxies = 0;
+				t.holder = null;
+
+				QuadTree.add(t);
+				mTiles.add(t);
+				mCache.add(t, cacheKey(0));
+			}
+			mKeptLoading += mCacheKeep.size();
+			mCacheKeep.clear();
 
 			// set up TileData arrays that are passed to gl-thread
 			int num = Math.max(mWidth, mHeight);
@@ -210,6 +270,9 @@ public class TileManager {
 			return;
 		}
 
+		mPrefetcher.update(mapPosition, mMapViewPosition,
+				SystemClock.elapsedRealtime());
+
 		float s = Tile.TILE_SIZE;
 		// load some tiles more than currently visible
 		// TODO limit how many more...
@@ -217,26 +280,19 @@ public class TileManager {
 		float px = (float) mapPosition.x;
 		float py = (float) mapPosition.y;
 
-		// TODO hint whether to prefetch parent / children
-		int zdir = 0;
-
 		for (int i = 0; i < 8; i += 2) {
 			coords[i + 0] = (px + coords[i + 0] / scale) / s;
 			coords[i + 1] = (py + coords[i + 1] / scale) / s;
 		}
 
-		boolean changed = updateVisibleList(mapPosition, zdir);
+		boolean changed = updateVisibleList(mapPosition);
 
 		mMapView.render();
 
-		if (changed) {
-			int remove = mTiles.size() - GLRenderer.CACHE_TILES;
-
-			if (remove > CACHE_THRESHOLD)
-				limitCache(mapPosition, remove);
+		limitCache();
 
+		if (changed)
 			limitLoadQueue();
-		}
 	}
 
 	public static Tiles getActiveTiles(Tiles td) {
@@ -289,20 +345,14 @@ public class TileManager {
 	 * for not yet loaded tiles
 	 * @param mapPosition
 	 *            the current MapPosition
-	 * @param zdir
-	 *            zoom direction
 	 * @return true if new tiles were loaded
 	 */
-	private static boolean updateVisibleList(MapPosition mapPosition, int zdir) {
+	private static boolean updateVisibleList(MapPosition mapPosition) {
 
-		// TODO keep mJobList and JobQueue in sync, no need to clear
 		mJobList.clear();
 
-		// sets non processed tiles to isLoading = false
-		// and clear job queue
-		mMapView.addJobs(null);
-
 		mNewTiles.cnt = 0;
+		mVisibleSet.clear();
 		mScanBox.scan(mTileCoords, mapPosition.zoomLevel);
 
 		MapTile[] newTiles = mNewTiles.tiles;
@@ -310,19 +360,11 @@ public class TileManager {
 
 		boolean changed = (mNewTiles.cnt != mCurrentTiles.cnt);
 
-		for (int i = 0, n = mNewTiles.cnt; i < n && !changed; i++) {
-			MapTile t = newTiles[i];
-			boolean found = false;
-
-			for (int j = 0, m = mCurrentTiles.cnt; j < m; j++) {
-				if (t == curTiles[j]) {
-					found = true;
-					break;
-				}
-			}
-			if (!found)
+		// both contain distinct tiles, with the same count they differ when
+		// one of the current tiles is not in the new set
+		for (int i = 0, n = mCurrentTiles.cnt; i < n && !changed; i++)
+			if (!mVisibleSet.contains(curTiles[i]))
 				changed = true;
-		}
 
 		if (changed) {
 			synchronized (TileManager.tilelock) {
@@ -339,20 +381,42 @@ public class TileManager {
 				mUpdateCnt++;
 			}
 
+			// tiles in view are not evicted
+			for (int i = 0, n = mCurrentTiles.cnt; i < n; i++) {
+				MapTile t = mCurrentTiles.tiles[i];
+				if (t.cacheIndex >= 0)
+					mCache.remove(t);
+			}
+
+			// tiles that left the view are evicted least recently visible
+			// first, then by distance
+			for (int i = 0, n = mNewTiles.cnt; i < n; i++) {
+				MapTile t = mNewTiles.tiles[i];
+				if (!mVisibleSet.contains(t))
+					mLeaving.add(t);
+			}
+			updateTileDistances(mLeaving, mapPosition);
+
+			for (int i = 0, n = mLeaving.size(); i < n; i++) {
+				MapTile t = mLeaving.get(i);
+				mCache.add(t, cacheKey(t.distance));
+			}
+			mLeaving.clear();
+
 			// Log.d(TAG, "tiles: " + tileCounter + " " + BufferObject.counter
 			// + " sum:" + (tileCounter + BufferObject.counter));
 		}
 
-		if (mJobList.size() > 0) {
-			updateTileDistances(mJobList, mapPosition);
-			Collections.sort(mJobList);
+		updateTileDistances(mJobList, mapPosition);
 
-			// sets tiles to isLoading = true
-			mMapView.addJobs(mJobList);
+		// add tiles along the predicted path, after the visible tiles
+		mPrefetcher.plan(mapPosition, mTileCoords, mVisibleSet, mJobList);
 
-			return true;
-		}
-		return false;
+		// updates priority of queued tiles, removes tiles which are not
+		// visible anymore and sets new tiles to isLoading = true
+		mMapView.addJobs(mJobList);
+
+		return mJobList.size() > 0;
 	}
 
 	/**
@@ -373,18 +437,18 @@ public class TileManager {
 		tile = QuadTree.getTile(x, y, zoomLevel);
 
 		if (tile != null) {
-			if (!tile.isActive())
+			if (tile.prefetch)
+				mPrefetcher.onVisible(tile);
+
+			// add tiles in JobQueue again to keep them queued
+			if (!tile.isActive() || tile.isLoading)
 				mJobList.add(tile);
 
 			return tile;
 		}
 
-		tile = new MapTile(x, y, zoomLevel);
-		QuadTree.add(tile);
-
-		mTiles.add(tile);
+		tile = newTile(x, y, zoomLevel);
 		mJobList.add(tile);
-		tileCounter++;
 
 		return tile;
 
@@ -433,7 +497,33 @@ public class TileManager {
 		//		}
 	}
 
+	/* package */static MapTile newTile(int x, int y, byte zoomLevel) {
+		MapTile tile = new MapTile(x, y, zoomLevel);
+		QuadTree.add(tile);
+
+		mTiles.add(tile);
+		tileCounter++;
+
+		// removed from cache when it becomes visible
+		mCache.add(tile, cacheKey(0));
+
+		return tile;
+	}
+
+	private static long cacheKey(float distance) {
+		int d = (int) Math.min(distance, Integer.MAX_VALUE);
+		return ((long) mUpdateCnt << 32) | (Integer.MAX_VALUE - d);
+	}
+
 	private static void clearTile(MapTile t) {
+		if (t.prefetch)
+			mPrefetcher.onClear(t);
+
+		if (t.cacheIndex >= 0)
+			mCache.remove(t);
+
+		mCacheBytes -= t.bytes;
+		t.bytes = 0;
 
 		t.newData = false;
 		t.isLoading = false;
@@ -444,6 +534,11 @@ public class TileManager {
 			t.layers = null;
 		}
 
+		if (t.vertices != null) {
+			ShortBufferPool.release(t.vertices);
+			t.vertices = null;
+		}
+
 		TextItem.release(t.labels);
 
 		if (t.vbo != null) {
@@ -508,50 +603,60 @@ public class TileManager {
 		}
 	}
 
-	private static void limitCache(MapPosition mapPosition, int remove) {
-		int size = mTiles.size();
-
-		// remove tiles that were never loaded
-		for (int i = 0; i < size;) {
-			MapTile t = mTiles.get(i);
-			// make sure tile cannot be used by GL or MapWorker Thread
-			if (t.isLocked() || t.isActive()) {
-				i++;
-			} else {
-				clearTile(t);
-				mTiles.remove(i);
-				remove--;
-				size--;
-			}
-		}
+	/**
+	 * Evict tiles which are not visible while more than CACHE_TILES are
+	 * loaded or their memory exceeds the cache budget.
+	 */
+	private static void limitCache() {
+		int maxTiles = GLRenderer.CACHE_TILES;
 
-		if (remove <= 0)
-			return;
+		if (mTiles.size() - maxTiles > CACHE_THRESHOLD || mCacheBytes > mCacheBudget) {
+			int removed = 0;
 
-		updateTileDistances(mTiles, mapPosition);
-		Collections.sort(mTiles);
+			while (mTiles.size() - removed > maxTiles || mCacheBytes > mCacheBudget) {
+				MapTile t = mCache.poll();
+				if (t == null)
+					break;
 
-		for (int i = 1; i < remove; i++) {
-			MapTile t = mTiles.remove(size - i);
+				if (t.isLocked() || t.isLoading) {
+					// dont remove tile used by GLRenderer or as proxy.
+					// loading tiles are cleared in passTile() instead,
+					// clearTile could interfere with TileGenerator.
+					mCacheKeep.add(t);
+					continue;
+				}
 
-			if (t.isLocked()) {
-				// dont remove tile used by GLRenderer, or somewhere else
-				Log.d(TAG, "X not removing " + t + " " + t.distance);
-				mTiles.add(t);
-			} else if (t.isLoading) {
-				// NOTE: if we add tile back and set loading=false, on next
-				// limitCache the tile will be removed. clearTile could
-				// interfere with TileGenerator. so clear in passTile()
-				// instead.
-				// ... no, this does not work either: when set loading to
-				// false tile could be added to load queue while still
-				// processed in TileGenerator => need tile.cancel flag.
-				// t.isLoading = false;
-				mTiles.add(t);
-				Log.d(TAG, "X cancel loading " + t + " " + t.distance);
-			} else {
 				clearTile(t);
+				removed++;
 			}
+
+			for (int i = 0, n = mCacheKeep.size(); i < n; i++) {
+				MapTile t = mCacheKeep.get(i);
+				mCache.add(t, t.cacheKey);
+			}
+			mCacheKeep.clear();
+
+			if (removed > 0) {
+				// remove cleared tiles
+				int size = mTiles.size();
+				int j = 0;
+				for (int i = 0; i < size; i++) {
+					MapTile t = mTiles.get(i);
+					if (t.rel != null)
+						mTiles.set(j++, t);
+				}
+				for (int i = size - 1; i >= j; i--)
+					mTiles.remove(i);
+
+				mEvictions += removed;
+			}
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		if (now - mRateTime >= 1000) {
+			mEvictionRate = (mEvictions - mRateEvictions) * 1000f / (now - mRateTime);
+			mRateEvictions = mEvictions;
+			mRateTime = now;
 		}
 	}
 
@@ -611,15 +716,31 @@ public class TileManager {
 			// no one should be able to use this tile now, TileGenerator passed
 			// it, GL-Thread does nothing until newdata is set.
 			//Log.d(TAG, "passTile: failed loading " + tile);
+			mDiscarded++;
+			releaseVertices(tile);
 			return true;
 		}
 
 		if (tile.vbo != null) {
 			// BAD Things(tm) happend... 
 			Log.d(TAG, "tile loaded before " + tile);
+			mDiscarded++;
+			releaseVertices(tile);
 			return true;
 		}
 
+		if (tile.isCanceled) {
+			tile.isCanceled = false;
+
+			if (tile.layers == null) {
+				// stopped loading, tile left the view. it can be added to
+				// JobQueue again.
+				tile.isLoading = false;
+				mCanceled++;
+				return true;
+			}
+		}
+
 		tile.vbo = BufferObject.get();
 
 		if (tile.vbo == null) {
@@ -631,6 +752,20 @@ public class TileManager {
 		tile.newData = true;
 		tile.isLoading = false;
 
+		// account vertices, or the vbo memory when it is reused, and labels
+		int bytes = 0;
+		if (tile.layers != null)
+			bytes = tile.layers.getSize() * 2;
+		if (tile.vbo.size > bytes)
+			bytes = tile.vbo.size;
+
+		bytes += TILE_BYTES;
+		for (TextItem ti = tile.labels; ti != null; ti = ti.next)
+			bytes += LABEL_BYTES;
+
+		mCacheBytes += bytes - tile.bytes;
+		tile.bytes = bytes;
+
 		mMapView.render();
 
 		synchronized (mTilesLoaded) {
@@ -641,6 +776,66 @@ public class TileManager {
 		return true;
 	}
 
+	// vertices of discarded tiles must be returned, ShortBufferPool limits
+	// the buffers handed out
+	private static void releaseVertices(MapTile tile) {
+		if (tile.vertices != null) {
+			ShortBufferPool.release(tile.vertices);
+			tile.vertices = null;
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            memory budget for loaded tiles
+	 */
+	public static void setCacheBudget(int bytes) {
+		mCacheBudget = bytes;
+	}
+
+	/**
+	 * @return memory accounted for loaded tiles, in bytes
+	 */
+	public static int getCacheBytes() {
+		return mCacheBytes;
+	}
+
+	/**
+	 * @return number of tiles, loaded, loading or cached
+	 */
+	public static int getCacheTileCount() {
+		return mTiles == null ? 0 : mTiles.size();
+	}
+
+	/**
+	 * @return number of tiles evicted per second, updated once a second
+	 */
+	public static float getEvictionRate() {
+		return mEvictionRate;
+	}
+
+	/**
+	 * @return number of loaded tiles which were discarded by passTile(),
+	 *         i.e. decoded in vain
+	 */
+	public static int getDiscardedCount() {
+		return mDiscarded;
+	}
+
+	/**
+	 * @return number of tiles which stopped loading after they left the view
+	 */
+	public static int getCanceledCount() {
+		return mCanceled;
+	}
+
+	/**
+	 * @return the TilePrefetcher, to configure it and to read its counters
+	 */
+	public static TilePrefetcher getPrefetcher() {
+		return mPrefetcher;
+	}
+
 	public static void onSizeChanged(int w, int h) {
 		Log.d(TAG, "onSizeChanged" + w + " " + h);
 
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer;
+
+import java.util.ArrayList;
+
+import org.oscim.core.MapPosition;
+import org.oscim.core.Tile;
+import org.oscim.generator.JobTile;
+import org.oscim.view.MapViewPosition;
+
+/**
+ * Predicts where the map will be shortly from pan and scale velocity, or
+ * from a running animation, and adds tiles of the predicted viewport to the
+ * load queue. Prefetch jobs are queued after all visible tiles. When the
+ * prediction changes they drop out of the JobQueue with the next update.
+ * <p>
+ * Used only from TileManager.updateMap().
+ */
+public class TilePrefetcher {
+	// predict map position this far ahead, in milliseconds
+	private static final int DEFAULT_LOOKAHEAD = 400;
+
+	// tiles queued per update. more only add jobs while the workers are
+	// busy with visible tiles.
+	private static final int DEFAULT_BUDGET = 4;
+
+	// updates further apart are not a continuous motion
+	private static final int MAX_INTERVAL = 200;
+
+	// weight of previous velocity
+	private static final float SMOOTH = 0.5f;
+
+	// added to JobTile.distance so that visible tiles are loaded first
+	private static final float PRIORITY_OFFSET = 1 << 16;
+
+	private static final int MAX_CANDIDATES = 64;
+
+	private int mBudget = DEFAULT_BUDGET;
+	private int mLookahead = DEFAULT_LOOKAHEAD;
+
+	// last position: pixel coordinates at mLastZoom, log2 of map scale
+	private long mLastTime;
+	private double mLastX;
+	private double mLastY;
+	private double mLastScale;
+	private byte mLastZoom = -1;
+
+	// velocity in pixel/ms at mLastZoom and log2 scale/ms
+	private float mVelX;
+	private float mVelY;
+	private float mVelScale;
+
+	private boolean mAnimating;
+	private final MapPosition mAnimEnd = new MapPosition();
+
+	// candidates of the current plan, x/y tile, distance in tiles
+	private final int[] mCandX = new int[MAX_CANDIDATES];
+	private final int[] mCandY = new int[MAX_CANDIDATES];
+	private final float[] mCandDist = new float[MAX_CANDIDATES];
+	private int mCandCnt;
+
+	private float mCenterX;
+	private float mCenterY;
+	private TileSet mVisible;
+
+	private final float[] mBox = new float[8];
+
+	private int mIssued;
+	private int mHits;
+	private int mLate;
+	private int mWasted;
+
+	private final ScanBox mScanBox = new ScanBox() {
+		@Override
+		void setVisible(int y, int x1, int x2) {
+			int xmax = 1 << mZoom;
+
+			for (int x = x1; x < x2; x++) {
+				int xx = x;
+
+				if (x < 0 || x >= xmax) {
+					// flip-around date line
+					if (x < 0)
+						xx = xmax + x;
+					else
+						xx = x - xmax;
+
+					if (xx < 0 || xx >= xmax)
+						continue;
+				}
+				addCandidate(xx, y, mZoom, x + 0.5f, y + 0.5f);
+			}
+		}
+	};
+
+	/**
+	 * @param tiles
+	 *            maximum number of tiles to queue per update, 0 disables
+	 *            prefetching.
+	 */
+	public void setBudget(int tiles) {
+		mBudget = Math.max(0, Math.min(tiles, MAX_CANDIDATES));
+	}
+
+	/**
+	 * @param millis
+	 *            how far ahead to predict the map position.
+	 */
+	public void setLookahead(int millis) {
+		mLookahead = Math.max(0, millis);
+	}
+
+	/**
+	 * Update velocity estimate with the current position.
+	 * @param pos
+	 *            current MapPosition
+	 * @param mapViewPosition
+	 *            to check for a running animation
+	 * @param time
+	 *            SystemClock.elapsedRealtime()
+	 */
+	void update(MapPosition pos, MapViewPosition mapViewPosition, long time) {
+		mAnimating = mapViewPosition.getAnimationEnd(mAnimEnd);
+
+		double scale = pos.zoomLevel + Math.log(pos.scale) / Math.log(2);
+		long dt = time - mLastTime;
+
+		if (mLastZoom < 0 || dt > MAX_INTERVAL) {
+			mVelX = mVelY = mVelScale = 0;
+		} else if (dt > 0) {
+			float f = pos.zoomLevel - mLastZoom;
+			f = (f == 0 ? 1 : (float) Math.pow(2, f));
+
+			double dx = pos.x - mLastX * f;
+			double dy = pos.y - mLastY * f;
+
+			// moved across date line
+			double world = (double) Tile.TILE_SIZE * (1 << pos.zoomLevel);
+			if (dx > world / 2)
+				dx -= world;
+			else if (dx < -world / 2)
+				dx += world;
+
+			mVelX = mVelX * f * SMOOTH + (float) (dx / dt) * (1 - SMOOTH);
+			mVelY = mVelY * f * SMOOTH + (float) (dy / dt) * (1 - SMOOTH);
+			mVelScale = mVelScale * SMOOTH
+					+ (float) ((scale - mLastScale) / dt) * (1 - SMOOTH);
+		} else {
+			// same millisecond, keep previous sample
+			return;
+		}
+
+		mLastTime = time;
+		mLastX = pos.x;
+		mLastY = pos.y;
+		mLastScale = scale;
+		mLastZoom = pos.zoomLevel;
+	}
+
+	/**
+	 * Add tiles of the predicted viewport to jobs.
+	 * @param pos
+	 *            current MapPosition
+	 * @param coords
+	 *            visible box in tile coordinates at pos.zoomLevel
+	 * @param visible
+	 *            currently visible tiles
+	 * @param jobs
+	 *            receives tiles to be loaded
+	 * @return number of tiles added
+	 */
+	int plan(MapPosition pos, float[] coords, TileSet visible, ArrayList<JobTile> jobs) {
+		if (mBudget == 0)
+			return 0;
+
+		byte zoom = pos.zoomLevel;
+		float s = Tile.TILE_SIZE;
+		float dx, dy, dscale;
+
+		if (mAnimating) {
+			float f = (float) Math.pow(2, zoom - mAnimEnd.zoomLevel);
+			dx = (float) (mAnimEnd.x * f - pos.x) / s;
+			dy = (float) (mAnimEnd.y * f - pos.y) / s;
+			dscale = 0;
+		} else {
+			dx = mVelX * mLookahead / s;
+			dy = mVelY * mLookahead / s;
+			dscale = mVelScale * mLookahead;
+		}
+
+		if (Math.abs(dx) < 0.25f && Math.abs(dy) < 0.25f
+				&& Math.abs(dscale) < 0.1f)
+			return 0;
+
+		// limit prediction to one viewport ahead
+		float minX = coords[0], maxX = coords[0];
+		float minY = coords[1], maxY = coords[1];
+		for (int i = 2; i < 8; i += 2) {
+			minX = Math.min(minX, coords[i]);
+			maxX = Math.max(maxX, coords[i]);
+			minY = Math.min(minY, coords[i + 1]);
+			maxY = Math.max(maxY, coords[i + 1]);
+		}
+		dx = clamp(dx, maxX - minX);
+		dy = clamp(dy, maxY - minY);
+		dscale = clamp(dscale, 1);
+
+		// predicted scale may cross to the next or previous zoom-level
+		float predScale = pos.scale * (float) Math.pow(2, dscale);
+		byte z = zoom;
+		float zs = 1;
+		if (predScale >= 2 && zoom < MapViewPosition.MAX_ZOOMLEVEL) {
+			z++;
+			zs = 2;
+		} else if (predScale < 1 && zoom > MapViewPosition.MIN_ZOOMLEVEL) {
+			z--;
+			zs = 0.5f;
+		}
+
+		float cx = (float) (pos.x / s);
+		float cy = (float) (pos.y / s);
+		float ratio = (float) Math.pow(2, -dscale);
+
+		float[] box = mBox;
+		for (int i = 0; i < 8; i += 2) {
+			box[i + 0] = (cx + dx + (coords[i + 0] - cx) * ratio) * zs;
+			box[i + 1] = (cy + dy + (coords[i + 1] - cy) * ratio) * zs;
+		}
+
+		mCenterX = cx * zs;
+		mCenterY = cy * zs;
+		mVisible = (z == zoom ? visible : null);
+		mCandCnt = 0;
+
+		mScanBox.scan(box, z);
+
+		mVisible = null;
+
+		// queue candidates closest to the current view
+		int added = 0;
+		for (int n = Math.min(mBudget, mCandCnt); added < n; added++) {
+			int min = added;
+			for (int i = added + 1; i < mCandCnt; i++)
+				if (mCandDist[i] < mCandDist[min])
+					min = i;
+
+			int x = mCandX[min];
+			int y = mCandY[min];
+			float d = mCandDist[min];
+			mCandX[min] = mCandX[added];
+			mCandY[min] = mCandY[added];
+			mCandDist[min] = mCandDist[added];
+
+			MapTile t = QuadTree.getTile(x, y, z);
+			if (t == null)
+				t = TileManager.newTile(x, y, z);
+
+			if (!t.prefetch) {
+				t.prefetch = true;
+				mIssued++;
+			}
+			t.distance = PRIORITY_OFFSET + d;
+			jobs.add(t);
+		}
+		return added;
+	}
+
+	void addCandidate(int x, int y, byte z, float centerX, float centerY) {
+		if (mCandCnt == MAX_CANDIDATES)
+			return;
+
+		MapTile t = QuadTree.getTile(x, y, z);
+		if (t != null) {
+			// already loaded
+			if (t.newData || t.isReady)
+				return;
+
+			// loaded as visible tile
+			if (mVisible != null && mVisible.contains(t))
+				return;
+		}
+
+		for (int i = 0; i < mCandCnt; i++)
+			if (mCandX[i] == x && mCandY[i] == y)
+				return;
+
+		float dx = centerX - mCenterX;
+		float dy = centerY - mCenterY;
+
+		mCandX[mCandCnt] = x;
+		mCandY[mCandCnt] = y;
+		mCandDist[mCandCnt] = (float) Math.sqrt(dx * dx + dy * dy);
+		mCandCnt++;
+	}
+
+	/**
+	 * Called when a prefetched tile becomes visible.
+	 */
+	void onVisible(MapTile t) {
+		if (t.newData || t.isReady)
+			mHits++;
+		else if (t.isLoading)
+			mLate++;
+
+		t.prefetch = false;
+	}
+
+	/**
+	 * Called when a prefetched tile is removed before it was visible.
+	 */
+	void onClear(MapTile t) {
+		if (t.newData || t.isReady)
+			mWasted++;
+
+		t.prefetch = false;
+	}
+
+	private static float clamp(float v, float max) {
+		return v > max ? max : (v < -max ? -max : v);
+	}
+
+	/**
+	 * @return number of tiles queued for loading by prefetching
+	 */
+	public int getIssuedCount() {
+		return mIssued;
+	}
+
+	/**
+	 * @return number of prefetched tiles which were loaded when they became
+	 *         visible.
+	 */
+	public int getHitCount() {
+		return mHits;
+	}
+
+	/**
+	 * @return number of prefetched tiles which were still loading when they
+	 *         became visible.
+	 */
+	public int getLateCount() {
+		return mLate;
+	}
+
+	/**
+	 * @return number of prefetched tiles which were loaded and removed
+	 *         without becoming visible.
+	 */
+	public int getWastedCount() {
+		return mWasted;
+	}
+
+	/**
+	 * @return ratio of issued prefetch jobs which were loaded in time
+	 */
+	public float getHitRate() {
+		return mIssued == 0 ? 0 : (float) mHits / mIssued;
+	}
+
+	@Override
+	public String toString() {
+		return "issued:" + mIssued + " hits:" + mHits + " late:" + mLate
+				+ " wasted:" + mWasted;
+	}
+}
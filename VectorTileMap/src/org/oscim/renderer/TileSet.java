@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash set of MapTiles keyed by zoom-level, x and y packed
+ * into a long. Meant to be cleared and refilled for each ScanBox pass, so
+ * that finding a tile by its coordinates does not need to scan the tile
+ * array.
+ */
+final class TileSet {
+	// bits for x and y, tile coordinates may be negative for
+	// tiles crossing the date line
+	private static final int SHIFT = 28;
+	private static final long MASK = (1L << SHIFT) - 1;
+
+	private long[] mKeys;
+	private MapTile[] mTiles;
+	private int mMask;
+	private int mSize;
+
+	/**
+	 * @param capacity
+	 *            expected number of tiles
+	 */
+	TileSet(int capacity) {
+		int size = 16;
+		// keep load factor below 0.5
+		while (size < capacity * 2)
+			size <<= 1;
+
+		mKeys = new long[size];
+		mTiles = new MapTile[size];
+		mMask = size - 1;
+	}
+
+	static long key(int x, int y, byte z) {
+		return ((long) z << (SHIFT * 2)) | ((x & MASK) << SHIFT) | (y & MASK);
+	}
+
+	private static int hash(long key) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key >>> 32);
+	}
+
+	void clear() {
+		if (mSize == 0)
+			return;
+
+		Arrays.fill(mTiles, null);
+		mSize = 0;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the tile added for x, y, z or null
+	 */
+	MapTile get(int x, int y, byte z) {
+		long key = key(x, y, z);
+
+		for (int i = hash(key) & mMask;; i = (i + 1) & mMask) {
+			MapTile t = mTiles[i];
+			if (t == null)
+				return null;
+			if (mKeys[i] == key)
+				return t;
+		}
+	}
+
+	/**
+	 * @return true if this tile was added
+	 */
+	boolean contains(MapTile tile) {
+		return get(tile.tileX, tile.tileY, tile.zoomLevel) == tile;
+	}
+
+	/**
+	 * Add tile, replaces a tile with the same coordinates.
+	 */
+	void add(MapTile tile) {
+		if ((mSize + 1) * 2 > mTiles.length)
+			grow();
+
+		long key = key(tile.tileX, tile.tileY, tile.zoomLevel);
+
+		for (int i = hash(key) & mMask;; i = (i + 1) & mMask) {
+			if (mTiles[i] == null) {
+				mKeys[i] = key;
+				mTiles[i] = tile;
+				mSize++;
+				return;
+			}
+			if (mKeys[i] == key) {
+				mTiles[i] = tile;
+				return;
+			}
+		}
+	}
+
+	private void grow() {
+		long[] keys = mKeys;
+		MapTile[] tiles = mTiles;
+
+		mKeys = new long[keys.length * 2];
+		mTiles = new MapTile[tiles.length * 2];
+		mMask = mTiles.length - 1;
+		mSize = 0;
+
+		for (int i = 0; i < tiles.length; i++)
+			if (tiles[i] != null)
+				add(tiles[i]);
+	}
+}
@@ -18,8 +18,6 @@ import org.oscim.renderer.layer.TextItem;
 import org.oscim.theme.renderinstruction.Text;
 import org.oscim.utils.GeometryUtils;
 
-import android.util.FloatMath;
-
 public final class WayDecorator {
 	// /**
 	// * Minimum distance in pixels before the symbol is repeated.
@@ -168,7 +166,7 @@ public final class WayDecorator {
 				continue;
 			}
 
-			float segmentLengthInPixel = FloatMath.sqrt(diffX * diffX + diffY * diffY);
+			float segmentLengthInPixel = (float) Math.sqrt(diffX * diffX + diffY * diffY);
 
 			if (skipPixels > 0) {
 				skipPixels -= segmentLengthInPixel;
@@ -176,7 +174,7 @@ public final class WayDecorator {
 			} else if (segmentLengthInPixel > minWidth) {
 
 				if (wayNameWidth < 0) {
-					wayNameWidth = text.paint.measureText(string);
+					wayNameWidth = text.measureText(string);
 				}
 
 				if (segmentLengthInPixel > wayNameWidth * 0.80) {
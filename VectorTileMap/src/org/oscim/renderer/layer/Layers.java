@@ -16,7 +16,7 @@ package org.oscim.renderer.layer;
 
 import java.nio.ShortBuffer;
 
-import android.util.Log;
+import org.oscim.backend.Log;
 
 public class Layers {
 
@@ -114,16 +114,22 @@ public class Layers {
 
 		texOffset = sbuf.position() * 2; // * short-bytes
 
-		for (Layer l = textureLayers; l != null; l = l.next) {
-			TextureLayer sl = (TextureLayer) l;
-			sl.compile(sbuf);
-		}
-
 		// FIXME
 		addLayerItems(sbuf, textureLayers, Layer.SYMBOL, 0);
 
 	}
 
+	/**
+	 * Upload textures of texture layers. Must be called from GL-Thread,
+	 * compile() does not need to.
+	 */
+	public void uploadTextures() {
+		for (Layer l = textureLayers; l != null; l = l.next) {
+			TextureLayer sl = (TextureLayer) l;
+			sl.uploadTextures();
+		}
+	}
+
 	private static void addLayerItems(ShortBuffer sbuf, Layer l, byte type, int pos) {
 		VertexPoolItem last = null, items = null;
 
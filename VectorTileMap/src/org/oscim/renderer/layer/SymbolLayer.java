@@ -14,8 +14,6 @@
  */
 package org.oscim.renderer.layer;
 
-import java.nio.ShortBuffer;
-
 import org.oscim.renderer.TextureObject;
 import org.oscim.renderer.TextureRenderer;
 
@@ -86,9 +84,9 @@ public final class SymbolLayer extends TextureLayer {
 	}
 
 	@Override
-	void compile(ShortBuffer sbuf) {
+	void uploadTextures() {
 		if (TextureRenderer.debug)
-			Log.d("...", "compile");
+			Log.d("...", "upload textures");
 
 		for (TextureObject to = textures; to != null; to = to.next)
 			TextureObject.uploadTexture(to);
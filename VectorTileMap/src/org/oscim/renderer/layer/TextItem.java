@@ -55,7 +55,7 @@ public class TextItem {
 		this.y = y;
 		this.string = string;
 		this.text = text;
-		this.width = text.paint.measureText(string);
+		this.width = text.measureText(string);
 		return this;
 	}
 
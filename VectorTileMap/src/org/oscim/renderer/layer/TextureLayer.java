@@ -14,8 +14,6 @@
  */
 package org.oscim.renderer.layer;
 
-import java.nio.ShortBuffer;
-
 import org.oscim.renderer.TextureObject;
 
 public abstract class TextureLayer extends Layer {
@@ -23,10 +21,9 @@ public abstract class TextureLayer extends Layer {
 	public boolean fixed;
 
 	/**
-	 * @param sbuf
-	 *            buffer to add vertices
+	 * upload textures, only call from GL-Thread
 	 */
-	abstract void compile(ShortBuffer sbuf);
+	abstract void uploadTextures();
 
 	abstract public boolean prepare();
 }
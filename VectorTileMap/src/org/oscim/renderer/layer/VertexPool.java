@@ -14,99 +14,174 @@
  */
 package org.oscim.renderer.layer;
 
-import android.util.Log;
-
+/**
+ * Pool of VertexPoolItems. Each thread keeps a small magazine of items
+ * which is refilled from and spilled to the shared pool in batches, so that
+ * the lock of the shared pool is only taken once per BATCH_SIZE items.
+ */
 public class VertexPool {
 	private static final int POOL_LIMIT = 6000;
 
+	// items moved between magazine and shared pool at once
+	private static final int BATCH_SIZE = 32;
+	// spill to shared pool when a magazine holds more items
+	private static final int MAGAZINE_LIMIT = 2 * BATCH_SIZE;
+
 	static private VertexPoolItem pool = null;
+	// items in shared pool
 	static private int count = 0;
+	// items allocated and not dropped
 	static private int countAll = 0;
 
+	// incremented by init() to invalidate the magazines of all threads
+	static private volatile int generation = 0;
+
+	static final class Magazine {
+		VertexPoolItem items;
+		int count;
+		int generation;
+	}
+
+	private static final ThreadLocal<Magazine> magazine = new ThreadLocal<Magazine>() {
+		@Override
+		protected Magazine initialValue() {
+			return new Magazine();
+		}
+	};
+
 	public static synchronized void init() {
 		count = 0;
 		countAll = 0;
 		pool = null;
+		generation++;
 	}
 
-	static synchronized VertexPoolItem get() {
-
-		if (pool == null && count > 0) {
-			Log.d("VertexPool", "XXX wrong count: " + count);
-		}
-		if (pool == null) {
-			countAll++;
-			return new VertexPoolItem();
-		}
+	/**
+	 * @return number of items available in the shared pool, not counting
+	 *         those cached by threads (at most MAGAZINE_LIMIT per thread)
+	 */
+	public static synchronized int getPoolSize() {
+		return count;
+	}
 
-		count--;
+	/**
+	 * @return number of items currently allocated, in use or pooled
+	 */
+	public static synchronized int getAllocated() {
+		return countAll;
+	}
 
-		if (count < 0) {
-			int c = 0;
+	static VertexPoolItem get() {
+		Magazine m = magazine.get();
 
-			for (VertexPoolItem tmp = pool; tmp != null; tmp = tmp.next)
-				c++;
+		if (m.items == null || m.generation != generation)
+			refill(m);
 
-			Log.d("VertexPool", "XXX wrong count: " + count + " left" + c);
-			return new VertexPoolItem();
+		VertexPoolItem it = m.items;
+		if (it == null) {
+			it = new VertexPoolItem();
+			synchronized (VertexPool.class) {
+				countAll++;
+			}
+			return it;
 		}
 
-		VertexPoolItem it = pool;
-		pool = pool.next;
+		m.items = it.next;
+		m.count--;
+
 		it.used = 0;
 		it.next = null;
 		return it;
 	}
 
-	// private static float load = 1.0f;
-	// private static int loadCount = 0;
+	private static synchronized void refill(Magazine m) {
+		if (m.generation != generation) {
+			// pool was reset, drop cached items
+			m.items = null;
+			m.count = 0;
+			m.generation = generation;
+		}
 
-	static synchronized void release(VertexPoolItem items) {
-		if (items == null)
+		if (pool == null)
 			return;
 
-		// int pall = countAll;
-		// int pcnt = count;
+		VertexPoolItem first = pool;
+		VertexPoolItem last = pool;
+		int n = 1;
 
-		// limit pool items
-		if (countAll < POOL_LIMIT) {
+		while (n < BATCH_SIZE && last.next != null) {
+			last = last.next;
+			n++;
+		}
 
-			VertexPoolItem last = items;
+		pool = last.next;
+		count -= n;
 
-			while (true) {
-				count++;
-				// load += (float) last.used / VertexPoolItem.SIZE;
-				// loadCount++;
+		last.next = m.items;
+		m.items = first;
+		m.count += n;
+	}
 
-				if (last.next == null)
-					break;
+	static void release(VertexPoolItem items) {
+		if (items == null)
+			return;
 
-				last = last.next;
+		Magazine m = magazine.get();
+
+		if (m.generation != generation) {
+			synchronized (VertexPool.class) {
+				m.items = null;
+				m.count = 0;
+				m.generation = generation;
 			}
+		}
 
-			last.next = pool;
-			pool = items;
-			// Log.d("Pool", "added: " + (count - pcnt) + " " + count + " " +
-			// countAll
-			// + " load: " + (load / loadCount));
+		VertexPoolItem last = items;
+		int n = 1;
+		while (last.next != null) {
+			last = last.next;
+			n++;
+		}
 
-		} else {
-			// int cleared = 0;
-			VertexPoolItem prev, tmp = items;
-			while (tmp != null) {
-				prev = tmp;
-				tmp = tmp.next;
+		last.next = m.items;
+		m.items = items;
+		m.count += n;
 
-				countAll--;
+		if (m.count > MAGAZINE_LIMIT)
+			spill(m);
+	}
 
-				// load += (float) prev.used / VertexPoolItem.SIZE;
-				// loadCount++;
+	private static synchronized void spill(Magazine m) {
+		// keep BATCH_SIZE items in magazine
+		int n = m.count - BATCH_SIZE;
 
-				prev.next = null;
+		VertexPoolItem keep = m.items;
+		for (int i = 1; i < BATCH_SIZE; i++)
+			keep = keep.next;
 
-			}
-			// Log.d("Pool", "dropped: " + (pall - countAll) + " " + count + " "
-			// + countAll + " load: " + (load / loadCount));
+		VertexPoolItem items = keep.next;
+		keep.next = null;
+		m.count = BATCH_SIZE;
+
+		if (m.generation != generation) {
+			// items were allocated before init(), do not count them
+			m.generation = generation;
+			m.items = null;
+			m.count = 0;
+			return;
+		}
+
+		// limit pool items
+		if (countAll < POOL_LIMIT) {
+			VertexPoolItem last = items;
+			while (last.next != null)
+				last = last.next;
+
+			last.next = pool;
+			pool = items;
+			count += n;
+		} else {
+			countAll -= n;
 		}
 	}
 }
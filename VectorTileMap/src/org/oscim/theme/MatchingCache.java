@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.oscim.core.Tag;
+import org.oscim.theme.renderinstruction.RenderInstruction;
+
+/**
+ * Cache for the render instructions matched by a RenderTheme. Entries are
+ * keyed by (tag set id, zoom-level, element type) packed into a long and
+ * stored in an open addressing table. Each key can only be stored within
+ * PROBE_WINDOW slots of its hash, when these are occupied the least
+ * recently used one is replaced. Lookups do not allocate.
+ * <p>
+ * A cache is created by RenderTheme.createMatchingCache() and owned by one
+ * thread, e.g. by the TileGenerator of a worker. Only clear() and the
+ * counters may be used from other threads.
+ */
+public final class MatchingCache {
+	static final int NODE = 0;
+	static final int WAY = 1;
+	static final int AREA = 2;
+
+	private static final int PROBE_WINDOW = 4;
+
+	// marks keys for which no render instruction matched
+	static final RenderInstruction[] NO_MATCH = new RenderInstruction[0];
+
+	private final TagSetRegistry mTagSets;
+
+	private final long[] mKeys;
+	private final RenderInstruction[][] mValues;
+	private final int[] mLastUse;
+	private final int mMask;
+
+	private int mClock;
+
+	// set by clear(), the owner drops its entries on the next lookup
+	private volatile boolean mInvalid;
+
+	private final AtomicInteger mHits = new AtomicInteger();
+	private final AtomicInteger mMisses = new AtomicInteger();
+	private final AtomicInteger mEvictions = new AtomicInteger();
+
+	// scratch space of the owner to match the rules on a miss
+	final ArrayList<RenderInstruction> mMatchingList;
+	final long[] mCandidates;
+
+	/**
+	 * @param size
+	 *            number of cache slots, must be a power of two.
+	 * @param rules
+	 *            number of rules of the RenderTheme
+	 */
+	MatchingCache(int size, int rules) {
+		mKeys = new long[size];
+		mValues = new RenderInstruction[size][];
+		mLastUse = new int[size];
+		mMask = size - 1;
+
+		mTagSets = new TagSetRegistry(size);
+
+		mMatchingList = new ArrayList<RenderInstruction>(8);
+		mCandidates = new long[RuleIndex.getWords(rules)];
+	}
+
+	private static long key(int tagSetId, byte zoomLevel, int type) {
+		return ((long) tagSetId << 16) | ((zoomLevel & 0xff) << 2) | type;
+	}
+
+	private static int hash(long key) {
+		int h = (int) (key ^ (key >>> 32));
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the cached render instructions, NO_MATCH when no instruction
+	 *         matched the tags or null when the tags are not in cache.
+	 */
+	RenderInstruction[] get(Tag[] tags, byte zoomLevel, int type) {
+
+		if (mInvalid) {
+			mInvalid = false;
+			clearEntries();
+		}
+
+		int id = mTagSets.getId(tags);
+		if (id != 0) {
+			long key = key(id, zoomLevel, type);
+
+			for (int i = 0, slot = hash(key) & mMask; i < PROBE_WINDOW; i++) {
+				if (mKeys[slot] == key) {
+					mLastUse[slot] = ++mClock;
+					mHits.incrementAndGet();
+					return mValues[slot];
+				}
+				slot = (slot + 1) & mMask;
+			}
+		}
+
+		mMisses.incrementAndGet();
+		return null;
+	}
+
+	void put(Tag[] tags, byte zoomLevel, int type,
+			RenderInstruction[] renderInstructions) {
+
+		int id = mTagSets.register(tags);
+		if (id == 0) {
+			// registry is full, start over
+			mEvictions.addAndGet(clearEntries());
+			id = mTagSets.register(tags);
+		}
+
+		long key = key(id, zoomLevel, type);
+
+		int victim = -1;
+		int maxAge = -1;
+
+		for (int i = 0, slot = hash(key) & mMask; i < PROBE_WINDOW; i++) {
+			if (mKeys[slot] == key || mKeys[slot] == 0) {
+				victim = slot;
+				break;
+			}
+			int age = mClock - mLastUse[slot];
+			if (age > maxAge) {
+				maxAge = age;
+				victim = slot;
+			}
+			slot = (slot + 1) & mMask;
+		}
+
+		if (mKeys[victim] != 0 && mKeys[victim] != key)
+			mEvictions.incrementAndGet();
+
+		mKeys[victim] = key;
+		mValues[victim] = (renderInstructions == null ? NO_MATCH : renderInstructions);
+		mLastUse[victim] = ++mClock;
+	}
+
+	/**
+	 * Drop all entries and reset the counters, may be called from any
+	 * thread.
+	 */
+	void clear() {
+		mInvalid = true;
+		mHits.set(0);
+		mMisses.set(0);
+		mEvictions.set(0);
+	}
+
+	private int clearEntries() {
+		int cleared = 0;
+
+		mTagSets.clear();
+
+		for (int i = 0, n = mKeys.length; i < n; i++) {
+			if (mKeys[i] != 0)
+				cleared++;
+
+			mKeys[i] = 0;
+			mValues[i] = null;
+		}
+		return cleared;
+	}
+
+	/**
+	 * @return number of lookups that were found in cache.
+	 */
+	public int getHits() {
+		return mHits.get();
+	}
+
+	/**
+	 * @return number of lookups that had to match the theme rules.
+	 */
+	public int getMisses() {
+		return mMisses.get();
+	}
+
+	/**
+	 * @return number of entries replaced to make room for new ones.
+	 */
+	public int getEvictions() {
+		return mEvictions.get();
+	}
+
+	/**
+	 * @return number of distinct tag sets currently known.
+	 */
+	public int getTagSets() {
+		return mTagSets.size();
+	}
+}
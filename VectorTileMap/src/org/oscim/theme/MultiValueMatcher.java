@@ -19,7 +19,7 @@ import java.util.List;
 import org.oscim.core.Tag;
 
 class MultiValueMatcher implements AttributeMatcher {
-	private final String[] mValues;
+	final String[] mValues;
 
 	MultiValueMatcher(List<String> values) {
 		mValues = new String[values.size()];
@@ -35,6 +35,14 @@ class NegativeMatcher implements AttributeMatcher {
 		mExclusive = exclusive;
 	}
 
+	boolean hasKey(String key) {
+		for (String k : mKeyList)
+			if (k == key)
+				return true;
+
+		return false;
+	}
+
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
 		return false;
@@ -26,6 +26,11 @@ class NegativeRule extends Rule {
 		mAttributeMatcher = attributeMatcher;
 	}
 
+	@Override
+	boolean hasKey(String key) {
+		return ((NegativeMatcher) mAttributeMatcher).hasKey(key);
+	}
+
 	@Override
 	boolean matchesNode(Tag[] tags, byte zoomLevel) {
 		return mZoomMin <= zoomLevel && mZoomMax >= zoomLevel
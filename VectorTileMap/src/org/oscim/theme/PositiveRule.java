@@ -14,6 +14,8 @@
  */
 package org.oscim.theme;
 
+import java.util.Set;
+
 import org.oscim.core.Tag;
 
 class PositiveRule extends Rule {
@@ -35,6 +37,49 @@ class PositiveRule extends Rule {
 			mValueMatcher = valueMatcher;
 	}
 
+	@Override
+	boolean addTags(Set<String> keys, Set<String> values) {
+		if (mKeyMatcher instanceof SingleKeyMatcher) {
+			keys.add(((SingleKeyMatcher) mKeyMatcher).mKey);
+
+		} else if (mKeyMatcher instanceof MultiKeyMatcher) {
+			for (String key : ((MultiKeyMatcher) mKeyMatcher).mKeys)
+				keys.add(key);
+
+		} else if (mKeyMatcher != null) {
+			return false;
+
+		} else if (mValueMatcher instanceof SingleValueMatcher) {
+			values.add(((SingleValueMatcher) mValueMatcher).mValue);
+
+		} else if (mValueMatcher instanceof MultiValueMatcher) {
+			for (String value : ((MultiValueMatcher) mValueMatcher).mValues)
+				values.add(value);
+
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	boolean matchesAnyTags() {
+		return mKeyMatcher == null && mValueMatcher == null;
+	}
+
+	@Override
+	boolean hasKey(String key) {
+		if (mKeyMatcher instanceof SingleKeyMatcher)
+			return ((SingleKeyMatcher) mKeyMatcher).mKey == key;
+
+		if (mKeyMatcher instanceof MultiKeyMatcher) {
+			for (String k : ((MultiKeyMatcher) mKeyMatcher).mKeys)
+				if (k == key)
+					return true;
+		}
+		return false;
+	}
+
 	@Override
 	boolean matchesNode(Tag[] tags, byte zoomLevel) {
 		return (mElement != Element.WAY)
@@ -15,11 +15,12 @@
 package org.oscim.theme;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
+import org.oscim.backend.Platform;
 import org.oscim.core.Tag;
 import org.oscim.theme.renderinstruction.RenderInstruction;
-import org.oscim.utils.LRUCache;
 import org.xml.sax.Attributes;
 
 import android.graphics.Color;
@@ -28,7 +29,8 @@ import android.graphics.Color;
  * A RenderTheme defines how ways and nodes are drawn.
  */
 public class RenderTheme {
-	private static final int MATCHING_CACHE_SIZE = 1024;
+	// size of a cache for nodes, ways and areas, must be a power of two
+	private static final int MATCHING_CACHE_SIZE = 4096;
 	private static final int RENDER_THEME_VERSION = 1;
 
 	private static void validate(String elementName, Integer version,
@@ -62,7 +64,7 @@ public class RenderTheme {
 			} else if ("version".equals(name)) {
 				version = Integer.valueOf(Integer.parseInt(value));
 			} else if ("map-background".equals(name)) {
-				mapBackground = Color.parseColor(value);
+				mapBackground = Platform.parseColor(value);
 			} else if ("base-stroke-width".equals(name)) {
 				baseStrokeWidth = Float.parseFloat(value);
 			} else if ("base-text-size".equals(name)) {
@@ -79,35 +81,27 @@ public class RenderTheme {
 	private final float mBaseStrokeWidth;
 	private final float mBaseTextSize;
 	private int mLevels;
+	private int mRuleCount;
 	private final int mMapBackground;
 	private final ArrayList<Rule> mRulesList;
 
-	private final LRUCache<MatchingCacheKey, RenderInstruction[]> mMatchingCacheNodes;
-	private final LRUCache<MatchingCacheKey, RenderInstruction[]> mMatchingCacheWay;
-	private final LRUCache<MatchingCacheKey, RenderInstruction[]> mMatchingCacheArea;
+	// rules indexed by tag key/value, one per zoom-level
+	private final RuleIndex[] mWayIndex;
+	private final RuleIndex[] mNodeIndex;
 
 	RenderTheme(int mapBackground, float baseStrokeWidth, float baseTextSize) {
 		mMapBackground = mapBackground;
 		mBaseStrokeWidth = baseStrokeWidth;
 		mBaseTextSize = baseTextSize;
 		mRulesList = new ArrayList<Rule>();
-
-		mMatchingCacheNodes = new LRUCache<MatchingCacheKey, RenderInstruction[]>(
-				MATCHING_CACHE_SIZE);
-		mMatchingCacheWay = new LRUCache<MatchingCacheKey, RenderInstruction[]>(
-				MATCHING_CACHE_SIZE);
-		mMatchingCacheArea = new LRUCache<MatchingCacheKey, RenderInstruction[]>(
-				MATCHING_CACHE_SIZE);
+		mWayIndex = new RuleIndex[Byte.MAX_VALUE + 1];
+		mNodeIndex = new RuleIndex[Byte.MAX_VALUE + 1];
 	}
 
 	/**
 	 * Must be called when this RenderTheme gets destroyed to clean up and free resources.
 	 */
 	public void destroy() {
-		mMatchingCacheNodes.clear();
-		mMatchingCacheArea.clear();
-		mMatchingCacheWay.clear();
-
 		for (int i = 0, n = mRulesList.size(); i < n; ++i) {
 			mRulesList.get(i).onDestroy();
 		}
@@ -129,38 +123,53 @@ public class RenderTheme {
 	}
 
 	/**
+	 * @return a new cache for matchNode() and matchWay() with this
+	 *         RenderTheme. A cache must only be used by one thread at a
+	 *         time, e.g. one per TileGenerator.
+	 */
+	public MatchingCache createMatchingCache() {
+		return new MatchingCache(MATCHING_CACHE_SIZE, mRuleCount);
+	}
+
+	/**
+	 * Matches a node with the given parameters against this RenderTheme.
+	 * Rule matching and render callbacks run without holding any lock, so
+	 * that MapWorkers with their own cache can build tiles concurrently.
+	 * 
 	 * @param renderCallback
-	 *            ...
+	 *            the callback implementation which will be executed on each match.
+	 * @param cache
+	 *            the caller's cache from createMatchingCache()
 	 * @param tags
-	 *            ...
+	 *            the tags of the node.
 	 * @param zoomLevel
-	 *            ...
-	 * @return ...
+	 *            the zoom level at which the node should be matched.
+	 * @return currently processed render instructions
 	 */
-	public synchronized RenderInstruction[] matchNode(IRenderCallback renderCallback,
-			Tag[] tags, byte zoomLevel) {
-
-		RenderInstruction[] renderInstructions = null;
+	public RenderInstruction[] matchNode(IRenderCallback renderCallback,
+			MatchingCache cache, Tag[] tags, byte zoomLevel) {
 
-		MatchingCacheKey matchingCacheKey;
+		RenderInstruction[] renderInstructions =
+				cache.get(tags, zoomLevel, MatchingCache.NODE);
 
-		matchingCacheKey = new MatchingCacheKey(tags, zoomLevel);
-		boolean found = mMatchingCacheNodes.containsKey(matchingCacheKey);
-		if (found) {
-			renderInstructions = mMatchingCacheNodes.get(matchingCacheKey);
-		} else {
+		if (renderInstructions == null) {
 			// cache miss
-			List<RenderInstruction> matchingList = new ArrayList<RenderInstruction>(4);
-			for (int i = 0, n = mRulesList.size(); i < n; ++i)
-				mRulesList.get(i)
-						.matchNode(renderCallback, tags, zoomLevel, matchingList);
+			List<RenderInstruction> matchingList = cache.mMatchingList;
+			getRuleIndex(mNodeIndex, zoomLevel, Element.NODE)
+					.matchNode(renderCallback, tags, zoomLevel, cache.mCandidates,
+							matchingList);
 
 			int size = matchingList.size();
 			if (size > 0) {
 				renderInstructions = new RenderInstruction[size];
 				matchingList.toArray(renderInstructions);
+				matchingList.clear();
 			}
-			mMatchingCacheNodes.put(matchingCacheKey, renderInstructions);
+
+			cache.put(tags, zoomLevel, MatchingCache.NODE, renderInstructions);
+
+		} else if (renderInstructions == MatchingCache.NO_MATCH) {
+			return null;
 		}
 
 		if (renderInstructions != null) {
@@ -172,15 +181,14 @@ public class RenderTheme {
 
 	}
 
-	// private int missCnt = 0;
-	// private int hitCnt = 0;
-	private MatchingCacheKey mCacheKey = new MatchingCacheKey();
-
 	/**
 	 * Matches a way with the given parameters against this RenderTheme.
+	 * Like matchNode() this does not hold any shared lock.
 	 * 
 	 * @param renderCallback
 	 *            the callback implementation which will be executed on each match.
+	 * @param cache
+	 *            the caller's cache from createMatchingCache()
 	 * @param tags
 	 *            the tags of the way.
 	 * @param zoomLevel
@@ -191,43 +199,33 @@ public class RenderTheme {
 	 *            ...
 	 * @return currently processed render instructions
 	 */
-	public synchronized RenderInstruction[] matchWay(IRenderCallback renderCallback,
-			Tag[] tags, byte zoomLevel, boolean closed, boolean render) {
-
-		RenderInstruction[] renderInstructions = null;
+	public RenderInstruction[] matchWay(IRenderCallback renderCallback,
+			MatchingCache cache, Tag[] tags, byte zoomLevel, boolean closed,
+			boolean render) {
 
-		LRUCache<MatchingCacheKey, RenderInstruction[]> matchingCache;
-		MatchingCacheKey matchingCacheKey;
+		int type = (closed ? MatchingCache.AREA : MatchingCache.WAY);
 
-		if (closed) {
-			matchingCache = mMatchingCacheArea;
-		} else {
-			matchingCache = mMatchingCacheWay;
-		}
-
-		mCacheKey.set(tags, zoomLevel);
-		renderInstructions = matchingCache.get(mCacheKey);
-
-		if (renderInstructions != null) {
-			// Log.d("RenderTheme", hitCnt++ + "Cache Hit");
-		} else if (!matchingCache.containsKey(mCacheKey)) {
-			matchingCacheKey = new MatchingCacheKey(mCacheKey);
+		RenderInstruction[] renderInstructions = cache.get(tags, zoomLevel, type);
 
+		if (renderInstructions == null) {
 			// cache miss
-			// Log.d("RenderTheme", missCnt++ + " Cache Miss");
-
 			int c = (closed ? Closed.YES : Closed.NO);
-			List<RenderInstruction> matchingList = new ArrayList<RenderInstruction>(4);
-			for (int i = 0, n = mRulesList.size(); i < n; ++i) {
-				mRulesList.get(i).matchWay(renderCallback, tags, zoomLevel, c,
-						matchingList);
-			}
+			List<RenderInstruction> matchingList = cache.mMatchingList;
+			getRuleIndex(mWayIndex, zoomLevel, Element.WAY)
+					.matchWay(renderCallback, tags, zoomLevel, c, cache.mCandidates,
+							matchingList);
+
 			int size = matchingList.size();
 			if (size > 0) {
 				renderInstructions = new RenderInstruction[size];
 				matchingList.toArray(renderInstructions);
+				matchingList.clear();
 			}
-			matchingCache.put(matchingCacheKey, renderInstructions);
+
+			cache.put(tags, zoomLevel, type, renderInstructions);
+
+		} else if (renderInstructions == MatchingCache.NO_MATCH) {
+			return null;
 		}
 
 		if (render && renderInstructions != null) {
@@ -238,6 +236,53 @@ public class RenderTheme {
 		return renderInstructions;
 	}
 
+	/**
+	 * Selects the tags of a map file tag table that elements need to match
+	 * a render instruction at zoomLevel. The result is computed once per
+	 * tag table and zoom-level.
+	 * 
+	 * @param tags
+	 *            the tag table, must not be modified
+	 * @param zoomLevel
+	 *            the zoom level at which elements are matched.
+	 * @param way
+	 *            true for way tags, false for node tags
+	 * @param captions
+	 *            select the tags of elements that can be labeled with their
+	 *            name instead
+	 * @return bit i is set when tags[i] can match, or null when elements
+	 *         without such a tag can match as well
+	 */
+	public BitSet getTagFilter(Tag[] tags, byte zoomLevel, boolean way, boolean captions) {
+		RuleIndex index;
+		if (way)
+			index = getRuleIndex(mWayIndex, zoomLevel, Element.WAY);
+		else
+			index = getRuleIndex(mNodeIndex, zoomLevel, Element.NODE);
+
+		return index.getTagFilter(tags, captions);
+	}
+
+	/**
+	 * Get the rule dispatch table for zoomLevel, compiled on first use.
+	 * Its dispatch tables are immutable so they can be read without
+	 * synchronization.
+	 */
+	private RuleIndex getRuleIndex(RuleIndex[] indices, byte zoomLevel, int element) {
+		RuleIndex index = indices[zoomLevel];
+		if (index != null)
+			return index;
+
+		synchronized (indices) {
+			index = indices[zoomLevel];
+			if (index == null) {
+				index = new RuleIndex(mRulesList, zoomLevel, element);
+				indices[zoomLevel] = index;
+			}
+		}
+		return index;
+	}
+
 	void addRule(Rule rule) {
 		mRulesList.add(rule);
 	}
@@ -246,6 +291,7 @@ public class RenderTheme {
 		mRulesList.trimToSize();
 		for (int i = 0, n = mRulesList.size(); i < n; ++i) {
 			mRulesList.get(i).onComplete();
+			mRuleCount += mRulesList.get(i).countRules();
 		}
 
 	}
@@ -24,6 +24,7 @@ import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
 
+import org.oscim.backend.Log;
 import org.oscim.theme.renderinstruction.Area;
 import org.oscim.theme.renderinstruction.AreaLevel;
 import org.oscim.theme.renderinstruction.Circle;
@@ -39,8 +40,6 @@ import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
 
-import android.util.Log;
-
 /**
  * SAX2 handler to parse XML render theme files.
  */
@@ -80,8 +79,11 @@ public class RenderThemeHandler extends DefaultHandler {
 			throws SAXException,
 			ParserConfigurationException, IOException {
 		RenderThemeHandler renderThemeHandler = new RenderThemeHandler();
-		XMLReader xmlReader = SAXParserFactory.newInstance().newSAXParser()
-				.getXMLReader();
+		// element names are matched by localName, which needs namespace
+		// processing. Android enables it by default, other platforms don't.
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		XMLReader xmlReader = factory.newSAXParser().getXMLReader();
 		xmlReader.setContentHandler(renderThemeHandler);
 		xmlReader.parse(new InputSource(inputStream));
 		return renderThemeHandler.mRenderTheme;
@@ -16,15 +16,19 @@ package org.oscim.theme;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.regex.Pattern;
 
 import org.oscim.core.Tag;
 import org.oscim.theme.renderinstruction.RenderInstruction;
+import org.oscim.theme.renderinstruction.Text;
 import org.xml.sax.Attributes;
 
 abstract class Rule {
@@ -197,6 +201,11 @@ abstract class Rule {
 
 	abstract boolean matchesWay(Tag[] tags, byte zoomLevel, int closed);
 
+	/**
+	 * @return true if the rule tests whether tag sets contain 'key'
+	 */
+	abstract boolean hasKey(String key);
+
 	void matchNode(IRenderCallback renderCallback, Tag[] tags, byte zoomLevel,
 			List<RenderInstruction> matchingList) {
 		if (matchesNode(tags, zoomLevel)) {
@@ -224,6 +233,149 @@ abstract class Rule {
 		}
 	}
 
+	/**
+	 * @return true if the rule matches any tags, i.e. it only tests
+	 *         zoom-level, element and closed
+	 */
+	boolean matchesAnyTags() {
+		return false;
+	}
+
+	/**
+	 * Adds this rule to 'rules' when it can match at zoomLevel. Rules which
+	 * match any tags and have no render instructions of their own, like the
+	 * top-level k="*" v="*" rules of osmarender, are replaced by their
+	 * sub-rules, so that these can be indexed by their tags.
+	 * 
+	 * @param closed
+	 *            the closed condition of the replaced parent rules, which
+	 *            is added for each rule to 'closedConditions'
+	 */
+	void addIndexRules(byte zoomLevel, int element, int closed, List<Rule> rules,
+			List<Integer> closedConditions) {
+
+		if (mZoomMin > zoomLevel || mZoomMax < zoomLevel)
+			return;
+
+		if (mElement != Element.ANY && mElement != element)
+			return;
+
+		if (!matchesAnyTags() || mRenderInstructionArray.length > 0) {
+			rules.add(this);
+			closedConditions.add(Integer.valueOf(closed));
+			return;
+		}
+
+		// nodes ignore the closed condition
+		if (element == Element.WAY && mClosed != Closed.ANY) {
+			if (closed == Closed.ANY)
+				closed = mClosed;
+			else if (closed != mClosed)
+				return;
+		}
+
+		for (int i = 0, n = mSubRuleArray.length; i < n; i++)
+			mSubRuleArray[i].addIndexRules(zoomLevel, element, closed, rules,
+					closedConditions);
+	}
+
+	/**
+	 * @return the number of rules in this rule tree
+	 */
+	int countRules() {
+		int count = 1;
+		for (int i = 0, n = mSubRuleArray.length; i < n; i++)
+			count += mSubRuleArray[i].countRules();
+
+		return count;
+	}
+
+	/**
+	 * Adds the keys, or the values when the key is a wildcard, of which a
+	 * tag set must contain one for this rule to match.
+	 *
+	 * @return false when the rule can match tag sets without such a tag
+	 */
+	boolean addTags(Set<String> keys, Set<String> values) {
+		return false;
+	}
+
+	/**
+	 * Sets the bits of the tags in 'tags' of which an element must have one
+	 * to match a render instruction of this rule or its sub-rules at
+	 * zoomLevel. From each path of rules to an instruction the rule that is
+	 * matched by the fewest of the tags is taken.
+	 *
+	 * @param captions
+	 *            only consider Text instructions which show the name tag
+	 * @param required
+	 *            tags of which an element must have one to match the
+	 *            parent rules, or null
+	 * @return false when an element without such a tag can match
+	 */
+	boolean addDemand(Tag[] tags, byte zoomLevel, int element, boolean captions,
+			BitSet required, BitSet demand) {
+
+		if (mZoomMin > zoomLevel || mZoomMax < zoomLevel)
+			return true;
+
+		if (mElement != Element.ANY && mElement != element)
+			return true;
+
+		// names are only decoded for elements that may show them, they must
+		// not decide whether a rule matches
+		if (captions && hasKey(Tag.TAG_KEY_NAME))
+			return false;
+
+		BitSet matching = getMatchingTags(tags);
+		if (matching != null
+				&& (required == null || matching.cardinality() < required.cardinality()))
+			required = matching;
+
+		for (int i = 0, n = mRenderInstructionArray.length; i < n; i++) {
+			if (captions && !isNameText(mRenderInstructionArray[i]))
+				continue;
+
+			if (required == null)
+				return false;
+
+			demand.or(required);
+			break;
+		}
+
+		for (int i = 0, n = mSubRuleArray.length; i < n; i++)
+			if (!mSubRuleArray[i].addDemand(tags, zoomLevel, element, captions,
+					required, demand))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @return the tags of which an element must have one to match this
+	 *         rule, or null when it can match without
+	 */
+	private BitSet getMatchingTags(Tag[] tags) {
+		HashSet<String> keys = new HashSet<String>();
+		HashSet<String> values = new HashSet<String>();
+
+		// names are not part of tag tables
+		if (!addTags(keys, values) || keys.contains(Tag.TAG_KEY_NAME))
+			return null;
+
+		BitSet matching = new BitSet(tags.length);
+		for (int i = 0; i < tags.length; i++)
+			if (keys.contains(tags[i].key) || values.contains(tags[i].value))
+				matching.set(i);
+
+		return matching;
+	}
+
+	private static boolean isNameText(RenderInstruction renderInstruction) {
+		return renderInstruction instanceof Text
+				&& ((Text) renderInstruction).textKey == Tag.TAG_KEY_NAME;
+	}
+
 	void onComplete() {
 		MATCHERS_CACHE_KEY.clear();
 		MATCHERS_CACHE_VALUE.clear();
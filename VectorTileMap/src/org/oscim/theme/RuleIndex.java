@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.oscim.core.Tag;
+import org.oscim.theme.renderinstruction.RenderInstruction;
+
+/**
+ * Dispatch table for the rules of a RenderTheme at one zoom-level and for
+ * one element type. Wrapper rules without tag conditions are replaced by
+ * their sub-rules, see Rule.addIndexRules(). Rules are indexed by the (interned) keys, or
+ * values when the key is a wildcard, a tag set must contain for the rule to
+ * match. On a cache miss only the rules indexed by the keys and values of
+ * the tag set (and those that cannot be indexed, e.g. NegativeRules) are
+ * evaluated, in the order they appear in the theme.
+ * <p>
+ * The rules and their sub-rules are also compiled to filters over the tag
+ * tables of map files, so that map databases can skip elements which cannot
+ * match before decoding them.
+ */
+final class RuleIndex {
+	private static final BitSet NO_FILTER = new BitSet();
+
+	private final Rule[] mRules;
+
+	// closed condition of the parent rules that were replaced by mRules[i]
+	private final int[] mClosed;
+
+	// rule positions by key and value
+	private final HashMap<String, int[]> mKeyIndex;
+	private final HashMap<String, int[]> mValueIndex;
+
+	// bitmap of the rules that need to be checked for every tag set
+	private final long[] mAlways;
+
+	private final byte mZoomLevel;
+	private final int mElement;
+
+	// tag filters by tag table, see getTagFilter()
+	private final IdentityHashMap<Tag[], BitSet> mFilters;
+	private final IdentityHashMap<Tag[], BitSet> mCaptionFilters;
+
+	RuleIndex(List<Rule> rules, byte zoomLevel, int element) {
+		ArrayList<Rule> selected = new ArrayList<Rule>();
+		ArrayList<Integer> closed = new ArrayList<Integer>();
+
+		for (int i = 0, n = rules.size(); i < n; i++)
+			rules.get(i).addIndexRules(zoomLevel, element, Closed.ANY, selected, closed);
+
+		mRules = new Rule[selected.size()];
+		selected.toArray(mRules);
+		mClosed = toArray(closed);
+
+		HashMap<String, List<Integer>> keys = new HashMap<String, List<Integer>>();
+		HashMap<String, List<Integer>> values = new HashMap<String, List<Integer>>();
+		mAlways = new long[getWords(mRules.length)];
+
+		HashSet<String> ruleKeys = new HashSet<String>();
+		HashSet<String> ruleValues = new HashSet<String>();
+
+		for (int i = 0; i < mRules.length; i++) {
+			Integer pos = Integer.valueOf(i);
+
+			ruleKeys.clear();
+			ruleValues.clear();
+
+			if (!mRules[i].addTags(ruleKeys, ruleValues)) {
+				mAlways[i >> 6] |= 1L << i;
+				continue;
+			}
+
+			for (String key : ruleKeys)
+				add(keys, key, pos);
+
+			for (String value : ruleValues)
+				add(values, value, pos);
+		}
+
+		mKeyIndex = compile(keys);
+		mValueIndex = compile(values);
+
+		mZoomLevel = zoomLevel;
+		mElement = element;
+		mFilters = new IdentityHashMap<Tag[], BitSet>(4);
+		mCaptionFilters = new IdentityHashMap<Tag[], BitSet>(4);
+	}
+
+	/**
+	 * @return the number of longs needed for a candidate bitmap of
+	 *         'rules' rules.
+	 */
+	static int getWords(int rules) {
+		return (rules + 63) >> 6;
+	}
+
+	/**
+	 * @return the number of rules which can match at this zoom-level.
+	 */
+	int size() {
+		return mRules.length;
+	}
+
+	/**
+	 * @param tags
+	 *            tag table of a map file, must not be modified
+	 * @param captions
+	 *            select the tags of elements that can be labeled with their
+	 *            name instead
+	 * @return bit i is set when tags[i] can match a render instruction, or
+	 *         null when elements without such a tag can match as well
+	 */
+	BitSet getTagFilter(Tag[] tags, boolean captions) {
+		IdentityHashMap<Tag[], BitSet> filters = (captions ? mCaptionFilters : mFilters);
+
+		synchronized (filters) {
+			BitSet filter = filters.get(tags);
+			if (filter == null) {
+				filter = new BitSet(tags.length);
+
+				for (int i = 0; i < mRules.length; i++) {
+					if (!mRules[i].addDemand(tags, mZoomLevel, mElement, captions,
+							null, filter)) {
+						filter = NO_FILTER;
+						break;
+					}
+				}
+				filters.put(tags, filter);
+			}
+			return (filter == NO_FILTER ? null : filter);
+		}
+	}
+
+	/**
+	 * @param candidates
+	 *            scratch bitmap, at least getWords(size()) long
+	 */
+	void matchNode(IRenderCallback renderCallback, Tag[] tags, byte zoomLevel,
+			long[] candidates, List<RenderInstruction> matchingList) {
+
+		setCandidates(tags, candidates);
+
+		for (int w = 0, n = mAlways.length; w < n; w++) {
+			for (long bits = candidates[w]; bits != 0; bits &= bits - 1) {
+				int pos = (w << 6) + Long.numberOfTrailingZeros(bits);
+
+				mRules[pos].matchNode(renderCallback, tags, zoomLevel, matchingList);
+			}
+		}
+	}
+
+	/**
+	 * @param candidates
+	 *            scratch bitmap, at least getWords(size()) long
+	 */
+	void matchWay(IRenderCallback renderCallback, Tag[] tags, byte zoomLevel,
+			int closed, long[] candidates, List<RenderInstruction> matchingList) {
+
+		setCandidates(tags, candidates);
+
+		for (int w = 0, n = mAlways.length; w < n; w++) {
+			for (long bits = candidates[w]; bits != 0; bits &= bits - 1) {
+				int pos = (w << 6) + Long.numberOfTrailingZeros(bits);
+
+				if (mClosed[pos] != Closed.ANY && mClosed[pos] != closed)
+					continue;
+
+				mRules[pos].matchWay(renderCallback, tags, zoomLevel, closed,
+						matchingList);
+			}
+		}
+	}
+
+	/**
+	 * Set the bits of the rules that could match 'tags'. Iterating the bits
+	 * in ascending order keeps the theme order of render instructions and
+	 * visits rules indexed by more than one tag only once.
+	 */
+	private void setCandidates(Tag[] tags, long[] candidates) {
+		System.arraycopy(mAlways, 0, candidates, 0, mAlways.length);
+
+		for (int i = 0, n = tags.length; i < n; i++) {
+			Tag t = tags[i];
+			if (t == null)
+				break;
+
+			int[] k = mKeyIndex.get(t.key);
+			if (k != null) {
+				for (int j = 0; j < k.length; j++)
+					candidates[k[j] >> 6] |= 1L << k[j];
+			}
+
+			int[] v = mValueIndex.get(t.value);
+			if (v != null) {
+				for (int j = 0; j < v.length; j++)
+					candidates[v[j] >> 6] |= 1L << v[j];
+			}
+		}
+	}
+
+	private static void add(HashMap<String, List<Integer>> index, String key,
+			Integer pos) {
+		List<Integer> l = index.get(key);
+		if (l == null) {
+			l = new ArrayList<Integer>(4);
+			index.put(key, l);
+		}
+		l.add(pos);
+	}
+
+	private static HashMap<String, int[]> compile(HashMap<String, List<Integer>> index) {
+		HashMap<String, int[]> result = new HashMap<String, int[]>(index.size() * 2);
+
+		for (String key : index.keySet())
+			result.put(key, toArray(index.get(key)));
+
+		return result;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0, n = result.length; i < n; i++)
+			result[i] = list.get(i).intValue();
+
+		return result;
+	}
+}
@@ -17,7 +17,7 @@ package org.oscim.theme;
 import org.oscim.core.Tag;
 
 class SingleValueMatcher implements AttributeMatcher {
-	private final String mValue;
+	final String mValue;
 
 	SingleValueMatcher(String value) {
 		mValue = value.intern();
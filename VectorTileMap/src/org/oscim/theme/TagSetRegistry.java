@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import org.oscim.core.Tag;
+
+/**
+ * Assigns int ids to distinct tag sets. Tags are compared by the identity
+ * of their (interned) key and value strings, like the AttributeMatchers do,
+ * so tag sets decoded into new Tag instances for each tile map to the same
+ * id. Ids stay valid until the registry is cleared.
+ * <p>
+ * Not thread-safe, only used by the thread owning its MatchingCache.
+ */
+final class TagSetRegistry {
+	private final int mMaxSets;
+
+	// open addressing table, mIds[slot] == 0 means empty
+	private final Tag[][] mTagSets;
+	private final int[] mHashes;
+	private final int[] mIds;
+	private final int mMask;
+
+	// volatile for MatchingCache.getTagSets() from other threads
+	private volatile int mCount;
+
+	/**
+	 * @param maxSets
+	 *            maximum number of tag sets, must be a power of two.
+	 */
+	TagSetRegistry(int maxSets) {
+		mMaxSets = maxSets;
+
+		// keep load factor below 0.5
+		int size = maxSets << 1;
+		mTagSets = new Tag[size][];
+		mHashes = new int[size];
+		mIds = new int[size];
+		mMask = size - 1;
+	}
+
+	/**
+	 * @param tags
+	 *            the tag set, may be terminated by a null entry.
+	 * @return the id of the tag set (> 0), 0 if not registered.
+	 */
+	int getId(Tag[] tags) {
+		int hash = hash(tags);
+
+		for (int slot = hash & mMask;; slot = (slot + 1) & mMask) {
+			if (mIds[slot] == 0)
+				return 0;
+
+			if (mHashes[slot] == hash && equals(mTagSets[slot], tags))
+				return mIds[slot];
+		}
+	}
+
+	/**
+	 * @param tags
+	 *            the tag set, may be terminated by a null entry.
+	 * @return the id of the tag set (> 0), or 0 when the registry is full.
+	 */
+	int register(Tag[] tags) {
+		int hash = hash(tags);
+		int slot = hash & mMask;
+
+		for (; mIds[slot] != 0; slot = (slot + 1) & mMask) {
+			if (mHashes[slot] == hash && equals(mTagSets[slot], tags))
+				return mIds[slot];
+		}
+
+		if (mCount == mMaxSets)
+			return 0;
+
+		// copy, callers may reuse their tag arrays
+		int length = length(tags);
+		Tag[] copy = new Tag[length];
+		System.arraycopy(tags, 0, copy, 0, length);
+
+		mTagSets[slot] = copy;
+		mHashes[slot] = hash;
+		mIds[slot] = ++mCount;
+
+		return mCount;
+	}
+
+	/**
+	 * @return number of registered tag sets
+	 */
+	int size() {
+		return mCount;
+	}
+
+	void clear() {
+		for (int i = 0, n = mIds.length; i < n; i++) {
+			mTagSets[i] = null;
+			mIds[i] = 0;
+		}
+		mCount = 0;
+	}
+
+	private static int length(Tag[] tags) {
+		int length = 0;
+		for (int n = tags.length; length < n; length++)
+			if (tags[length] == null)
+				break;
+
+		return length;
+	}
+
+	private static int hash(Tag[] tags) {
+		int result = 7;
+
+		for (int i = 0, n = tags.length; i < n; i++) {
+			if (tags[i] == null)
+				break;
+			result = 31 * result + tags[i].hashCode();
+		}
+
+		// spread bits, the table is indexed by the lower bits
+		return result ^ (result >>> 16);
+	}
+
+	private static boolean equals(Tag[] stored, Tag[] tags) {
+		int length = stored.length;
+
+		if (tags.length < length || (tags.length > length && tags[length] != null))
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			Tag a = stored[i];
+			Tag b = tags[i];
+			if (a != b && (b == null || a.key != b.key || a.value != b.value))
+				return false;
+		}
+		return true;
+	}
+}
@@ -14,6 +14,7 @@
  */
 package org.oscim.theme.renderinstruction;
 
+import org.oscim.backend.Platform;
 import org.oscim.core.Tag;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderThemeHandler;
@@ -53,9 +54,9 @@ public final class Area extends RenderInstruction {
 			else if ("src".equals(name)) {
 				src = value;
 			} else if ("fill".equals(name)) {
-				fill = Color.parseColor(value);
+				fill = Platform.parseColor(value);
 			} else if ("stroke".equals(name)) {
-				stroke = Color.parseColor(value);
+				stroke = Platform.parseColor(value);
 			} else if ("stroke-width".equals(name)) {
 				strokeWidth = Float.parseFloat(value);
 			} else if ("fade".equals(name)) {
@@ -63,7 +64,7 @@ public final class Area extends RenderInstruction {
 			} else if ("blend".equals(name)) {
 				blend = Integer.parseInt(value);
 			} else if ("blend-fill".equals(name)) {
-				blendFill = Color.parseColor(value);
+				blendFill = Platform.parseColor(value);
 			} else {
 				RenderThemeHandler.logUnknownAttribute(elementName, name, value, i);
 			}
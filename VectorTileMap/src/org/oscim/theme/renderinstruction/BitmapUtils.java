@@ -20,6 +20,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
+import org.oscim.backend.Platform;
+
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapShader;
@@ -58,6 +60,10 @@ public final class BitmapUtils {
 			return null;
 		}
 
+		// no bitmaps, see Platform
+		if (!Platform.isAndroid())
+			return null;
+
 		InputStream inputStream = createInputStream(src);
 		Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
 		inputStream.close();
@@ -14,6 +14,7 @@
  */
 package org.oscim.theme.renderinstruction;
 
+import org.oscim.backend.Platform;
 import org.oscim.core.Tag;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderThemeHandler;
@@ -52,9 +53,9 @@ public final class Circle extends RenderInstruction {
 			} else if ("scale-radius".equals(name)) {
 				scaleRadius = Boolean.parseBoolean(value);
 			} else if ("fill".equals(name)) {
-				fill = Color.parseColor(value);
+				fill = Platform.parseColor(value);
 			} else if ("stroke".equals(name)) {
-				stroke = Color.parseColor(value);
+				stroke = Platform.parseColor(value);
 			} else if ("stroke-width".equals(name)) {
 				strokeWidth = Float.parseFloat(value);
 			} else {
@@ -93,7 +94,7 @@ public final class Circle extends RenderInstruction {
 		mRadius = radius.floatValue();
 		mScaleRadius = scaleRadius;
 
-		if (fill == Color.TRANSPARENT) {
+		if (fill == Color.TRANSPARENT || !Platform.isAndroid()) {
 			mFill = null;
 		} else {
 			mFill = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -101,7 +102,7 @@ public final class Circle extends RenderInstruction {
 			mFill.setColor(fill);
 		}
 
-		if (stroke == Color.TRANSPARENT) {
+		if (stroke == Color.TRANSPARENT || !Platform.isAndroid()) {
 			mOutline = null;
 		} else {
 			mOutline = new Paint(Paint.ANTI_ALIAS_FLAG);
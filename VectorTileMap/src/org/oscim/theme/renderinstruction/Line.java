@@ -17,6 +17,7 @@ package org.oscim.theme.renderinstruction;
 import java.util.Locale;
 import java.util.regex.Pattern;
 
+import org.oscim.backend.Platform;
 import org.oscim.core.Tag;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderThemeHandler;
@@ -73,7 +74,7 @@ public final class Line extends RenderInstruction {
 			else if ("src".equals(name)) {
 				src = value;
 			} else if ("stroke".equals(name)) {
-				stroke = Color.parseColor(value);
+				stroke = Platform.parseColor(value);
 			} else if ("width".equals(name)) {
 				strokeWidth = Float.parseFloat(value);
 			} else if ("stipple".equals(name)) {
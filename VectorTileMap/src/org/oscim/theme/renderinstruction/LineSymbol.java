@@ -83,7 +83,8 @@ public final class LineSymbol extends RenderInstruction {
 
 	@Override
 	public void destroy() {
-		mBitmap.recycle();
+		if (mBitmap != null)
+			mBitmap.recycle();
 	}
 
 	@Override
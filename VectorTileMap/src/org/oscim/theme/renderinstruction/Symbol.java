@@ -72,7 +72,8 @@ public final class Symbol extends RenderInstruction {
 
 	@Override
 	public void destroy() {
-		bitmap.recycle();
+		if (bitmap != null)
+			bitmap.recycle();
 	}
 
 	@Override
@@ -16,6 +16,7 @@ package org.oscim.theme.renderinstruction;
 
 import java.util.Locale;
 
+import org.oscim.backend.Platform;
 import org.oscim.core.Tag;
 import org.oscim.theme.IRenderCallback;
 import org.oscim.theme.RenderThemeHandler;
@@ -27,7 +28,6 @@ import android.graphics.Paint.Align;
 import android.graphics.Paint.FontMetrics;
 import android.graphics.Paint.Style;
 import android.graphics.Typeface;
-import android.util.FloatMath;
 
 /**
  * Represents a text along a polyline on the map.
@@ -68,9 +68,9 @@ public final class Text extends RenderInstruction {
 			} else if ("font-size".equals(name)) {
 				fontSize = Float.parseFloat(value);
 			} else if ("fill".equals(name)) {
-				fill = Color.parseColor(value);
+				fill = Platform.parseColor(value);
 			} else if ("stroke".equals(name)) {
-				stroke = Color.parseColor(value);
+				stroke = Platform.parseColor(value);
 			} else if ("stroke-width".equals(name)) {
 				strokeWidth = Float.parseFloat(value);
 			} else if ("caption".equals(name)) {
@@ -84,25 +84,33 @@ public final class Text extends RenderInstruction {
 
 		validate(elementName, textKey, fontSize, strokeWidth);
 
+		// no fonts outside of Android, see Platform
 		Typeface typeface = null;
-		if (fontFamily == FontFamily.DEFAULT) {
-			if (fontStyle == FontStyle.NORMAL)
-				typeface = typefaceNormal;
-			else if (fontStyle == FontStyle.BOLD)
-				typeface = typefaceBold;
-		}
+		if (Platform.isAndroid()) {
+			if (fontFamily == FontFamily.DEFAULT) {
+				if (fontStyle == FontStyle.NORMAL)
+					typeface = typefaceNormal;
+				else if (fontStyle == FontStyle.BOLD)
+					typeface = typefaceBold;
+			}
 
-		if (typeface == null)
-			typeface = Typeface.create(fontFamily.toTypeface(), fontStyle.toInt());
+			if (typeface == null)
+				typeface = Typeface.create(fontFamily.toTypeface(), fontStyle.toInt());
+		}
 
 		return new Text(style, textKey, typeface, fontSize, fill, stroke, strokeWidth, dy, caption);
 	}
 
-	private static Typeface typefaceNormal = Typeface.create(FontFamily.DEFAULT.toTypeface(),
-			FontStyle.NORMAL.toInt());
+	private static Typeface typefaceNormal = Platform.isAndroid() ?
+			Typeface.create(FontFamily.DEFAULT.toTypeface(), FontStyle.NORMAL.toInt()) : null;
+
+	private static Typeface typefaceBold = Platform.isAndroid() ?
+			Typeface.create(FontFamily.DEFAULT.toTypeface(), FontStyle.BOLD.toInt()) : null;
 
-	private static Typeface typefaceBold = Typeface.create(FontFamily.DEFAULT.toTypeface(),
-			FontStyle.BOLD.toInt());
+	// estimated font metrics relative to font size, when there is no Paint
+	private static final float EST_CHAR_WIDTH = 0.55f;
+	private static final float EST_HEIGHT = 1.17f;
+	private static final float EST_DESCENT = 0.25f;
 
 	private static void validate(String elementName, String textKey, float fontSize,
 			float strokeWidth) {
@@ -142,6 +150,15 @@ public final class Text extends RenderInstruction {
 		this.textKey = textKey;
 		this.caption = caption;
 		this.dy = dy;
+		this.fontSize = fontSize;
+
+		if (!Platform.isAndroid()) {
+			paint = null;
+			stroke = null;
+			fontHeight = (float) Math.ceil(fontSize * EST_HEIGHT);
+			fontDescent = (float) Math.ceil(fontSize * EST_DESCENT);
+			return;
+		}
 
 		paint = new Paint(Paint.ANTI_ALIAS_FLAG);
 		paint.setTextAlign(Align.CENTER);
@@ -160,11 +177,21 @@ public final class Text extends RenderInstruction {
 		} else
 			stroke = null;
 
-		this.fontSize = fontSize;
-
 		FontMetrics fm = paint.getFontMetrics();
-		fontHeight = FloatMath.ceil(Math.abs(fm.bottom) + Math.abs(fm.top));
-		fontDescent = FloatMath.ceil(Math.abs(fm.descent));
+		fontHeight = (float) Math.ceil(Math.abs(fm.bottom) + Math.abs(fm.top));
+		fontDescent = (float) Math.ceil(Math.abs(fm.descent));
+	}
+
+	/**
+	 * @param text
+	 *            the text
+	 * @return width of text, estimated when there is no Paint.
+	 */
+	public float measureText(String text) {
+		if (paint == null)
+			return fontSize * EST_CHAR_WIDTH * text.length();
+
+		return paint.measureText(text);
 	}
 
 	@Override
@@ -183,6 +210,9 @@ public final class Text extends RenderInstruction {
 
 	@Override
 	public void scaleTextSize(float scaleFactor) {
+		if (paint == null)
+			return;
+
 		paint.setTextSize(fontSize * scaleFactor);
 		stroke.setTextSize(fontSize * scaleFactor);
 	}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds which can be updated from several
+ * threads without locking. Buckets are powers of two, each split into four
+ * sub-buckets, so that percentiles are accurate within 25%.
+ */
+public final class Histogram {
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// up to 2^40ns, about 18 minutes
+	private static final int MAX_EXP = 40;
+	private static final int BUCKETS = (MAX_EXP + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		if (exp > MAX_EXP)
+			return BUCKETS - 1;
+
+		// next bits after the highest one
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	// upper bound of values in bucket
+	private static long bucketLimit(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exp = (bucket >> SUB_BITS) + SUB_BITS - 1;
+		int sub = bucket & (SUB_BUCKETS - 1);
+
+		return (1L << exp) + ((sub + 1L) << (exp - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * @param nanos
+	 *            duration to add, negative values are ignored
+	 */
+	public void add(long nanos) {
+		if (nanos < 0)
+			return;
+
+		mBuckets.incrementAndGet(bucket(nanos));
+		mCount.incrementAndGet();
+		mSum.addAndGet(nanos);
+
+		for (long max = mMax.get(); nanos > max; max = mMax.get())
+			if (mMax.compareAndSet(max, nanos))
+				break;
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	/**
+	 * @return sum of all durations in nanoseconds
+	 */
+	public long getSum() {
+		return mSum.get();
+	}
+
+	/**
+	 * @return mean duration in nanoseconds
+	 */
+	public long getMean() {
+		long count = mCount.get();
+		return count == 0 ? 0 : mSum.get() / count;
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * @param p
+	 *            percentile, 0 - 100
+	 * @return upper bound of the bucket containing the percentile in
+	 *         nanoseconds.
+	 */
+	public long getPercentile(float p) {
+		// counts may be incremented meanwhile, use sum of buckets
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += mBuckets.get(i);
+
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(total * Math.min(p, 100) / 100.0);
+		if (rank < 1)
+			rank = 1;
+
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += mBuckets.get(i);
+			if (count >= rank)
+				return Math.min(bucketLimit(i), mMax.get());
+		}
+		return mMax.get();
+	}
+
+	/**
+	 * Clear all values. Concurrent updates may be partially lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			mBuckets.set(i, 0);
+
+		mCount.set(0);
+		mSum.set(0);
+		mMax.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "n:" + getCount()
+				+ " mean:" + getMean() / 1000
+				+ " p50:" + getPercentile(50) / 1000
+				+ " p90:" + getPercentile(90) / 1000
+				+ " p99:" + getPercentile(99) / 1000
+				+ " max:" + getMax() / 1000 + " [us]";
+	}
+}
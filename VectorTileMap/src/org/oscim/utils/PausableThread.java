@@ -59,7 +59,7 @@ public abstract class PausableThread extends Thread {
 		if (!mShouldPause) {
 			mShouldPause = true;
 			takeabreak();
-			notify();
+			notifyAll();
 		}
 	}
 
@@ -71,7 +71,7 @@ public abstract class PausableThread extends Thread {
 			mShouldPause = false;
 			mPausing = false;
 			afterPause();
-			notify();
+			notifyAll();
 		}
 	}
 
@@ -84,8 +84,10 @@ public abstract class PausableThread extends Thread {
 			synchronized (this) {
 				while (!isInterrupted() && (mShouldPause || !hasWork())) {
 					try {
-						if (mShouldPause) {
+						if (mShouldPause && !mPausing) {
 							mPausing = true;
+							// wake up threads in awaitPausing()
+							notifyAll();
 						}
 						wait();
 					} catch (InterruptedException e) {
@@ -93,6 +95,7 @@ public abstract class PausableThread extends Thread {
 						interrupt();
 					}
 				}
+				mPausing = false;
 			}
 
 			if (isInterrupted()) {
@@ -35,7 +35,8 @@ import org.oscim.database.MapInfo;
 import org.oscim.database.OpenResult;
 import org.oscim.generator.JobQueue;
 import org.oscim.generator.JobTile;
-import org.oscim.generator.MapWorker;
+import org.oscim.generator.ITileExecutor;
+import org.oscim.generator.TileExecutor;
 import org.oscim.overlay.LabelingOverlay;
 import org.oscim.overlay.Overlay;
 import org.oscim.overlay.OverlayManager;
@@ -91,9 +92,7 @@ public class MapView extends RelativeLayout {
 	private final GLView mGLView;
 	private final JobQueue mJobQueue;
 
-	// TODO use 1 download and 1 generator thread instead
-	private final MapWorker mMapWorkers[];
-	private final int mNumMapWorkers = 4;
+	private final ITileExecutor mTileExecutor;
 
 	private DebugSettings debugSettings;
 	private String mRenderTheme;
@@ -165,28 +164,14 @@ public class MapView extends RelativeLayout {
 
 		mGLView = new GLView(context, this);
 
-		mMapWorkers = new MapWorker[mNumMapWorkers];
-
-		for (int i = 0; i < mNumMapWorkers; i++) {
-			IMapDatabase mapDatabase;
-			if (debugDatabase) {
-				// mapDatabase = MapDatabaseFactory
-				// .createMapDatabase(MapDatabases.TEST_READER);
-				mapDatabase = MapDatabaseFactory
-						.createMapDatabase(MapDatabases.MAP_READER);
-				// mNumMapWorkers = 1;
-			} else {
-				mapDatabase = MapDatabaseFactory.createMapDatabase(mapDatabaseType);
-			}
-
-			TileGenerator tileGenerator = new TileGenerator(this);
-			tileGenerator.setMapDatabase(mapDatabase);
+		mTileExecutor = new TileExecutor(this, mJobQueue, mTileManager);
 
-			if (i == 0)
-				mMapDatabase = mapDatabase;
+		if (debugDatabase)
+			mTileExecutor.setMapDatabase(MapDatabases.MAP_READER);
+		else
+			mTileExecutor.setMapDatabase(mapDatabaseType);
 
-			mMapWorkers[i] = new MapWorker(i, mJobQueue, tileGenerator, mTileManager);
-		}
+		mMapDatabase = mTileExecutor.getMapDatabase(0);
 
 		mapActivity.registerMapView(this);
 
@@ -213,8 +198,7 @@ public class MapView extends RelativeLayout {
 
 		enableRotation = true;
 
-		for (MapWorker worker : mMapWorkers)
-			worker.start();
+		mTileExecutor.start();
 
 		mOverlayManager.add(new LabelingOverlay(this));
 		//mOverlayManager.add(new GenericOverlay(this, new OverlayGrid(this)));
@@ -330,6 +314,8 @@ public class MapView extends RelativeLayout {
 	 */
 	public void setDebugSettings(DebugSettings debugSettings) {
 		this.debugSettings = debugSettings;
+		if (mTileExecutor != null)
+			mTileExecutor.setDebugSettings(debugSettings);
 		clearAndRedrawMap();
 	}
 
@@ -358,13 +344,11 @@ public class MapView extends RelativeLayout {
 		mJobQueue.clear();
 		mapWorkersPause(true);
 
-		for (MapWorker mapWorker : mMapWorkers) {
-
-			TileGenerator tileGenerator = mapWorker.getMapGenerator();
-			IMapDatabase mapDatabase = tileGenerator.getMapDatabase();
+		for (int i = 0, n = mTileExecutor.getWorkerCount(); i < n; i++) {
+			IMapDatabase mapDatabase = mTileExecutor.getMapDatabase(i);
 
 			mapDatabase.close();
-			openResult = mapDatabase.open(null);
+			openResult = mapDatabase.open(mapOptions);
 
 			if (openResult.isSuccess())
 				initialized = true;
@@ -426,12 +410,8 @@ public class MapView extends RelativeLayout {
 		mMapDatabaseType = mapDatabaseType;
 		mapWorkersPause(true);
 
-		for (MapWorker mapWorker : mMapWorkers) {
-			TileGenerator tileGenerator = mapWorker.getMapGenerator();
-
-			tileGenerator.setMapDatabase(MapDatabaseFactory
-					.createMapDatabase(mapDatabaseType));
-		}
+		mTileExecutor.setMapDatabase(mapDatabaseType);
+		mMapDatabase = mTileExecutor.getMapDatabase(0);
 
 		mJobQueue.clear();
 		mClearTiles = true;
@@ -546,19 +526,7 @@ public class MapView extends RelativeLayout {
 	//	}
 
 	void destroy() {
-		for (MapWorker mapWorker : mMapWorkers) {
-			mapWorker.pause();
-			mapWorker.interrupt();
-
-			try {
-				mapWorker.join();
-			} catch (InterruptedException e) {
-				// restore the interrupted status
-				Thread.currentThread().interrupt();
-			}
-			IMapDatabase mapDatabase = mapWorker.getMapGenerator().getMapDatabase();
-			mapDatabase.close();
-		}
+		mTileExecutor.destroy();
 	}
 
 	private boolean mPausing = false;
@@ -567,7 +535,7 @@ public class MapView extends RelativeLayout {
 		mPausing = true;
 
 		Log.d(TAG, "onPause");
-		mJobQueue.clear();
+		mTileExecutor.cancel();
 		mapWorkersPause(true);
 
 		if (this.enableCompass)
@@ -659,9 +627,10 @@ public class MapView extends RelativeLayout {
 	}
 
 	/**
-	 * add jobs and remember MapWorkers that stuff needs to be done
+	 * set jobs and remember MapWorkers that stuff needs to be done
 	 * @param jobs
-	 *            tile jobs
+	 *            tile jobs, queued jobs not in this list are removed. null
+	 *            to clear the queue.
 	 */
 	public void addJobs(ArrayList<JobTile> jobs) {
 		if (jobs == null) {
@@ -670,30 +639,18 @@ public class MapView extends RelativeLayout {
 		}
 		mJobQueue.setJobs(jobs);
 
-		for (int i = 0; i < mNumMapWorkers; i++) {
-			MapWorker m = mMapWorkers[i];
-			synchronized (m) {
-				m.notify();
-			}
-		}
+		if (jobs.isEmpty())
+			return;
+
+		mTileExecutor.notifyWorkers();
 	}
 
 	private void mapWorkersPause(boolean wait) {
-		for (MapWorker mapWorker : mMapWorkers) {
-			if (!mapWorker.isPausing())
-				mapWorker.pause();
-		}
-		if (wait) {
-			for (MapWorker mapWorker : mMapWorkers) {
-				if (!mapWorker.isPausing())
-					mapWorker.awaitPausing();
-			}
-		}
+		mTileExecutor.pause(wait);
 	}
 
 	private void mapWorkersProceed() {
-		for (MapWorker mapWorker : mMapWorkers)
-			mapWorker.proceed();
+		mTileExecutor.proceed();
 	}
 
 	/**
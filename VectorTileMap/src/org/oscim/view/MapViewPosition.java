@@ -34,6 +34,11 @@ import android.util.Log;
 /**
  * A MapPosition stores the latitude and longitude coordinate of a MapView
  * together with its zoom level, rotation and tilt
+ * <p>
+ * Methods changing the position are synchronized and publish an immutable
+ * Snapshot of position and matrices when done. Getters read the current
+ * Snapshot without locking, so that GLRenderer and the labeling thread do
+ * not wait for input events and always see a consistent state.
  */
 
 public class MapViewPosition {
@@ -74,6 +79,101 @@ public class MapViewPosition {
 		mMapScale = 1;
 
 		mHandler = new AnimationHandler(this);
+
+		publish();
+	}
+
+	private static final class Snapshot {
+		final double lat;
+		final double lon;
+		final byte zoomLevel;
+		final float scale;
+		final float rotation;
+		final float tilt;
+
+		// pixel position at zoomLevel
+		final double x;
+		final double y;
+
+		final int width;
+		final int height;
+
+		final float[] viewMatrix = new float[16];
+		// projection * view
+		final float[] mvp = new float[16];
+		final float[] unprojMatrix = new float[16];
+
+		// end of running animation
+		final boolean animating;
+		final double endX;
+		final double endY;
+		final byte endZoom;
+
+		Snapshot(MapViewPosition p) {
+			lat = p.mLatitude;
+			lon = p.mLongitude;
+			zoomLevel = p.mZoomLevel;
+			scale = p.mScale;
+			rotation = p.mRotation;
+			tilt = p.mTilt;
+			x = p.mPosX;
+			y = p.mPosY;
+			width = mWidth;
+			height = mHeight;
+
+			System.arraycopy(p.mViewMatrix, 0, viewMatrix, 0, 16);
+			System.arraycopy(p.mUnprojMatrix, 0, unprojMatrix, 0, 16);
+			Matrix.multiplyMM(mvp, 0, p.mProjMatrix, 0, p.mViewMatrix, 0);
+
+			animating = p.mAnimating;
+			endX = p.mEndX;
+			endY = p.mEndY;
+			endZoom = p.mEndZoom;
+		}
+
+		/* get the depth-value of the map for the current tilt, approximately.
+		 * needed to un-project a point on screen to the position on the map.
+		 * not so sure about this, but at least somehow works. */
+		float getZ(float y) {
+			return FloatMath.sin((float) Math.toRadians(tilt))
+					// * 2.2f // for dist = 1
+					* 1.3f // for dist = 2
+					// * 0.8f // for dist = 4
+					* ((float) height / width) * y;
+		}
+
+		void unproject(float x, float y, float z, float[] coords, int position) {
+			float[] m = unprojMatrix;
+			z -= 1f;
+
+			// m * (x, y, z, 1)
+			float w = m[3] * x + m[7] * y + m[11] * z + m[15];
+
+			if (w != 0) {
+				coords[position] = (m[0] * x + m[4] * y + m[8] * z + m[12]) / w;
+				coords[position + 1] = (m[1] * x + m[5] * y + m[9] * z + m[13]) / w;
+			} else {
+				// else what?
+				Log.d(TAG, "uproject failed");
+			}
+		}
+
+		boolean isValid() {
+			return !(Double.isNaN(lat)
+					|| lat < MercatorProjection.LATITUDE_MIN
+					|| lat > MercatorProjection.LATITUDE_MAX
+					|| Double.isNaN(lon)
+					|| lon < MercatorProjection.LONGITUDE_MIN
+					|| lon > MercatorProjection.LONGITUDE_MAX);
+		}
+	}
+
+	// current state for readers, replaced by publish()
+	private volatile Snapshot mSnapshot;
+
+	// create a new Snapshot, to be called by writers when done
+	private void publish() {
+		mSnapshot = new Snapshot(this);
 	}
 
 	private float[] mProjMatrix = new float[16];
@@ -89,7 +189,7 @@ public class MapViewPosition {
 	public final static float VIEW_NEAR = VIEW_DISTANCE;
 	public final static float VIEW_FAR = VIEW_DISTANCE * 2;
 
-	void setViewport(int width, int height) {
+	synchronized void setViewport(int width, int height) {
 		float sw = VIEW_SCALE;
 		float sh = VIEW_SCALE;
 		float aspect = height / (float) width;
@@ -107,98 +207,108 @@ public class MapViewPosition {
 		mWidth = width;
 
 		updateMatrix();
+		publish();
 	}
 
-	public synchronized boolean getMapPosition(final MapPosition mapPosition,
+	/**
+	 * Get the current position, does not block.
+	 * @param mapPosition
+	 *            receives the position, also used to check whether the
+	 *            position changed.
+	 * @param coords
+	 *            receives the visible box in map pixel units relative to
+	 *            the center, may be null
+	 * @return true if the position changed since mapPosition was updated
+	 */
+	public boolean getMapPosition(final MapPosition mapPosition,
 			final float[] coords) {
-		// if (!isValid())
-		// return false;
-
-		if (mapPosition.lat == mLatitude
-				&& mapPosition.lon == mLongitude
-				&& mapPosition.zoomLevel == mZoomLevel
-				&& mapPosition.scale == mScale
-				&& mapPosition.angle == mRotation
-				&& mapPosition.tilt == mTilt)
+		Snapshot s = mSnapshot;
+
+		if (mapPosition.lat == s.lat
+				&& mapPosition.lon == s.lon
+				&& mapPosition.zoomLevel == s.zoomLevel
+				&& mapPosition.scale == s.scale
+				&& mapPosition.angle == s.rotation
+				&& mapPosition.tilt == s.tilt)
 			return false;
 
-		byte z = mZoomLevel;
-
-		mapPosition.lat = mLatitude;
-		mapPosition.lon = mLongitude;
-		mapPosition.angle = mRotation;
-		mapPosition.tilt = mTilt;
-		mapPosition.scale = mScale;
-		mapPosition.zoomLevel = z;
+		mapPosition.lat = s.lat;
+		mapPosition.lon = s.lon;
+		mapPosition.angle = s.rotation;
+		mapPosition.tilt = s.tilt;
+		mapPosition.scale = s.scale;
+		mapPosition.zoomLevel = s.zoomLevel;
 
-		mapPosition.x = mPosX;
-		mapPosition.y = mPosY;
+		mapPosition.x = s.x;
+		mapPosition.y = s.y;
 
 		if (mapPosition.viewMatrix != null)
-			System.arraycopy(mViewMatrix, 0, mapPosition.viewMatrix, 0, 16);
+			System.arraycopy(s.viewMatrix, 0, mapPosition.viewMatrix, 0, 16);
 
 		if (coords == null)
 			return true;
 
-		float tilt = getZ(1);
+		float tilt = s.getZ(1);
 
-		unproject(-1, 1, tilt, coords, 0); // bottom-left
-		unproject(1, 1, tilt, coords, 2); // bottom-right
-		unproject(1, -1, -tilt, coords, 4); // top-right
-		unproject(-1, -1, -tilt, coords, 6); // top-left
+		s.unproject(-1, 1, tilt, coords, 0); // bottom-left
+		s.unproject(1, 1, tilt, coords, 2); // bottom-right
+		s.unproject(1, -1, -tilt, coords, 4); // top-right
+		s.unproject(-1, -1, -tilt, coords, 6); // top-left
 
 		return true;
 	}
 
 	/** @return the current center point of the MapView. */
-	public synchronized GeoPoint getMapCenter() {
-		return new GeoPoint(mLatitude, mLongitude);
+	public GeoPoint getMapCenter() {
+		Snapshot s = mSnapshot;
+		return new GeoPoint(s.lat, s.lon);
 	}
 
 	/**
 	 * @return a MapPosition or null, if this map position is not valid.
 	 * @see #isValid()
 	 */
-	public synchronized MapPosition getMapPosition() {
-		if (!isValid()) {
+	public MapPosition getMapPosition() {
+		Snapshot s = mSnapshot;
+		if (!s.isValid()) {
 			return null;
 		}
 
-		return new MapPosition(mLatitude, mLongitude, mZoomLevel, mScale, mRotation);
+		return new MapPosition(s.lat, s.lon, s.zoomLevel, s.scale, s.rotation);
 	}
 
 	/** @return the current zoom level of the MapView. */
-	public synchronized byte getZoomLevel() {
-		return mZoomLevel;
+	public byte getZoomLevel() {
+		return mSnapshot.zoomLevel;
 	}
 
 	/** @return the current scale of the MapView. */
-	public synchronized float getScale() {
-		return mScale;
+	public float getScale() {
+		return mSnapshot.scale;
 	}
 
 	/**
 	 * ...
 	 * @return BoundingBox containing view
 	 */
-	public synchronized BoundingBox getViewBox() {
-
-		float[] coords = mBBoxCoords;
+	public BoundingBox getViewBox() {
+		Snapshot s = mSnapshot;
+		float[] coords = new float[8];
 
-		float tilt = getZ(1);
-		unproject(-1, 1, -tilt, coords, 0); // top-left
-		unproject(1, 1, -tilt, coords, 2); 	// top-right
-		unproject(1, -1, tilt, coords, 4); 	// bottom-right
-		unproject(-1, -1, tilt, coords, 6); // bottom-left
+		float tilt = s.getZ(1);
+		s.unproject(-1, 1, -tilt, coords, 0); // top-left
+		s.unproject(1, 1, -tilt, coords, 2); 	// top-right
+		s.unproject(1, -1, tilt, coords, 4); 	// bottom-right
+		s.unproject(-1, -1, tilt, coords, 6); // bottom-left
 
-		byte z = mZoomLevel;
+		byte z = s.zoomLevel;
 		double dx, dy;
 		double minLat = 0, minLon = 0, maxLat = 0, maxLon = 0, lon, lat;
 
 		for (int i = 0; i < 8; i += 2) {
 
-			dx = mPosX - coords[i + 0] / mScale;
-			dy = mPosY - coords[i + 1] / mScale;
+			dx = s.x - coords[i + 0] / s.scale;
+			dy = s.y - coords[i + 1] / s.scale;
 
 			lon = MercatorProjection.pixelXToLongitude(dx, z);
 			lat = MercatorProjection.pixelYToLatitude(dy, z);
@@ -221,21 +331,6 @@ public class MapViewPosition {
 		return new BoundingBox(minLat, minLon, maxLat, maxLon);
 	}
 
-	private float[] mv = { 0, 0, 0, 1 };
-	private float[] mu = { 0, 0, 0, 1 };
-	private float[] mBBoxCoords = new float[8];
-
-	/* get the depth-value of the map for the current tilt, approximately.
-	 * needed to un-project a point on screen to the position on the map. not
-	 * so sure about this, but at least somehow works. */
-	private float getZ(float y) {
-		return FloatMath.sin((float) Math.toRadians(mTilt))
-				// * 2.2f // for dist = 1
-				* 1.3f // for dist = 2
-				// * 0.8f // for dist = 4
-				* ((float) mHeight / mWidth) * y;
-	}
-
 	/**
 	 * for x,y in screen coordinates get the point on the map in map-tile
 	 * coordinates
@@ -244,16 +339,18 @@ public class MapViewPosition {
 	 * @param reuse ...
 	 * @return ...
 	 */
-	public synchronized Point getScreenPointOnMap(float x, float y, Point reuse) {
+	public Point getScreenPointOnMap(float x, float y, Point reuse) {
+		Snapshot s = mSnapshot;
 		Point out = reuse == null ? new Point() : reuse;
+		float[] mu = new float[2];
 
-		float mx = ((mWidth / 2) - x) / (mWidth / 2);
-		float my = ((mHeight / 2) - y) / (mHeight / 2);
+		float mx = ((s.width / 2) - x) / (s.width / 2);
+		float my = ((s.height / 2) - y) / (s.height / 2);
 
-		unproject(-mx, my, getZ(my), mu, 0);
+		s.unproject(-mx, my, s.getZ(my), mu, 0);
 
-		out.x = (int) (mPosX + mu[0] / mScale);
-		out.y = (int) (mPosY + mu[1] / mScale);
+		out.x = (int) (s.x + mu[0] / s.scale);
+		out.y = (int) (s.y + mu[1] / s.scale);
 
 		return out;
 	}
@@ -264,18 +361,21 @@ public class MapViewPosition {
 	 * @param y screen pixel y
 	 * @return the corresponding GeoPoint
 	 */
-	public synchronized GeoPoint fromScreenPixels(float x, float y) {
-		float mx = ((mWidth / 2) - x) / (mWidth / 2);
-		float my = ((mHeight / 2) - y) / (mHeight / 2);
+	public GeoPoint fromScreenPixels(float x, float y) {
+		Snapshot s = mSnapshot;
+		float[] mu = new float[2];
 
-		unproject(-mx, my, getZ(my), mu, 0);
+		float mx = ((s.width / 2) - x) / (s.width / 2);
+		float my = ((s.height / 2) - y) / (s.height / 2);
 
-		double dx = mPosX + mu[0] / mScale;
-		double dy = mPosY + mu[1] / mScale;
+		s.unproject(-mx, my, s.getZ(my), mu, 0);
+
+		double dx = s.x + mu[0] / s.scale;
+		double dy = s.y + mu[1] / s.scale;
 
 		GeoPoint p = new GeoPoint(
-				MercatorProjection.pixelYToLatitude(dy, mZoomLevel),
-				MercatorProjection.pixelXToLongitude(dx, mZoomLevel));
+				MercatorProjection.pixelYToLatitude(dy, s.zoomLevel),
+				MercatorProjection.pixelXToLongitude(dx, s.zoomLevel));
 
 		//	Log.d(">>>", "fromScreenPixels " + p);
 
@@ -288,32 +388,32 @@ public class MapViewPosition {
 	 * @param reuse ...
 	 * @return ...
 	 */
-	public synchronized Point project(GeoPoint geoPoint, Point reuse) {
+	public Point project(GeoPoint geoPoint, Point reuse) {
+		Snapshot s = mSnapshot;
 		Point out = reuse == null ? new Point() : reuse;
 
 		double x = MercatorProjection.longitudeToPixelX(geoPoint.getLongitude(),
-				mZoomLevel);
+				s.zoomLevel);
 		double y = MercatorProjection.latitudeToPixelY(geoPoint.getLatitude(),
-				mZoomLevel);
+				s.zoomLevel);
 
-		mv[0] = (float) (x - mPosX) * mScale;
-		mv[1] = (float) (y - mPosY) * mScale;
-		mv[2] = 0;
-		mv[3] = 1;
+		float vx = (float) (x - s.x) * s.scale;
+		float vy = (float) (y - s.y) * s.scale;
 
-		Matrix.multiplyMV(mv, 0, mViewMatrix, 0, mv, 0);
-		Matrix.multiplyMV(mv, 0, mProjMatrix, 0, mv, 0);
+		// mvp * (vx, vy, 0, 1)
+		float[] m = s.mvp;
+		float w = m[3] * vx + m[7] * vy + m[15];
 
-		out.x = (int) (mv[0] / mv[3] * mWidth / 2);
-		out.y = (int) (mv[1] / mv[3] * mHeight / 2);
+		out.x = (int) ((m[0] * vx + m[4] * vy + m[12]) / w * s.width / 2);
+		out.y = (int) ((m[1] * vx + m[5] * vy + m[13]) / w * s.height / 2);
 
 		//	Log.d(">>>", "project: " + out.x + " " + out.y);
 
 		return out;
 	}
 
-	public synchronized void getMVP(float[] matrix) {
-		Matrix.multiplyMM(matrix, 0, mProjMatrix, 0, mViewMatrix, 0);
+	public void getMVP(float[] matrix) {
+		System.arraycopy(mSnapshot.mvp, 0, matrix, 0, 16);
 	}
 
 	//	public static Point project(float x, float y, float[] matrix, float[] tmpVec, Point reuse) {
@@ -332,23 +432,6 @@ public class MapViewPosition {
 	//		return out;
 	//	}
 
-	private void unproject(float x, float y, float z, float[] coords, int position) {
-		mv[0] = x;
-		mv[1] = y;
-		mv[2] = z - 1f;
-		mv[3] = 1;
-
-		Matrix.multiplyMV(mv, 0, mUnprojMatrix, 0, mv, 0);
-
-		if (mv[3] != 0) {
-			coords[position] = mv[0] / mv[3];
-			coords[position + 1] = mv[1] / mv[3];
-		} else {
-			// else what?
-			Log.d(TAG, "uproject failed");
-		}
-	}
-
 	private void updateMatrix() {
 		// - view matrix
 		// 1. scale to window coordinates
@@ -398,24 +481,8 @@ public class MapViewPosition {
 	}
 
 	/** @return true if this MapViewPosition is valid, false otherwise. */
-	public synchronized boolean isValid() {
-		if (Double.isNaN(mLatitude)) {
-			return false;
-		} else if (mLatitude < MercatorProjection.LATITUDE_MIN) {
-			return false;
-		} else if (mLatitude > MercatorProjection.LATITUDE_MAX) {
-			return false;
-		}
-
-		if (Double.isNaN(mLongitude)) {
-			return false;
-		} else if (mLongitude < MercatorProjection.LONGITUDE_MIN) {
-			return false;
-		} else if (mLongitude > MercatorProjection.LONGITUDE_MAX) {
-			return false;
-		}
-
-		return true;
+	public boolean isValid() {
+		return mSnapshot.isValid();
 	}
 
 	/**
@@ -424,7 +491,11 @@ public class MapViewPosition {
 	 * @param my the amount of pixels to move the map vertically.
 	 */
 	public synchronized void moveMap(float mx, float my) {
+		move(mx, my);
+		publish();
+	}
 
+	private void move(float mx, float my) {
 		double dx = mx / mScale;
 		double dy = my / mScale;
 
@@ -483,9 +554,10 @@ public class MapViewPosition {
 		}
 
 		if (pivotX != 0 || pivotY != 0)
-			moveMap(pivotX * (1.0f - scale),
+			move(pivotX * (1.0f - scale),
 					pivotY * (1.0f - scale));
 
+		publish();
 		return true;
 	}
 
@@ -496,15 +568,17 @@ public class MapViewPosition {
 	 * @param cy ...
 	 */
 	public synchronized void rotateMap(float angle, float cx, float cy) {
-		moveMap(cx, cy);
+		move(cx, cy);
 		mRotation += angle;
 
 		updateMatrix();
+		publish();
 	}
 
 	public synchronized void setRotation(float f) {
 		mRotation = f;
 		updateMatrix();
+		publish();
 	}
 
 	public synchronized boolean tilt(float move) {
@@ -524,6 +598,7 @@ public class MapViewPosition {
 	public synchronized void setTilt(float f) {
 		mTilt = f;
 		updateMatrix();
+		publish();
 	}
 
 	private void setMapCenter(double latitude, double longitude) {
@@ -534,22 +609,26 @@ public class MapViewPosition {
 
 	synchronized void setMapCenter(GeoPoint geoPoint) {
 		setMapCenter(geoPoint.getLatitude(), geoPoint.getLongitude());
+		publish();
 	}
 
 	synchronized void setMapCenter(MapPosition mapPosition) {
 		mZoomLevel = mMapView.limitZoomLevel(mapPosition.zoomLevel);
 		mMapScale = 1 << mZoomLevel;
 		setMapCenter(mapPosition.lat, mapPosition.lon);
+		publish();
 	}
 
 	synchronized void setZoomLevel(byte zoomLevel) {
 		mZoomLevel = mMapView.limitZoomLevel(zoomLevel);
 		mMapScale = 1 << mZoomLevel;
 		updatePosition();
+		publish();
 	}
 
 	synchronized void setScale(float scale) {
 		mScale = scale;
+		publish();
 	}
 
 	private void updatePosition() {
@@ -563,6 +642,8 @@ public class MapViewPosition {
 	private double mEndY;
 	private float mDuration = 500;
 	private Point mTmpPoint;
+	private byte mEndZoom;
+	private boolean mAnimating;
 
 	public synchronized void animateTo(GeoPoint geoPoint) {
 		MercatorProjection.projectPoint(geoPoint, mZoomLevel, mTmpPoint);
@@ -571,8 +652,11 @@ public class MapViewPosition {
 		mEndY = MercatorProjection.latitudeToPixelY(geoPoint.getLatitude(), mZoomLevel);
 		mStartX = mPosX;
 		mStartY = mPosY;
+		mEndZoom = mZoomLevel;
+		mAnimating = true;
 
 		mDuration = 300;
+		publish();
 		mHandler.start((int) mDuration);
 	}
 
@@ -585,6 +669,7 @@ public class MapViewPosition {
 		mLongitude = MercatorProjection.wrapLongitude(mLongitude);
 
 		updatePosition();
+		publish();
 	}
 
 	void onTick(long millisLeft) {
@@ -596,10 +681,30 @@ public class MapViewPosition {
 	}
 
 	void onFinish() {
-		setMapPosition(mEndX, mEndY);
+		synchronized (this) {
+			mAnimating = false;
+			setMapPosition(mEndX, mEndY);
+		}
 		mMapView.redrawMap();
 	}
 
+	/**
+	 * @param out
+	 *            receives pixel position and zoom-level where the running
+	 *            animation will end
+	 * @return true if an animation is running
+	 */
+	public boolean getAnimationEnd(MapPosition out) {
+		Snapshot s = mSnapshot;
+		if (!s.animating)
+			return false;
+
+		out.x = s.endX;
+		out.y = s.endY;
+		out.zoomLevel = s.endZoom;
+		return true;
+	}
+
 	static class AnimationHandler extends Handler {
 		private final WeakReference<MapViewPosition> mMapViewPosition;
 		private static final int MSG = 1;
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.oscim.core.Tag;
+import org.oscim.core.Tile;
+
+/**
+ * Elements of a synthetic tile larger than the 64kB read buffer of the
+ * oscimap and pbmap decoders, and a callback that checks the decoded
+ * coordinates. The tiles are built by the tests of each decoder:
+ * <ul>
+ * <li>a line without index, which is skipped, of SKIPPED coordinates</li>
+ * <li>a polygon of RINGS rings with POINTS points each, about 5MB</li>
+ * <li>a line of the two points of LINE</li>
+ * </ul>
+ */
+public class LargeElements {
+	public static final int RINGS = 150;
+	public static final int POINTS = 10000;
+	public static final int SKIPPED = 2000000;
+	public static final int[] LINE = { 1, 2, 3, 4 };
+
+	// coordinates are scaled from 4096 units per tile
+	private static final float SCALE = 4096.0f / Tile.TILE_SIZE;
+
+	/**
+	 * @return delta encoded coordinates of 'count' values
+	 */
+	public static int[] coordinates(int count) {
+		int[] coords = new int[count];
+		for (int i = 0; i < count; i++)
+			coords[i] = (i % 7) * 300 - 900;
+		return coords;
+	}
+
+	/**
+	 * @return number of points of each ring of the polygon
+	 */
+	public static int[] rings() {
+		int[] index = new int[RINGS];
+		Arrays.fill(index, POINTS);
+		return index;
+	}
+
+	/**
+	 * Checks the decoded polygon and line, ignores other elements.
+	 */
+	public static class Callback implements IMapDatabaseCallback {
+		public int polygons;
+		public int lines;
+		public int wrong;
+
+		private final boolean mFlipY;
+
+		/**
+		 * @param flipY
+		 *            the decoder returns y as Tile.TILE_SIZE - y
+		 */
+		public Callback(boolean flipY) {
+			mFlipY = flipY;
+		}
+
+		private int check(float[] coords, short[] index, int[] deltas) {
+			int n = 0;
+			for (int i = 0; i < index.length && index[i] >= 0; i++)
+				n += index[i];
+
+			if (n != deltas.length)
+				return 1;
+
+			int wrong = 0;
+			int x = 0, y = 0;
+			for (int i = 0; i < n; i += 2) {
+				x += deltas[i];
+				y += deltas[i + 1];
+				float ey = (mFlipY ? Tile.TILE_SIZE - y / SCALE : y / SCALE);
+				if (coords[i] != x / SCALE || coords[i + 1] != ey)
+					wrong++;
+			}
+			return wrong;
+		}
+
+		@Override
+		public void renderWay(byte layer, Tag[] tags, float[] wayNodes,
+				short[] wayLength, boolean closed) {
+			if (wayLength == null)
+				return;
+
+			if (closed) {
+				polygons++;
+				wrong += check(wayNodes, wayLength, coordinates(RINGS * POINTS * 2));
+			} else if (wayLength[0] == LINE.length) {
+				lines++;
+				wrong += check(wayNodes, wayLength, LINE);
+			}
+		}
+
+		@Override
+		public void renderPointOfInterest(byte layer, Tag[] tags, float latitude,
+				float longitude) {
+		}
+
+		@Override
+		public void renderWaterBackground() {
+		}
+
+		@Override
+		public boolean checkWay(Tag[] tags, boolean closed) {
+			return true;
+		}
+
+		@Override
+		public BitSet getTagFilter(Tag[] tags, boolean way, boolean captions) {
+			return null;
+		}
+
+		/**
+		 * @throws AssertionError
+		 *             unless the polygon and the line were decoded once with
+		 *             the expected coordinates.
+		 */
+		public void verify(boolean decoded) {
+			if (!decoded || polygons != 1 || lines != 1 || wrong != 0)
+				throw new AssertionError("decoded " + decoded + ", polygons "
+						+ polygons + ", lines " + lines + ", wrong " + wrong);
+		}
+	}
+}
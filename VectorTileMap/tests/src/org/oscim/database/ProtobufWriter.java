@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Writes protocol buffer fields to build synthetic tiles for the tests of
+ * the oscimap and pbmap decoders.
+ */
+public class ProtobufWriter {
+	private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+	private void varint(int value) {
+		int v = value;
+		while ((v & ~0x7f) != 0) {
+			mOut.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		mOut.write(v);
+	}
+
+	/**
+	 * Add a varint field.
+	 */
+	public ProtobufWriter field(int tag, int value) {
+		varint(tag << 3);
+		varint(value);
+		return this;
+	}
+
+	/**
+	 * Add a length delimited field.
+	 */
+	public ProtobufWriter field(int tag, byte[] data) {
+		varint(tag << 3 | 2);
+		varint(data.length);
+		mOut.write(data, 0, data.length);
+		return this;
+	}
+
+	/**
+	 * Add a length delimited field of the fields written to 'message'.
+	 */
+	public ProtobufWriter field(int tag, ProtobufWriter message) {
+		return field(tag, message.toByteArray());
+	}
+
+	/**
+	 * Add a packed repeated (s)int32 field.
+	 * 
+	 * @param zigzag
+	 *            true for sint32 encoding
+	 */
+	public ProtobufWriter packed(int tag, int[] values, boolean zigzag) {
+		ProtobufWriter data = new ProtobufWriter();
+		for (int v : values)
+			data.varint(zigzag ? (v << 1) ^ (v >> 31) : v);
+		return field(tag, data);
+	}
+
+	public byte[] toByteArray() {
+		return mOut.toByteArray();
+	}
+
+	/**
+	 * @return stream of data that returns at most 'chunk' bytes per read,
+	 *         like a slow network connection.
+	 */
+	public static InputStream chunked(byte[] data, final int chunk) {
+		return new FilterInputStream(new ByteArrayInputStream(data)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, chunk));
+			}
+		};
+	}
+}
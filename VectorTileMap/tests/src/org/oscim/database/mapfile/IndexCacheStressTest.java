@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.mapfile;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.oscim.database.mapfile.header.MapFileHeader;
+import org.oscim.database.mapfile.header.SubFileParameter;
+
+/**
+ * Stress test for IndexCache: several threads look up the index entries of
+ * one sub-file concurrently and compare them to the index read directly,
+ * while another thread interrupts them. Runs on a plain JVM with the
+ * project classes and android.jar on the classpath:
+ * 
+ * <pre>
+ * java org.oscim.database.mapfile.IndexCacheStressTest file.map [threads] [zoomlevel]
+ * </pre>
+ * 
+ * Fails when a lookup returns a wrong entry, or when lookups still fail
+ * after the interrupts stopped, i.e. the channel was not reopened.
+ */
+public class IndexCacheStressTest {
+	private static final int LOOKUPS = 2000000;
+	private static final int CACHE_SIZE = 64;
+
+	public static void main(String[] args) throws Exception {
+		File file = new File(args[0]);
+		int threads = (args.length > 1 ? Integer.parseInt(args[1]) : 8);
+		int zoomLevel = (args.length > 2 ? Integer.parseInt(args[2]) : 14);
+
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		MapFileHeader header = new MapFileHeader();
+		if (!header.readHeader(new ReadBuffer(input), input.length()).isSuccess())
+			throw new IllegalArgumentException("invalid map file: " + file);
+
+		SubFileParameter subFile = header.getSubFileParameter(
+				header.getQueryZoomLevel((byte) zoomLevel));
+
+		// the expected entries
+		int blocks = (int) subFile.numberOfBlocks;
+		byte[] index = new byte[blocks * SubFileParameter.BYTES_PER_INDEX_ENTRY];
+		input.seek(subFile.indexStartAddress);
+		input.readFully(index);
+		input.close();
+
+		long[] expected = new long[blocks];
+		for (int i = 0; i < blocks; i++)
+			expected[i] = Deserializer.getFiveBytesLong(index,
+					i * SubFileParameter.BYTES_PER_INDEX_ENTRY);
+
+		IndexCache cache = new IndexCache(file, CACHE_SIZE);
+
+		long wrong = 0;
+		long failed = 0;
+
+		// first with interrupts, then check that the cache still works
+		for (boolean interrupt : new boolean[] { true, false }) {
+			Lookup[] lookups = new Lookup[threads];
+			for (int i = 0; i < threads; i++) {
+				lookups[i] = new Lookup(cache, subFile, expected, i, LOOKUPS / threads);
+				lookups[i].start();
+			}
+
+			long start = System.nanoTime();
+			Random random = new Random(threads);
+			while (interrupt && isAlive(lookups)) {
+				lookups[random.nextInt(threads)].interrupt();
+				Thread.sleep(1);
+			}
+
+			for (Lookup l : lookups)
+				l.join();
+
+			double seconds = (System.nanoTime() - start) / 1e9;
+			long w = 0, f = 0;
+			for (Lookup l : lookups) {
+				w += l.wrong.get();
+				f += l.failed.get();
+			}
+			System.out.printf("%d threads%s: %.1fM lookups/s, %d wrong, %d failed%n",
+					threads, (interrupt ? " interrupted" : ""),
+					LOOKUPS / seconds / 1e6, w, f);
+
+			wrong += w;
+			if (!interrupt)
+				failed += f;
+		}
+		cache.destroy();
+
+		if (wrong > 0 || failed > 0)
+			throw new AssertionError(wrong + " wrong entries, " + failed
+					+ " failed lookups");
+	}
+
+	private static boolean isAlive(Thread[] threads) {
+		for (Thread t : threads)
+			if (t.isAlive())
+				return true;
+		return false;
+	}
+
+	static class Lookup extends Thread {
+		final IndexCache cache;
+		final SubFileParameter subFile;
+		final long[] expected;
+		final Random random;
+		final int count;
+
+		final AtomicLong wrong = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+
+		Lookup(IndexCache cache, SubFileParameter subFile, long[] expected, int seed,
+				int count) {
+			this.cache = cache;
+			this.subFile = subFile;
+			this.expected = expected;
+			this.random = new Random(seed);
+			this.count = count;
+		}
+
+		@Override
+		public void run() {
+			int blocks = expected.length;
+			int block = random.nextInt(blocks);
+
+			for (int i = 0; i < count; i++) {
+				// walk to neighbour blocks like tiles near each other, jump
+				// sometimes
+				if (random.nextInt(16) == 0)
+					block = random.nextInt(blocks);
+				else
+					block = Math.max(0, Math.min(blocks - 1, block + random.nextInt(5) - 2));
+
+				long entry = cache.getIndexEntry(subFile, block);
+
+				// clear the interrupted status, like a worker that continues
+				// with the next tile
+				boolean interrupted = Thread.interrupted();
+
+				if (entry == -1 && interrupted)
+					continue;
+
+				if (entry == -1)
+					failed.incrementAndGet();
+				else if (entry != expected[block])
+					wrong.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.oscimap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.oscim.cache.CacheManager;
+import org.oscim.core.Tag;
+import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.database.ProtobufWriter;
+import org.oscim.generator.JobTile;
+
+/**
+ * Compares the decode throughput of synthetic tiles, similar to z14 city
+ * tiles, read from a stream through the read buffer like a server response
+ * or read from the mapped tile cache like a cached tile. Prints the best
+ * MB/s and ways/s of ROUNDS rounds and a checksum of the decoded
+ * coordinates. Run each path in its own JVM, the decoder is compiled for
+ * the buffer type it sees first:
+ *
+ * <pre>
+ * java org.oscim.database.oscimap.DecodeBenchmark stream|cache [tiles]
+ * </pre>
+ */
+public class DecodeBenchmark {
+	// field tags of the oscimap tile format
+	private static final int TILE_LINE = 11;
+	private static final int TILE_POLY = 12;
+	private static final int ELEM_NUM_INDICES = 1;
+	private static final int ELEM_TAGS = 11;
+	private static final int ELEM_INDEX = 12;
+	private static final int ELEM_COORDS = 13;
+
+	private static final int ROUNDS = 15;
+	// bytes per read of the stream, like a network connection
+	private static final int CHUNK = 8192;
+
+	static class Counter implements IMapDatabaseCallback {
+		int ways;
+		long sum;
+
+		@Override
+		public void renderWay(byte layer, Tag[] tags, float[] wayNodes,
+				short[] wayLength, boolean closed) {
+			ways++;
+			int n = 0;
+			for (int i = 0; i < wayLength.length && wayLength[i] >= 0; i++)
+				n += wayLength[i];
+			for (int i = 0; i < n; i++)
+				sum = sum * 31 + Float.floatToIntBits(wayNodes[i]);
+		}
+
+		@Override
+		public void renderPointOfInterest(byte layer, Tag[] tags, float latitude,
+				float longitude) {
+		}
+
+		@Override
+		public void renderWaterBackground() {
+		}
+
+		@Override
+		public boolean checkWay(Tag[] tags, boolean closed) {
+			return true;
+		}
+
+		@Override
+		public BitSet getTagFilter(Tag[] tags, boolean way, boolean captions) {
+			return null;
+		}
+	}
+
+	private static byte[] tile(Random r) {
+		ProtobufWriter tile = new ProtobufWriter();
+		int ways = 150 + r.nextInt(300);
+		for (int w = 0; w < ways; w++) {
+			int points = 4 + r.nextInt(120);
+			int[] coords = new int[points * 2];
+			for (int i = 0; i < coords.length; i++)
+				coords[i] = r.nextInt(400) - 200;
+
+			tile.field(w % 3 == 0 ? TILE_POLY : TILE_LINE, new ProtobufWriter()
+					.field(ELEM_NUM_INDICES, 1)
+					.packed(ELEM_INDEX, new int[] { points }, false)
+					.packed(ELEM_COORDS, coords, true)
+					.packed(ELEM_TAGS, new int[] { r.nextInt(600) }, false));
+		}
+		return tile.toByteArray();
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean fromCache = args.length > 0 && args[0].equals("cache");
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+
+		File dir = File.createTempFile("decode", "");
+		dir.delete();
+		dir.mkdir();
+
+		CacheManager cache = CacheManager.open(dir, "bench", 1L << 30);
+
+		Random r = new Random(1);
+		JobTile[] tiles = new JobTile[count];
+		byte[][] data = new byte[count][];
+		long bytes = 0;
+		for (int i = 0; i < count; i++) {
+			tiles[i] = new JobTile(i, 7, (byte) 14);
+			data[i] = tile(r);
+			bytes += data[i].length;
+			cache.put(tiles[i], data[i], data[i].length);
+		}
+		System.out.printf("%d tiles, %.1f MB%n", count, bytes / 1e6);
+
+		MapDatabase db = new MapDatabase();
+
+		double best = Double.MAX_VALUE;
+		Counter counter = null;
+
+		for (int round = 0; round < ROUNDS; round++) {
+			counter = new Counter();
+			long start = System.nanoTime();
+
+			for (int i = 0; i < count; i++) {
+				boolean ok;
+				if (fromCache) {
+					ByteBuffer buf = cache.get(tiles[i]);
+					ok = buf != null && db.decode(tiles[i], counter, buf);
+				} else {
+					ok = db.decode(tiles[i], counter,
+							ProtobufWriter.chunked(data[i], CHUNK),
+							data[i].length);
+				}
+				if (!ok)
+					throw new AssertionError("failed to decode " + tiles[i]);
+			}
+			best = Math.min(best, (System.nanoTime() - start) / 1e9);
+		}
+
+		System.out.printf("%s: %.0f MB/s, %.0f kways/s, sum %x%n",
+				fromCache ? "cache" : "stream",
+				bytes / 1e6 / best, counter.ways / 1e3 / best, counter.sum);
+
+		cache.release();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.oscimap;
+
+import static org.oscim.database.LargeElements.LINE;
+import static org.oscim.database.LargeElements.POINTS;
+import static org.oscim.database.LargeElements.RINGS;
+import static org.oscim.database.LargeElements.SKIPPED;
+import static org.oscim.database.LargeElements.coordinates;
+import static org.oscim.database.LargeElements.rings;
+
+import org.oscim.database.LargeElements;
+import org.oscim.database.ProtobufWriter;
+import org.oscim.generator.JobTile;
+
+/**
+ * Decodes a synthetic tile with elements larger than the 64kB read
+ * buffer, read in 1500 byte chunks, see LargeElements. Runs on a plain JVM
+ * with the project classes and android.jar on the classpath:
+ * 
+ * <pre>
+ * java org.oscim.database.oscimap.LargeElementTest
+ * </pre>
+ */
+public class LargeElementTest {
+	// field tags of the oscimap tile format
+	private static final int TILE_LINE = 11;
+	private static final int TILE_POLY = 12;
+	private static final int ELEM_NUM_INDICES = 1;
+	private static final int ELEM_TAGS = 11;
+	private static final int ELEM_INDEX = 12;
+	private static final int ELEM_COORDS = 13;
+
+	private static final int[] TAGS = { 0 };
+
+	public static void main(String[] args) throws Exception {
+		ProtobufWriter tile = new ProtobufWriter();
+
+		tile.field(TILE_LINE, new ProtobufWriter()
+				.packed(ELEM_TAGS, TAGS, false)
+				.packed(ELEM_COORDS, coordinates(SKIPPED), true));
+
+		tile.field(TILE_POLY, new ProtobufWriter()
+				.field(ELEM_NUM_INDICES, RINGS)
+				.packed(ELEM_INDEX, rings(), false)
+				.packed(ELEM_COORDS, coordinates(RINGS * POINTS * 2), true)
+				.packed(ELEM_TAGS, TAGS, false));
+
+		tile.field(TILE_LINE, new ProtobufWriter()
+				.field(ELEM_NUM_INDICES, 1)
+				.packed(ELEM_INDEX, new int[] { LINE.length / 2 }, false)
+				.packed(ELEM_COORDS, LINE, true)
+				.packed(ELEM_TAGS, TAGS, false));
+
+		byte[] data = tile.toByteArray();
+
+		LargeElements.Callback callback = new LargeElements.Callback(false);
+		boolean decoded = new MapDatabase().decode(new JobTile(0, 0, (byte) 3),
+				callback, ProtobufWriter.chunked(data, 1500), data.length);
+
+		callback.verify(decoded);
+		System.out.println("decoded " + data.length + " bytes");
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.database.pbmap;
+
+import static org.oscim.database.LargeElements.LINE;
+import static org.oscim.database.LargeElements.POINTS;
+import static org.oscim.database.LargeElements.RINGS;
+import static org.oscim.database.LargeElements.SKIPPED;
+import static org.oscim.database.LargeElements.coordinates;
+import static org.oscim.database.LargeElements.rings;
+
+import org.oscim.database.LargeElements;
+import org.oscim.database.ProtobufWriter;
+import org.oscim.generator.JobTile;
+
+/**
+ * Decodes a synthetic tile with elements larger than the 64kB read
+ * buffer, read in 1500 byte chunks, see LargeElements. Runs on a plain JVM
+ * with the project classes, android.jar and httpclient on the classpath:
+ * 
+ * <pre>
+ * java org.oscim.database.pbmap.LargeElementTest
+ * </pre>
+ */
+public class LargeElementTest {
+	// field tags of the pbmap tile format
+	private static final int TILE_WAYS = 2;
+	private static final int TILE_POLY = 3;
+	private static final int WAY_NUM_TAGS = 1;
+	private static final int WAY_NUM_INDICES = 2;
+	private static final int WAY_NUM_COORDS = 3;
+	private static final int WAY_TAGS = 11;
+	private static final int WAY_INDEX = 12;
+	private static final int WAY_COORDS = 13;
+
+	private static final int[] TAGS = { 0 };
+
+	public static void main(String[] args) throws Exception {
+		ProtobufWriter tile = new ProtobufWriter();
+
+		tile.field(TILE_WAYS, new ProtobufWriter()
+				.field(WAY_NUM_TAGS, TAGS.length)
+				.packed(WAY_TAGS, TAGS, false)
+				.packed(WAY_COORDS, coordinates(SKIPPED), true));
+
+		int[] polygon = coordinates(RINGS * POINTS * 2);
+		tile.field(TILE_POLY, new ProtobufWriter()
+				.field(WAY_NUM_TAGS, TAGS.length)
+				.packed(WAY_TAGS, TAGS, false)
+				.field(WAY_NUM_INDICES, RINGS)
+				.packed(WAY_INDEX, rings(), false)
+				.field(WAY_NUM_COORDS, polygon.length)
+				.packed(WAY_COORDS, polygon, true));
+
+		tile.field(TILE_WAYS, new ProtobufWriter()
+				.field(WAY_NUM_TAGS, TAGS.length)
+				.packed(WAY_TAGS, TAGS, false)
+				.field(WAY_NUM_INDICES, 1)
+				.packed(WAY_INDEX, new int[] { LINE.length / 2 }, false)
+				.field(WAY_NUM_COORDS, LINE.length)
+				.packed(WAY_COORDS, LINE, true));
+
+		byte[] data = tile.toByteArray();
+
+		LargeElements.Callback callback = new LargeElements.Callback(true);
+		boolean decoded = new MapDatabase().decode(new JobTile(0, 0, (byte) 3),
+				callback, ProtobufWriter.chunked(data, 1500), data.length);
+
+		callback.verify(decoded);
+		System.out.println("decoded " + data.length + " bytes");
+	}
+}
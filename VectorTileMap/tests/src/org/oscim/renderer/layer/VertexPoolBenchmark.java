@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.renderer.layer;
+
+/**
+ * Concurrent VertexPool microbenchmark: each thread repeatedly takes a list
+ * of ITEMS items, like a layer of a tile being built, and releases the list
+ * it took HELD lists before. Holding more items than fit into a magazine
+ * makes the threads refill from and spill to the shared pool. Prints the
+ * best of ROUNDS runs for each number of threads:
+ * 
+ * <pre>
+ * java org.oscim.renderer.layer.VertexPoolBenchmark [threads,...]
+ * </pre>
+ */
+public class VertexPoolBenchmark {
+	private static final int LISTS = 20000;
+	private static final int ITEMS = 51;
+	private static final int HELD = 8;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		String[] threadCounts = (args.length > 0 ? args[0] : "1,2,4,8").split(",");
+
+		// warm up
+		run(1);
+
+		for (String count : threadCounts) {
+			int threads = Integer.parseInt(count);
+
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++)
+				best = Math.min(best, run(threads));
+
+			double items = (double) threads * LISTS * ITEMS;
+			System.out.printf("%d threads: %.1fms, %.1fM items/s, allocated %d, pooled %d%n",
+					threads, best / 1e6, items / (best / 1e9) / 1e6,
+					VertexPool.getAllocated(), VertexPool.getPoolSize());
+		}
+	}
+
+	/**
+	 * @return nanoseconds until all threads finished
+	 */
+	private static long run(int threads) throws InterruptedException {
+		VertexPool.init();
+
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					VertexPoolItem[] held = new VertexPoolItem[HELD];
+
+					for (int l = 0; l < LISTS; l++) {
+						VertexPoolItem head = VertexPool.get();
+						VertexPoolItem cur = head;
+						for (int i = 1; i < ITEMS; i++)
+							cur = cur.next = VertexPool.get();
+
+						VertexPool.release(held[l % HELD]);
+						held[l % HELD] = head;
+					}
+
+					for (VertexPoolItem items : held)
+						VertexPool.release(items);
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (Thread t : workers)
+			t.start();
+		for (Thread t : workers)
+			t.join();
+
+		return System.nanoTime() - start;
+	}
+}
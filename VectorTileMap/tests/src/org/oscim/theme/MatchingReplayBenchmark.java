@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+
+import org.oscim.theme.renderinstruction.RenderInstruction;
+
+/**
+ * Replays the distinct tag sets of a map file against a RenderTheme with a
+ * cold MatchingCache, so that every lookup goes through the RuleIndex.
+ * Prints the best time per tag set of ROUNDS rounds, the bytes allocated
+ * per tag set when the JVM can measure it, and a checksum of the matched
+ * render instructions to compare the results of two builds:
+ * 
+ * <pre>
+ * java org.oscim.theme.MatchingReplayBenchmark file.map [OSMARENDER|TRONRENDER]
+ * </pre>
+ */
+public class MatchingReplayBenchmark {
+	private static final int POINTS = 30;
+	private static final int ROUNDS = 30;
+
+	public static void main(String[] args) throws Exception {
+		File file = new File(args[0]);
+		InternalRenderTheme internalTheme = (args.length > 1
+				? InternalRenderTheme.valueOf(args[1]) : InternalRenderTheme.OSMARENDER);
+
+		RenderTheme theme = RenderThemeHandler.getRenderTheme(
+				internalTheme.getRenderThemeAsStream());
+
+		TagSets tagSets = TagSets.read(file, POINTS);
+		int n = tagSets.size();
+
+		// numbers render instructions in order of first match
+		IdentityHashMap<RenderInstruction, Integer> ids =
+				new IdentityHashMap<RenderInstruction, Integer>();
+
+		MatchingCache cache = theme.createMatchingCache();
+
+		double best = Double.MAX_VALUE;
+		long allocated = -1;
+		long sum = 0;
+
+		for (int round = 0; round < ROUNDS; round++) {
+			cache.clear();
+			sum = 0;
+
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+
+			for (int i = 0; i < n; i++) {
+				RenderInstruction[] ri = tagSets.match(theme, cache, i);
+				if (ri == null)
+					continue;
+
+				for (RenderInstruction r : ri) {
+					Integer id = ids.get(r);
+					if (id == null) {
+						id = Integer.valueOf(ids.size());
+						ids.put(r, id);
+					}
+					sum = sum * 31 + id.intValue();
+				}
+			}
+
+			best = Math.min(best, (System.nanoTime() - start) / (double) n);
+
+			if (bytes >= 0)
+				allocated = allocatedBytes() - bytes;
+		}
+
+		System.out.printf("%s: %d tag sets, cold match %.0f ns", internalTheme, n, best);
+		if (allocated >= 0)
+			System.out.printf(", %.0f bytes allocated per tag set", allocated / (double) n);
+		System.out.printf(", sum %x%n", sum);
+	}
+
+	/**
+	 * @return bytes allocated by the current thread, or -1 when not supported
+	 *         by the JVM.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		try {
+			// com.sun.management.ThreadMXBean of HotSpot
+			Method m = Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes", long.class);
+			return ((Long) m.invoke(mx, Long.valueOf(Thread.currentThread().getId())))
+					.longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
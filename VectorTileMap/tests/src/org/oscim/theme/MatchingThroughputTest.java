@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import java.io.File;
+import java.util.Random;
+
+import org.oscim.theme.renderinstruction.RenderInstruction;
+
+/**
+ * Throughput of RenderTheme matching with several threads sharing one
+ * theme, each with its own MatchingCache like the TileGenerators of
+ * MapWorkers. Every thread matches the tag sets of a map file in its own
+ * random order, the cache is cleared every 'passes' rounds so that the
+ * misses go through the rule index. Runs on a plain JVM with the project
+ * classes and android.jar on the classpath:
+ * 
+ * <pre>
+ * java org.oscim.theme.MatchingThroughputTest file.map [threads,...] [OSMARENDER|TRONRENDER]
+ * </pre>
+ * 
+ * Fails when a thread gets other render instructions than a single thread
+ * matching without cache.
+ */
+public class MatchingThroughputTest {
+	private static final int POINTS = 30;
+	private static final int ROUNDS = 200;
+	private static final int CLEAR_INTERVAL = 10;
+
+	public static void main(String[] args) throws Exception {
+		File file = new File(args[0]);
+		String[] threadCounts = (args.length > 1 ? args[1] : "1,2,4,8").split(",");
+		InternalRenderTheme internalTheme = (args.length > 2
+				? InternalRenderTheme.valueOf(args[2]) : InternalRenderTheme.OSMARENDER);
+
+		RenderTheme theme = RenderThemeHandler.getRenderTheme(
+				internalTheme.getRenderThemeAsStream());
+
+		TagSets tagSets = TagSets.read(file, POINTS);
+
+		// the expected matches, with a fresh cache for each tag set
+		RenderInstruction[][] expected = new RenderInstruction[tagSets.size()][];
+		for (int i = 0; i < tagSets.size(); i++)
+			expected[i] = tagSets.match(theme, theme.createMatchingCache(), i);
+
+		System.out.println(tagSets.size() + " tag sets, " + internalTheme);
+
+		// warm up
+		new Matcher(theme, tagSets, expected, -1, ROUNDS).run();
+
+		long wrong = 0;
+
+		for (String count : threadCounts) {
+			int threads = Integer.parseInt(count);
+
+			Matcher[] matchers = new Matcher[threads];
+			for (int i = 0; i < threads; i++)
+				matchers[i] = new Matcher(theme, tagSets, expected, i, ROUNDS / threads);
+
+			long start = System.nanoTime();
+			for (Matcher m : matchers)
+				m.start();
+
+			long matches = 0;
+			long hits = 0;
+			for (Matcher m : matchers) {
+				m.join();
+				matches += m.matches;
+				hits += m.hits;
+				wrong += m.wrong;
+			}
+
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%d threads: %.2fM matches/s, %.1f%% hits%n",
+					threads, matches / seconds / 1e6, 100.0 * hits / matches);
+		}
+
+		if (wrong > 0)
+			throw new AssertionError(wrong + " wrong matches");
+	}
+
+	static class Matcher extends Thread {
+		final RenderTheme theme;
+		final TagSets tagSets;
+		final RenderInstruction[][] expected;
+		final MatchingCache cache;
+		final Random random;
+		final int rounds;
+
+		long matches;
+		long hits;
+		long wrong;
+
+		Matcher(RenderTheme theme, TagSets tagSets, RenderInstruction[][] expected,
+				int seed, int rounds) {
+			this.theme = theme;
+			this.tagSets = tagSets;
+			this.expected = expected;
+			this.cache = theme.createMatchingCache();
+			this.random = new Random(seed);
+			this.rounds = rounds;
+		}
+
+		@Override
+		public void run() {
+			int n = tagSets.size();
+			int[] order = new int[n];
+			for (int i = 0; i < n; i++)
+				order[i] = i;
+
+			for (int round = 0; round < rounds; round++) {
+				// clear() also resets the counters
+				if (round % CLEAR_INTERVAL == 0) {
+					hits += cache.getHits();
+					cache.clear();
+				}
+
+				// shuffle
+				for (int i = n - 1; i > 0; i--) {
+					int j = random.nextInt(i + 1);
+					int t = order[i];
+					order[i] = order[j];
+					order[j] = t;
+				}
+
+				for (int i = 0; i < n; i++) {
+					int k = order[i];
+					if (!same(tagSets.match(theme, cache, k), expected[k]))
+						wrong++;
+				}
+				matches += n;
+			}
+			hits += cache.getHits();
+		}
+
+		private static boolean same(RenderInstruction[] a, RenderInstruction[] b) {
+			if (a == null || b == null)
+				return a == b;
+			if (a.length != b.length)
+				return false;
+			for (int i = 0; i < a.length; i++)
+				if (a[i] != b[i])
+					return false;
+			return true;
+		}
+	}
+}
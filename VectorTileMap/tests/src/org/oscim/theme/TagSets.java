@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 Hannes Janetzek
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.oscim.theme;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.oscim.core.BoundingBox;
+import org.oscim.core.MercatorProjection;
+import org.oscim.core.Tag;
+import org.oscim.database.IMapDatabaseCallback;
+import org.oscim.database.mapfile.MapDatabase;
+import org.oscim.generator.JobTile;
+import org.oscim.theme.renderinstruction.Area;
+import org.oscim.theme.renderinstruction.Line;
+import org.oscim.theme.renderinstruction.RenderInstruction;
+import org.oscim.theme.renderinstruction.Text;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+
+/**
+ * The distinct tag sets of the elements of a map file, with the zoom-level
+ * and element type at which they are matched. Collected from 24 tiles at
+ * each of zoom-level 12 to 17 around random points of the map, like a user
+ * zooming in. Names are replaced by an empty name tag, as they would make
+ * almost every tag set distinct.
+ */
+final class TagSets {
+	static final int NODE = 0;
+	static final int WAY = 1;
+	static final int AREA = 2;
+
+	private static final Tag EMPTY_NAME = new Tag(Tag.TAG_KEY_NAME, null, false);
+
+	/** does not render anything */
+	static final IRenderCallback NO_RENDER = new IRenderCallback() {
+		@Override
+		public void renderArea(Area area, int level) {
+		}
+
+		@Override
+		public void renderAreaSymbol(Bitmap symbol) {
+		}
+
+		@Override
+		public void renderPointOfInterestCircle(float radius, Paint fill, int level) {
+		}
+
+		@Override
+		public void renderPointOfInterestSymbol(Bitmap symbol) {
+		}
+
+		@Override
+		public void renderWay(Line line, int level) {
+		}
+
+		@Override
+		public void renderWaySymbol(Bitmap symbol, boolean alignCenter, boolean repeat) {
+		}
+
+		@Override
+		public void renderWayText(Text text) {
+		}
+
+		@Override
+		public void renderAreaCaption(Text text) {
+		}
+
+		@Override
+		public void renderPointOfInterestCaption(Text text) {
+		}
+	};
+
+	final Tag[][] tags;
+	final byte[] zoomLevels;
+	final int[] types;
+
+	private TagSets(ArrayList<Tag[]> tags, ArrayList<int[]> params) {
+		int n = tags.size();
+		this.tags = tags.toArray(new Tag[n][]);
+		zoomLevels = new byte[n];
+		types = new int[n];
+		for (int i = 0; i < n; i++) {
+			zoomLevels[i] = (byte) params.get(i)[0];
+			types[i] = params.get(i)[1];
+		}
+	}
+
+	int size() {
+		return tags.length;
+	}
+
+	/**
+	 * Match tag set i against theme, without rendering.
+	 */
+	RenderInstruction[] match(RenderTheme theme, MatchingCache cache, int i) {
+		if (types[i] == NODE)
+			return theme.matchNode(NO_RENDER, cache, tags[i], zoomLevels[i]);
+
+		return theme.matchWay(NO_RENDER, cache, tags[i], zoomLevels[i],
+				types[i] == AREA, false);
+	}
+
+	/**
+	 * @param file
+	 *            the map file
+	 * @param points
+	 *            number of random points, the same for each call
+	 * @return the distinct tag sets of the elements around the points
+	 */
+	static TagSets read(File file, int points) {
+		final ArrayList<Tag[]> tags = new ArrayList<Tag[]>();
+		final ArrayList<int[]> params = new ArrayList<int[]>();
+		final HashSet<String> seen = new HashSet<String>();
+		final byte[] zoomLevel = new byte[1];
+
+		IMapDatabaseCallback callback = new IMapDatabaseCallback() {
+			private void add(Tag[] t, int type) {
+				Tag[] copy = t.clone();
+				for (int i = 0; i < copy.length; i++)
+					if (copy[i].key == Tag.TAG_KEY_NAME)
+						copy[i] = EMPTY_NAME;
+
+				if (seen.add(zoomLevel[0] + "/" + type + "/" + Arrays.toString(copy))) {
+					tags.add(copy);
+					params.add(new int[] { zoomLevel[0], type });
+				}
+			}
+
+			@Override
+			public void renderPointOfInterest(byte layer, Tag[] t, float latitude,
+					float longitude) {
+				add(t, NODE);
+			}
+
+			@Override
+			public void renderWaterBackground() {
+			}
+
+			@Override
+			public void renderWay(byte layer, Tag[] t, float[] wayNodes,
+					short[] wayLength, boolean closed) {
+				add(t, closed ? AREA : WAY);
+			}
+
+			@Override
+			public boolean checkWay(Tag[] t, boolean closed) {
+				return true;
+			}
+
+			@Override
+			public BitSet getTagFilter(Tag[] t, boolean way, boolean captions) {
+				return null;
+			}
+		};
+
+		MapDatabase db = new MapDatabase();
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("mapfile", file.getPath());
+		if (!db.open(options).isSuccess())
+			throw new IllegalArgumentException("cannot open " + file);
+
+		BoundingBox bbox = db.getMapInfo().boundingBox;
+		Random random = new Random(7);
+
+		for (int p = 0; p < points; p++) {
+			double lat = (bbox.minLatitudeE6 + random.nextDouble()
+					* (bbox.maxLatitudeE6 - bbox.minLatitudeE6)) / 1E6;
+			double lon = (bbox.minLongitudeE6 + random.nextDouble()
+					* (bbox.maxLongitudeE6 - bbox.minLongitudeE6)) / 1E6;
+
+			for (byte z = 12; z <= 17; z++) {
+				zoomLevel[0] = z;
+				long x = MercatorProjection.longitudeToTileX(lon, z);
+				long y = MercatorProjection.latitudeToTileY(lat, z);
+
+				for (long ty = y - 2; ty < y + 2; ty++)
+					for (long tx = x - 3; tx < x + 3; tx++)
+						db.executeQuery(new JobTile((int) tx, (int) ty, z), callback);
+			}
+		}
+		db.close();
+
+		return new TagSets(tags, params);
+	}
+}